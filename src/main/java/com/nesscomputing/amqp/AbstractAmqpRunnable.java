@@ -38,19 +38,27 @@ public abstract class AbstractAmqpRunnable implements Runnable
     private AtomicReference<Connection> connectionHolder = new AtomicReference<Connection>();
     private AtomicReference<Channel> channelHolder = new AtomicReference<Channel>();
     private AtomicBoolean running = new AtomicBoolean(true);
+    private volatile boolean backingOff = false;
 
     private int backoff = 1;
 
-    private final ConnectionFactory connectionFactory;
+    private final AmqpConnectionPool connectionPool;
     private final AmqpConfig amqpConfig;
     private final String name;
 
     protected AbstractAmqpRunnable(@Nonnull final ConnectionFactory connectionFactory,
                                    @Nonnull final AmqpConfig amqpConfig,
                                    @Nonnull final String name)
+    {
+        this(new AmqpConnectionPool(connectionFactory, 0), amqpConfig, name);
+    }
+
+    AbstractAmqpRunnable(@Nonnull final AmqpConnectionPool connectionPool,
+                         @Nonnull final AmqpConfig amqpConfig,
+                         @Nonnull final String name)
     {
         Preconditions.checkState(name != null, "The name can not be null!");
-        this.connectionFactory = connectionFactory;
+        this.connectionPool = connectionPool;
         this.amqpConfig = amqpConfig;
         this.name = name;
     }
@@ -76,6 +84,14 @@ public abstract class AbstractAmqpRunnable implements Runnable
         return channel != null && channel.isOpen();
     }
 
+    /**
+     * True after a problem with the broker, until the runnable managed to open a channel again.
+     */
+    public boolean isBackingOff()
+    {
+        return backingOff;
+    }
+
     @Override
     public void run()
     {
@@ -106,11 +122,14 @@ public abstract class AbstractAmqpRunnable implements Runnable
         finally {
             LOG.debug("Stopping %s for '%s'", getServiceType(), name);
             channelDisconnect();
+            stopCallback();
         }
     }
 
     private void backoff(final Throwable t) throws InterruptedException
     {
+        backingOff = true;
+
         final long backoffTime = amqpConfig.getBackoffDelay().getMillis() * backoff;
         LOG.warnDebug(t, "Could not connect to Broker, sleeping for %d ms...", backoffTime);
 
@@ -140,6 +159,13 @@ public abstract class AbstractAmqpRunnable implements Runnable
     {
     }
 
+    /**
+     * Called once when the runnable stops, after the channel was disconnected.
+     */
+    protected void stopCallback()
+    {
+    }
+
     protected abstract boolean process() throws IOException, InterruptedException;
 
     protected void channelDisconnect()
@@ -151,19 +177,20 @@ public abstract class AbstractAmqpRunnable implements Runnable
         AmqpUtils.closeQuietly(channel);
 
         final Connection connection = connectionHolder.getAndSet(null);
-        AmqpUtils.closeQuietly(connection);
+        connectionPool.release(connection);
     }
 
     protected Channel channelConnect() throws IOException
     {
         Channel channel = channelHolder.get();
         if (channel == null) {
-            final Connection connection = connectionFactory.newConnection();
+            final Connection connection = connectionPool.acquire();
             connectionHolder.set(connection);
             channel = connection.createChannel();
             channelHolder.set(channel);
 
             connectCallback(channel);
+            backingOff = false;
         }
         return channel;
     }
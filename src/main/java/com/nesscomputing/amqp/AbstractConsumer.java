@@ -16,47 +16,240 @@
 package com.nesscomputing.amqp;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.nesscomputing.amqp.PublisherCallback.PublisherData;
+import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.QueueingConsumer;
+import com.rabbitmq.client.ShutdownSignalException;
 
 /**
  * A general runnable that will keep the connection to a queue or exchange alive and dispatch messages
- * received to an instance that implements {@link ConsumerCallback}.
+ * received to an instance that implements {@link ConsumerCallback} or {@link DeliveryHandleCallback}.
+ *
+ * The callback is called on the consumer thread, unless the consumer has worker threads or was given an executor.
+ * Then the deliveries are handed to the executor; deliveries with the same key are processed one after the other
+ * by spreading the keys over a number of serial stripes.
+ *
+ * With the PUSH {@link ConsumerDispatch}, the deliveries are handed over right on the connection thread, and the
+ * consumer thread only sends acks that are due and reconnects after a failure.
+ *
+ * A consumer with a {@link BatchConsumerCallback} gathers the deliveries on the consumer thread and acknowledges
+ * or rejects every batch as a whole. It ignores the dispatch and worker settings.
+ *
+ * Deliveries that a callback fails to process are rejected, unless retries were enabled for the queue with
+ * {@link #enableRetries(Channel, String)}. Then they are acknowledged and published to a retry queue, see {@link RetryPolicy}.
  */
 public abstract class AbstractConsumer extends AbstractAmqpRunnable
 {
-    private final AtomicReference<QueueingConsumer> consumerHolder = new AtomicReference<QueueingConsumer>(null);
+    private final AtomicReference<DefaultConsumer> consumerHolder = new AtomicReference<DefaultConsumer>(null);
 
     private final long tickTimeout;
 
-    private final ConsumerCallback consumerCallback;
+    private final DeliveryHandleCallback handleCallback;
+    private final BatchConsumerCallback batchCallback;
+    private final boolean failureRequeue;
+    private volatile RetryPolicy retryPolicy = null;
+
+    private final int batchSize;
+    private final long batchWaitNanos;
+
+    private final boolean push;
+    private final long ackLinger;
+
+    // Failure of the connection thread, rethrown on the consumer thread. Released when the consumer thread should wake up early.
+    private final AtomicReference<Exception> pushFailure = new AtomicReference<Exception>(null);
+    private final Semaphore wakeup = new Semaphore(0);
+
+    private volatile int prefetchCount;
+    private final int prefetchSize;
+    private final DeliveryTracker deliveryTracker;
+
+    // Only set if the deliveries are processed by workers.
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+    private final Function<? super QueueingConsumer.Delivery, ?> keyFunction;
+    private final SerialExecutor [] stripes;
+    private final int backlog;
+    private final Semaphore inFlight;
 
     protected AbstractConsumer(@Nonnull final ConnectionFactory connectionFactory,
                                @Nonnull final AmqpConfig amqpConfig,
                                @Nonnull final String name,
                                @Nonnull final ConsumerCallback consumerCallback)
     {
-        super(connectionFactory, amqpConfig, name);
+        this(new AmqpConnectionPool(connectionFactory, 0), amqpConfig, name, consumerCallback);
+    }
+
+    protected AbstractConsumer(@Nonnull final ConnectionFactory connectionFactory,
+                               @Nonnull final AmqpConfig amqpConfig,
+                               @Nonnull final String name,
+                               @Nonnull final DeliveryHandleCallback handleCallback)
+    {
+        this(new AmqpConnectionPool(connectionFactory, 0), amqpConfig, name, handleCallback, null, null);
+    }
+
+    protected AbstractConsumer(@Nonnull final ConnectionFactory connectionFactory,
+                               @Nonnull final AmqpConfig amqpConfig,
+                               @Nonnull final String name,
+                               @Nonnull final BatchConsumerCallback batchCallback)
+    {
+        this(new AmqpConnectionPool(connectionFactory, 0), amqpConfig, name, batchCallback);
+    }
+
+    AbstractConsumer(@Nonnull final AmqpConnectionPool connectionPool,
+                     @Nonnull final AmqpConfig amqpConfig,
+                     @Nonnull final String name,
+                     @Nonnull final ConsumerCallback consumerCallback)
+    {
+        this(connectionPool, amqpConfig, name, new AckingConsumerCallback(consumerCallback), null, null);
+    }
+
+    AbstractConsumer(@Nonnull final AmqpConnectionPool connectionPool,
+                     @Nonnull final AmqpConfig amqpConfig,
+                     @Nonnull final String name,
+                     @Nonnull final DeliveryHandleCallback handleCallback,
+                     @Nullable final Executor executor,
+                     @Nullable final Function<? super QueueingConsumer.Delivery, ?> keyFunction)
+    {
+        this(connectionPool, amqpConfig, name, Preconditions.checkNotNull(handleCallback, "the callback can not be null!"), null, executor, keyFunction);
+    }
+
+    AbstractConsumer(@Nonnull final AmqpConnectionPool connectionPool,
+                     @Nonnull final AmqpConfig amqpConfig,
+                     @Nonnull final String name,
+                     @Nonnull final BatchConsumerCallback batchCallback)
+    {
+        this(connectionPool, amqpConfig, name, null, Preconditions.checkNotNull(batchCallback, "the callback can not be null!"), null, null);
+    }
+
+    private AbstractConsumer(@Nonnull final AmqpConnectionPool connectionPool,
+                             @Nonnull final AmqpConfig amqpConfig,
+                             @Nonnull final String name,
+                             @Nullable final DeliveryHandleCallback handleCallback,
+                             @Nullable final BatchConsumerCallback batchCallback,
+                             @Nullable final Executor executor,
+                             @Nullable final Function<? super QueueingConsumer.Delivery, ?> keyFunction)
+    {
+        super(connectionPool, amqpConfig, name);
 
-        this.consumerCallback = consumerCallback;
+        this.handleCallback = handleCallback;
+        this.batchCallback = batchCallback;
+        this.failureRequeue = amqpConfig.isConsumerFailureRequeue();
         this.tickTimeout = getConfig().getTickTimeout().getMillis();
 
+        this.batchSize = Math.max(1, amqpConfig.getConsumerBatchSize());
+        this.batchWaitNanos = TimeUnit.MILLISECONDS.toNanos(amqpConfig.getConsumerBatchWait().getMillis());
+
+        this.push = batchCallback == null && amqpConfig.getConsumerDispatch() == ConsumerDispatch.PUSH;
+        this.ackLinger = amqpConfig.getConsumerAckLinger().getMillis();
+
+        this.prefetchCount = amqpConfig.getConsumerPrefetchCount();
+        this.prefetchSize = amqpConfig.getConsumerPrefetchSize();
+
+        final int ackBatchSize = amqpConfig.getConsumerAckBatchSize();
+        this.deliveryTracker = new DeliveryTracker(new AckBatcher(ackBatchSize, TimeUnit.MILLISECONDS.toNanos(ackLinger)));
+
+        if (prefetchCount > 0 && prefetchCount < ackBatchSize) {
+            LOG.warn("Prefetch count %d for '%s' is smaller than the ack batch size %d, acks will only be sent after the ack linger time!", prefetchCount, name, ackBatchSize);
+        }
+
+        final int workerThreads = batchCallback == null ? amqpConfig.getConsumerWorkerThreads() : 0;
+        if (executor != null) {
+            this.executor = executor;
+            this.ownExecutor = null;
+        }
+        else if (workerThreads > 0) {
+            this.ownExecutor = AmqpThreads.newWorkerExecutor(amqpConfig.isVirtualThreads(), workerThreads, "amqp-consumer-" + name + "-");
+            this.executor = ownExecutor;
+        }
+        else {
+            this.executor = null;
+            this.ownExecutor = null;
+        }
+
+        if (this.executor != null) {
+            if (keyFunction != null) {
+                this.keyFunction = keyFunction;
+            }
+            else {
+                this.keyFunction = DeliveryKeys.fromConfig(amqpConfig.getConsumerWorkerOrderKey());
+            }
+            this.stripes = new SerialExecutor[this.keyFunction == null ? 0 : Math.max(1, amqpConfig.getConsumerWorkerStripes())];
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i] = new SerialExecutor(this.executor);
+            }
+            this.backlog = Math.max(1, amqpConfig.getConsumerWorkerBacklog());
+            this.inFlight = new Semaphore(backlog);
+        }
+        else {
+            this.keyFunction = null;
+            this.stripes = null;
+            this.backlog = 0;
+            this.inFlight = null;
+        }
     }
 
     @Override
     protected void connectCallback(final Channel channel) throws IOException
     {
-        final QueueingConsumer consumer = new QueueingConsumer(channel);
+        deliveryTracker.reset(channel);
+
+        if (prefetchCount > 0 || prefetchSize > 0) {
+            channel.basicQos(prefetchSize, prefetchCount, false);
+        }
+
+        pushFailure.set(null);
+        wakeup.drainPermits();
+
+        final DefaultConsumer consumer = push ? new PushConsumer(channel) : new QueueingConsumer(channel);
         consumerHolder.set(consumer);
     }
 
+    /**
+     * Limits the number of unacknowledged messages if the configuration does not. Must be called before the consumer connects.
+     */
+    void limitPrefetch(final int count)
+    {
+        if (prefetchCount <= 0) {
+            prefetchCount = count;
+        }
+    }
+
+    /**
+     * Declares the retry and parking queues for the consumed queue and sends failed deliveries through them from now on.
+     * Does nothing unless consumer-retry-delays is set. Must be called before subscribing to the queue.
+     */
+    protected void enableRetries(final Channel channel, final String queueName) throws IOException
+    {
+        final RetryPolicy policy = RetryPolicy.fromConfig(getConfig(), queueName);
+        if (policy != null) {
+            policy.declare(channel, getConfig().isDurable());
+            retryPolicy = policy;
+        }
+    }
+
     protected Consumer getConsumer()
     {
         return consumerHolder.get();
@@ -66,10 +259,19 @@ public abstract class AbstractConsumer extends AbstractAmqpRunnable
     protected void disconnectCallback(@Nullable final Channel channel)
     {
         if (channel != null && channel.isOpen()) {
-            final QueueingConsumer queueingConsumer = consumerHolder.get();
+            awaitWorkers();
+
+            try {
+                deliveryTracker.flush();
+            }
+            catch (IOException ioe) {
+                LOG.warnDebug(ioe, "While sending pending acks for '%s'", getName());
+            }
 
-            if (queueingConsumer != null) {
-                final String consumerTag = queueingConsumer.getConsumerTag();
+            final DefaultConsumer consumer = consumerHolder.get();
+
+            if (consumer != null) {
+                final String consumerTag = consumer.getConsumerTag();
 
                 if (consumerTag != null) {
                     try {
@@ -81,13 +283,15 @@ public abstract class AbstractConsumer extends AbstractAmqpRunnable
                 }
             }
         }
+
+        deliveryTracker.reset(null);
     }
 
     @Override
     protected boolean process() throws IOException, InterruptedException
     {
         channelConnect();
-        final QueueingConsumer consumer = consumerHolder.get();
+        final DefaultConsumer consumer = consumerHolder.get();
 
         if (consumer == null) {
             // When the channel is not connected, this can happen. Simulate a tick.
@@ -95,21 +299,474 @@ public abstract class AbstractConsumer extends AbstractAmqpRunnable
             Thread.sleep(tickTimeout);
             return true;
         }
+        else if (push) {
+            return tick();
+        }
+        else if (batchCallback != null) {
+            return processBatch((QueueingConsumer) consumer);
+        }
         else {
-            final QueueingConsumer.Delivery delivery = consumer.nextDelivery(tickTimeout);
+            final QueueingConsumer.Delivery delivery = ((QueueingConsumer) consumer).nextDelivery(deliveryTracker.getWaitMillis(tickTimeout));
             if (delivery != null) {
-                try {
-                    return consumerCallback.withDelivery(delivery);
-                }
-                finally {
-                    final Channel channel = getChannel();
-                    channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                final Channel channel = getChannel();
+                deliveryTracker.register(delivery.getEnvelope().getDeliveryTag());
+
+                if (executor != null) {
+                    submit(channel, delivery);
+                    return true;
                 }
+                return deliver(channel, delivery);
             }
             else {
+                deliveryTracker.flushIfDue();
                 LOG.trace("Tick...");
             }
             return true;
         }
     }
+
+    /**
+     * Gathers a batch of deliveries and hands it to the batch callback. The batch is acknowledged or rejected as a whole.
+     */
+    private boolean processBatch(final QueueingConsumer consumer) throws IOException, InterruptedException
+    {
+        QueueingConsumer.Delivery delivery = consumer.nextDelivery(deliveryTracker.getWaitMillis(tickTimeout));
+        if (delivery == null) {
+            deliveryTracker.flushIfDue();
+            LOG.trace("Tick...");
+            return true;
+        }
+
+        final Channel channel = getChannel();
+        final List<QueueingConsumer.Delivery> deliveries = new ArrayList<QueueingConsumer.Delivery>();
+        final long deadline = System.nanoTime() + batchWaitNanos;
+
+        while (delivery != null) {
+            deliveryTracker.register(delivery.getEnvelope().getDeliveryTag());
+            unpack(delivery, deliveries);
+
+            final long remaining = deadline - System.nanoTime();
+            if (deliveries.size() >= batchSize || remaining <= 0L) {
+                break;
+            }
+            delivery = consumer.nextDelivery(TimeUnit.NANOSECONDS.toMillis(remaining));
+        }
+
+        final boolean result;
+        try {
+            result = batchCallback.withDeliveries(Collections.unmodifiableList(deliveries));
+        }
+        catch (Exception e) {
+            final RetryPolicy policy = retryPolicy;
+            if (policy != null) {
+                LOG.warnDebug(e, "Batch of %d messages for '%s' failed, retrying it", deliveries.size(), getName());
+                retryAll(policy, channel, deliveries);
+            }
+            else {
+                LOG.warnDebug(e, "Batch of %d messages for '%s' failed, %s", deliveries.size(), getName(), failureRequeue ? "requeueing it" : "rejecting it");
+                deliveryTracker.rejectAll(channel, failureRequeue);
+            }
+            return true;
+        }
+
+        deliveryTracker.completeAll(channel);
+        return result;
+    }
+
+    /**
+     * Publishes every message of a failed batch to its retry queue and acknowledges the batch. If that fails, the batch is rejected.
+     */
+    private void retryAll(final RetryPolicy policy, final Channel channel, final List<QueueingConsumer.Delivery> deliveries) throws IOException
+    {
+        try {
+            for (QueueingConsumer.Delivery delivery : deliveries) {
+                policy.republish(channel, delivery.getProperties(), delivery.getBody());
+            }
+        }
+        catch (IOException ioe) {
+            LOG.warnDebug(ioe, "Could not retry a batch for '%s', %s", getName(), failureRequeue ? "requeueing it" : "rejecting it");
+            deliveryTracker.rejectAll(channel, failureRequeue);
+            return;
+        }
+        deliveryTracker.completeAll(channel);
+    }
+
+    /**
+     * Runs a tick of a PUSH consumer. Waits until acks are due, or until the connection thread reports a problem.
+     */
+    private boolean tick() throws IOException, InterruptedException
+    {
+        // While the consumer thread waits, deliveries may leave acks behind, so it must not wait longer than the ack linger time.
+        final long waitMillis = Math.min(deliveryTracker.getWaitMillis(tickTimeout), ackLinger > 0L ? ackLinger : tickTimeout);
+        wakeup.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+
+        final Exception failure = pushFailure.getAndSet(null);
+        if (failure != null) {
+            Throwables.propagateIfInstanceOf(failure, IOException.class);
+            throw Throwables.propagate(failure);
+        }
+
+        final Channel channel = getChannel();
+        if (channel == null || !channel.isOpen()) {
+            throw new IOException("Channel was closed");
+        }
+
+        deliveryTracker.flushIfDue();
+        LOG.trace("Tick...");
+        return true;
+    }
+
+    @Override
+    protected void stopCallback()
+    {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Hands a delivery to a worker. Waits while the backlog of deliveries in flight is full.
+     */
+    private void submit(final Channel channel, final QueueingConsumer.Delivery delivery) throws IOException, InterruptedException
+    {
+        while (!inFlight.tryAcquire(tickTimeout, TimeUnit.MILLISECONDS)) {
+            if (!channel.isOpen()) {
+                throw new IOException("Channel closed while waiting for the workers");
+            }
+            deliveryTracker.flushIfDue();
+        }
+
+        final Executor target;
+        final Object key = keyFunction == null ? null : keyFunction.apply(delivery);
+        if (key == null) {
+            target = executor;
+        }
+        else {
+            target = stripes[(AmqpUtils.spread(key.hashCode()) & Integer.MAX_VALUE) % stripes.length];
+        }
+
+        try {
+            target.execute(new DeliveryTask(channel, delivery));
+        }
+        catch (RejectedExecutionException ree) {
+            // The delivery stays unacknowledged, so the broker redelivers it after the reconnect.
+            inFlight.release();
+            throw new IOException("Workers did not accept the delivery", ree);
+        }
+    }
+
+    /**
+     * Waits up to a tick for the workers to finish the deliveries in flight, so they can be acknowledged before the channel is closed.
+     */
+    private void awaitWorkers()
+    {
+        if (inFlight == null) {
+            return;
+        }
+
+        try {
+            if (inFlight.tryAcquire(backlog, tickTimeout, TimeUnit.MILLISECONDS)) {
+                inFlight.release(backlog);
+            }
+            else {
+                LOG.warn("Workers for '%s' did not finish in time, unfinished deliveries will be redelivered", getName());
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hands a delivery to the callback. A batch envelope is unpacked and every message in it is handed over on its own;
+     * the delivery is acknowledged once all of them were acknowledged. If the callback fails, the delivery is rejected
+     * unless the callback settled it already. A failed callback is not a reason to reconnect, so it is only logged.
+     */
+    private boolean deliver(final Channel channel, final QueueingConsumer.Delivery delivery) throws IOException
+    {
+        final Acknowledgement acknowledgement = new Acknowledgement(channel, delivery.getEnvelope().getDeliveryTag());
+        try {
+            if (!BatchEnvelope.isEnvelope(delivery.getProperties())) {
+                return handleCallback.withDelivery(new Handle(acknowledgement, delivery));
+            }
+
+            final List<QueueingConsumer.Delivery> messages = new ArrayList<QueueingConsumer.Delivery>();
+            unpack(delivery, messages);
+            if (messages.isEmpty()) {
+                acknowledgement.ack();
+                return true;
+            }
+
+            acknowledgement.expect(messages.size());
+            boolean result = true;
+            for (QueueingConsumer.Delivery message : messages) {
+                result &= handleCallback.withDelivery(new Handle(acknowledgement, message));
+            }
+            return result;
+        }
+        catch (Exception e) {
+            rejectFailed(e, acknowledgement, delivery);
+            return true;
+        }
+        finally {
+            acknowledgement.detach();
+        }
+    }
+
+    private void rejectFailed(final Exception e, final Acknowledgement acknowledgement, final QueueingConsumer.Delivery delivery)
+    {
+        try {
+            final RetryPolicy policy = retryPolicy;
+            if (policy != null) {
+                LOG.warnDebug(e, "Message for '%s' failed, retrying it", getName());
+                acknowledgement.retry(policy, delivery);
+            }
+            else {
+                LOG.warnDebug(e, "Message for '%s' failed, %s", getName(), failureRequeue ? "requeueing it" : "rejecting it");
+                acknowledgement.nack(failureRequeue);
+            }
+        }
+        catch (IOException ioe) {
+            LOG.warnDebug(ioe, "While rejecting a failed delivery for '%s'", getName());
+        }
+    }
+
+    /**
+     * Adds the messages of a delivery to a batch. A batch envelope adds every message in it.
+     */
+    private static void unpack(final QueueingConsumer.Delivery delivery, final List<QueueingConsumer.Delivery> deliveries) throws IOException
+    {
+        if (!BatchEnvelope.isEnvelope(delivery.getProperties())) {
+            deliveries.add(delivery);
+            return;
+        }
+
+        for (PublisherData message : BatchEnvelope.unpack(delivery.getBody())) {
+            deliveries.add(new QueueingConsumer.Delivery(delivery.getEnvelope(), message.getProperties(), message.getData()));
+        }
+    }
+
+    /**
+     * Receives the deliveries of a PUSH consumer on the connection thread.
+     */
+    private class PushConsumer extends DefaultConsumer
+    {
+        PushConsumer(final Channel channel)
+        {
+            super(channel);
+        }
+
+        @Override
+        public void handleDelivery(final String consumerTag, final Envelope envelope, final BasicProperties properties, final byte [] body)
+        {
+            if (!isRunning()) {
+                // Not acknowledged, so the broker redelivers it.
+                return;
+            }
+
+            final Channel channel = getChannel();
+            final QueueingConsumer.Delivery delivery = new QueueingConsumer.Delivery(envelope, properties, body);
+            deliveryTracker.register(envelope.getDeliveryTag());
+
+            try {
+                if (executor != null) {
+                    submit(channel, delivery);
+                }
+                else {
+                    try {
+                        if (!deliver(channel, delivery)) {
+                            shutdown();
+                            wakeup.release();
+                        }
+                    }
+                    finally {
+                        deliveryTracker.flushIfIdle();
+                    }
+                }
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void handleCancel(final String consumerTag)
+        {
+            fail(new IOException("Subscription " + consumerTag + " was cancelled by the broker"));
+        }
+
+        @Override
+        public void handleShutdownSignal(final String consumerTag, final ShutdownSignalException sig)
+        {
+            wakeup.release();
+        }
+
+        private void fail(final Exception e)
+        {
+            // Only the first failure is kept, the consumer thread reconnects anyway.
+            pushFailure.compareAndSet(null, e);
+            wakeup.release();
+        }
+    }
+
+    private class DeliveryTask implements Runnable
+    {
+        private final Channel channel;
+        private final QueueingConsumer.Delivery delivery;
+
+        DeliveryTask(final Channel channel, final QueueingConsumer.Delivery delivery)
+        {
+            this.channel = channel;
+            this.delivery = delivery;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                if (!deliver(channel, delivery)) {
+                    shutdown();
+                }
+            }
+            catch (IOException ioe) {
+                LOG.warnDebug(ioe, "Worker could not process a delivery for '%s'", getName());
+            }
+            catch (RuntimeException re) {
+                LOG.warnDebug(re, "Caught an exception in a worker for '%s'", getName());
+            }
+            finally {
+                inFlight.release();
+                try {
+                    deliveryTracker.flushIfIdle();
+                }
+                catch (IOException ioe) {
+                    LOG.warnDebug(ioe, "While acknowledging a delivery for '%s'", getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Settles a delivery on the channel it was received on. A batch envelope is acknowledged once all of its messages were.
+     */
+    private class Acknowledgement
+    {
+        private final Channel channel;
+        private final long deliveryTag;
+        private final AtomicInteger parts = new AtomicInteger(1);
+        private final AtomicBoolean settled = new AtomicBoolean(false);
+
+        // Set once the callback returned. Later acks are not followed by the consumer thread, so they send due acks themselves.
+        private volatile boolean detached = false;
+
+        Acknowledgement(final Channel channel, final long deliveryTag)
+        {
+            this.channel = channel;
+            this.deliveryTag = deliveryTag;
+        }
+
+        void expect(final int count)
+        {
+            parts.set(count);
+        }
+
+        void detach()
+        {
+            detached = true;
+        }
+
+        boolean ack() throws IOException
+        {
+            if (parts.decrementAndGet() > 0) {
+                return !settled.get();
+            }
+            if (!settled.compareAndSet(false, true)) {
+                return false;
+            }
+
+            final boolean result = deliveryTracker.complete(channel, deliveryTag);
+            if (detached) {
+                deliveryTracker.flushIfIdle();
+            }
+            return result;
+        }
+
+        boolean nack(final boolean requeue) throws IOException
+        {
+            if (!settled.compareAndSet(false, true)) {
+                return false;
+            }
+
+            final boolean result = deliveryTracker.reject(channel, deliveryTag, requeue);
+            if (detached) {
+                deliveryTracker.flushIfIdle();
+            }
+            return result;
+        }
+
+        /**
+         * Publishes the delivery to its retry queue, on the channel it was received on, and acknowledges it. If it can not
+         * be published, it is rejected.
+         */
+        boolean retry(final RetryPolicy policy, final QueueingConsumer.Delivery delivery) throws IOException
+        {
+            if (!settled.compareAndSet(false, true)) {
+                return false;
+            }
+
+            try {
+                policy.republish(channel, delivery.getProperties(), delivery.getBody());
+            }
+            catch (IOException ioe) {
+                deliveryTracker.reject(channel, deliveryTag, failureRequeue);
+                throw ioe;
+            }
+
+            final boolean result = deliveryTracker.complete(channel, deliveryTag);
+            if (detached) {
+                deliveryTracker.flushIfIdle();
+            }
+            return result;
+        }
+    }
+
+    private static class Handle implements DeliveryHandle
+    {
+        private final Acknowledgement acknowledgement;
+        private final QueueingConsumer.Delivery delivery;
+        private final AtomicBoolean settled = new AtomicBoolean(false);
+
+        Handle(final Acknowledgement acknowledgement, final QueueingConsumer.Delivery delivery)
+        {
+            this.acknowledgement = acknowledgement;
+            this.delivery = delivery;
+        }
+
+        @Override
+        public QueueingConsumer.Delivery getDelivery()
+        {
+            return delivery;
+        }
+
+        @Override
+        public boolean ack() throws IOException
+        {
+            return settled.compareAndSet(false, true) && acknowledgement.ack();
+        }
+
+        @Override
+        public boolean nack(final boolean requeue) throws IOException
+        {
+            return settled.compareAndSet(false, true) && acknowledgement.nack(requeue);
+        }
+
+        @Override
+        public boolean isSettled()
+        {
+            return settled.get();
+        }
+    }
 }
@@ -15,18 +15,35 @@
  */
 package com.nesscomputing.amqp;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.skife.config.TimeSpan;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.nesscomputing.amqp.PublisherCallback.PublisherData;
 import com.nesscomputing.logging.Log;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConnectionFactory;
 
 /**
@@ -34,12 +51,70 @@ import com.rabbitmq.client.ConnectionFactory;
  */
 public abstract class AbstractPublisher<T>  extends AbstractAmqpRunnable
 {
+    private static final int REPLAY_CHUNK = 256;
+
+    // A rate limited publisher only sleeps once it is at least this much ahead of its rates.
+    private static final long MIN_THROTTLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    // Spilled messages are not tracked individually once they are replayed.
+    private static final ConfirmTracker.Confirmable SPILLED = new ConfirmTracker.Confirmable() {
+        @Override
+        public void complete(final boolean acked) {
+        }
+
+        @Override
+        public void fail(final Throwable t) {
+        }
+    };
+
     protected final Log LOG = Log.forClass(this.getClass());
 
-    private final BlockingQueue<T> messageQueue;
+    private final BlockingQueue<PublisherEntry<T>> messageQueue;
+
+    // Null unless the publisher has more than one priority lane.
+    private final PriorityLaneQueue<PublisherEntry<T>> laneQueue;
+    private final AtomicReferenceArray<LaneProperties> laneProperties;
     private final TimeSpan tickTimeout;
     private final TimeSpan transmitTimeout;
 
+    private final Queue<PublisherEntry<T>> batch;
+    private final int batchSize;
+    private final long batchLingerNanos;
+
+    // Null unless the messages of a batch are packed into envelopes.
+    private final BatchEnvelope envelope;
+    private final List<PublisherEntry<T>> envelopeEntries;
+
+    private final boolean confirms;
+    private volatile ConfirmTracker confirmTracker = null;
+
+    // Messages sent in the current transaction, guarded by publishLock.
+    private final boolean transactions;
+    private final List<ConfirmTracker.Confirmable> uncommitted = new ArrayList<ConfirmTracker.Confirmable>();
+    private final AtomicLong commitCount = new AtomicLong(0L);
+    private final AtomicLong commitNanos = new AtomicLong(0L);
+    private volatile long maxCommitNanos = 0L;
+
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong droppedCount = new AtomicLong(0L);
+    private final AtomicLong evictedCount = new AtomicLong(0L);
+    private final AtomicLong callerRunsCount = new AtomicLong(0L);
+
+    private final SpillJournal spillJournal;
+    private final AtomicLong spilledCount = new AtomicLong(0L);
+
+    // Null if the rate is not limited.
+    private final TokenBucket messageBucket;
+    private final TokenBucket byteBucket;
+    private final AtomicLong throttledCount = new AtomicLong(0L);
+    private final AtomicLong throttledNanos = new AtomicLong(0L);
+
+    // Null if the publisher thread encodes the messages itself.
+    private final PublisherEncoder<T> encoder;
+
+    // Serializes the publisher thread with callers that publish themselves (CALLER_RUNS).
+    private final Object publishLock = new Object();
+
     private final PublisherCallback<? super T> publisherCallback;
 
     protected AbstractPublisher(@Nonnull final ConnectionFactory connectionFactory,
@@ -48,21 +123,168 @@ public abstract class AbstractPublisher<T>  extends AbstractAmqpRunnable
                                 @Nonnull final PublisherCallback<? super T> publisherCallback)
 
     {
-        super(connectionFactory, amqpConfig, name);
+        this(new AmqpConnectionPool(connectionFactory, 0), amqpConfig, name, publisherCallback);
+    }
+
+    AbstractPublisher(@Nonnull final AmqpConnectionPool connectionPool,
+                      @Nonnull final AmqpConfig amqpConfig,
+                      @Nonnull final String name,
+                      @Nonnull final PublisherCallback<? super T> publisherCallback)
+    {
+        this(connectionPool, amqpConfig, name, publisherCallback, null);
+    }
+
+    /**
+     * @param coalescingKey If not null, the publisher only keeps the latest queued message for every key that this function returns.
+     */
+    AbstractPublisher(@Nonnull final AmqpConnectionPool connectionPool,
+                      @Nonnull final AmqpConfig amqpConfig,
+                      @Nonnull final String name,
+                      @Nonnull final PublisherCallback<? super T> publisherCallback,
+                      @Nullable final Function<? super T, ?> coalescingKey)
+    {
+        super(connectionPool, amqpConfig, name);
 
         this.publisherCallback = publisherCallback;
 
-        this.messageQueue = new ArrayBlockingQueue<T>(amqpConfig.getPublisherQueueLength());
+        final int lanes = amqpConfig.getPublisherPriorityLanes();
+        Preconditions.checkArgument(lanes > 0, "a publisher needs at least one priority lane!");
+
+        if (coalescingKey != null) {
+            Preconditions.checkArgument(lanes == 1, "a coalescing publisher can not have priority lanes!");
+            this.laneQueue = null;
+            this.laneProperties = null;
+            this.messageQueue = new CoalescingQueue<T>(coalescingKey, amqpConfig.getPublisherQueueLength());
+        }
+        else if (lanes > 1) {
+            this.laneQueue = new PriorityLaneQueue<PublisherEntry<T>>(amqpConfig.getPublisherQueueType(),
+                                                                      amqpConfig.getPublisherQueueLength(),
+                                                                      amqpConfig.getPublisherQueueWaitStrategy(),
+                                                                      amqpConfig.getPublisherLanePolicy(),
+                                                                      laneWeights(amqpConfig.getPublisherLaneWeights(), lanes));
+            this.laneProperties = new AtomicReferenceArray<LaneProperties>(lanes);
+            this.messageQueue = laneQueue;
+        }
+        else {
+            this.laneQueue = null;
+            this.laneProperties = null;
+            this.messageQueue = amqpConfig.getPublisherQueueType().newQueue(amqpConfig.getPublisherQueueLength(),
+                                                                             amqpConfig.getPublisherQueueWaitStrategy());
+        }
 
         this.transmitTimeout = amqpConfig.getTransmitTimeout();
         this.tickTimeout = amqpConfig.getTickTimeout();
+
+        this.batchSize = Math.max(1, amqpConfig.getPublisherBatchSize());
+        this.batchLingerNanos = TimeUnit.MILLISECONDS.toNanos(amqpConfig.getPublisherBatchLinger().getMillis());
+        this.batch = new ArrayDeque<PublisherEntry<T>>(batchSize);
+
+        final int envelopeMaxBytes = amqpConfig.getPublisherEnvelopeMaxBytes();
+        this.envelope = envelopeMaxBytes > 0 ? new BatchEnvelope(envelopeMaxBytes) : null;
+        this.envelopeEntries = new ArrayList<PublisherEntry<T>>();
+
+        this.confirms = amqpConfig.isPublisherConfirms();
+        this.transactions = amqpConfig.isPublisherTransactions();
+        Preconditions.checkArgument(!(confirms && transactions), "a publisher can not use confirms and transactions at the same time!");
+        this.overflowPolicy = amqpConfig.getPublisherOverflowPolicy();
+        // A caller would commit the transaction of the batch that the publisher thread is building.
+        Preconditions.checkArgument(!(transactions && overflowPolicy == OverflowPolicy.CALLER_RUNS), "a publisher can not use transactions with the CALLER_RUNS overflow policy!");
+
+        SpillJournal journal = null;
+        final File spillDirectory = amqpConfig.getPublisherSpillDirectory();
+        if (spillDirectory != null) {
+            try {
+                journal = SpillJournal.open(spillDirectory, name, amqpConfig.getPublisherSpillSegmentSize());
+            }
+            catch (IOException ioe) {
+                LOG.error(ioe, "Could not open spill journal in %s, not spilling messages for '%s'", spillDirectory, name);
+            }
+        }
+        this.spillJournal = journal;
+
+        final double burstSeconds = amqpConfig.getPublisherRateBurst().getMillis() / 1000.0;
+        final int rateMessages = amqpConfig.getPublisherRateMessages();
+        final long rateBytes = amqpConfig.getPublisherRateBytes();
+        this.messageBucket = rateMessages > 0 ? new TokenBucket(rateMessages, Math.max(1.0, rateMessages * burstSeconds)) : null;
+        this.byteBucket = rateBytes > 0L ? new TokenBucket(rateBytes, Math.max(1.0, rateBytes * burstSeconds)) : null;
+
+        final PublisherEncoding encoding = amqpConfig.getPublisherEncoding();
+        if (encoding != PublisherEncoding.PUBLISHER) {
+            this.encoder = new PublisherEncoder<T>(publisherCallback,
+                                                   encoding,
+                                                   amqpConfig.getPublisherEncoderThreads(),
+                                                   amqpConfig.getPublisherQueueLength(),
+                                                   name);
+        }
+        else {
+            this.encoder = null;
+        }
     }
 
+    /**
+     * Offers a message to the publisher. If a spill directory is configured, the message is written to the spill journal
+     * while the queue is full or the publisher can not reach the broker. Otherwise, if the queue is full, the configured
+     * {@link OverflowPolicy} decides what happens.
+     *
+     * @return true if the message was queued or published, false if it was dropped.
+     */
     public boolean offer(@Nonnull final T data)
+    {
+        return offer(data, 0);
+    }
+
+    /**
+     * Offers a message with a priority. If the publisher has priority lanes, the message goes into the lane for the priority
+     * (or the nearest existing one) and is sent with that priority. Otherwise the priority is ignored.
+     *
+     * @see #offer(Object)
+     */
+    public boolean offer(@Nonnull final T data, final int priority)
     {
         Preconditions.checkNotNull(data, "the message can not be null!");
 
-        return messageQueue.offer(data);
+        return enqueue(newEntry(data, null, priority));
+    }
+
+    /**
+     * Publishes a message asynchronously and returns a future for it. If the publisher runs in confirm mode, the future
+     * completes with true when the broker acked the message and with false when it nacked it. Otherwise it completes with
+     * true once the message was written to the channel. The future also completes with false if the publisher callback
+     * did not return a message to send.
+     *
+     * The future fails if the message was dropped because the queue was full, if it was lost with the channel or if the
+     * publisher was shut down before the message was sent.
+     */
+    public ListenableFuture<Boolean> publishAsync(@Nonnull final T data)
+    {
+        return publishAsync(data, 0);
+    }
+
+    /**
+     * Publishes a message with a priority asynchronously.
+     *
+     * @see #publishAsync(Object)
+     * @see #offer(Object, int)
+     */
+    public ListenableFuture<Boolean> publishAsync(@Nonnull final T data, final int priority)
+    {
+        Preconditions.checkNotNull(data, "the message can not be null!");
+
+        if (!isRunning()) {
+            return Futures.immediateFailedFuture(new IllegalStateException("publisher was shut down"));
+        }
+
+        final SettableFuture<Boolean> future = SettableFuture.create();
+        final PublisherEntry<T> entry = newEntry(data, future, priority);
+        if (!enqueue(entry)) {
+            entry.fail(new IllegalStateException("publisher queue is full"));
+        }
+        else if (!isRunning() && messageQueue.remove(entry)) {
+            // The publisher stopped while the message was queued, it may never pick it up. Anything
+            // else still queued is left to the publisher thread.
+            entry.fail(new IllegalStateException("publisher was shut down"));
+        }
+        return future;
     }
 
     public boolean offerWithTimeout(@Nonnull final T data)
@@ -70,7 +292,7 @@ public abstract class AbstractPublisher<T>  extends AbstractAmqpRunnable
         Preconditions.checkNotNull(data, "the message can not be null!");
 
         try {
-            return messageQueue.offer(data, transmitTimeout.getPeriod(), transmitTimeout.getUnit());
+            return enqueue(newEntry(data, null, 0), transmitTimeout.getPeriod(), transmitTimeout.getUnit());
         }
         catch (InterruptedException ie) {
             Thread.currentThread().interrupt();
@@ -83,7 +305,7 @@ public abstract class AbstractPublisher<T>  extends AbstractAmqpRunnable
         Preconditions.checkNotNull(data, "the message can not be null!");
 
         try {
-            return messageQueue.offer(data, timeout, unit);
+            return enqueue(newEntry(data, null, 0), timeout, unit);
         }
         catch (InterruptedException ie) {
             Thread.currentThread().interrupt();
@@ -92,11 +314,21 @@ public abstract class AbstractPublisher<T>  extends AbstractAmqpRunnable
     }
 
     public void put(@Nonnull final T data)
+    {
+        put(data, 0);
+    }
+
+    /**
+     * Puts a message with a priority onto the queue, waiting for room in its lane.
+     *
+     * @see #offer(Object, int)
+     */
+    public void put(@Nonnull final T data, final int priority)
     {
         Preconditions.checkNotNull(data, "the message can not be null!");
 
         try {
-            messageQueue.put(data);
+            enqueue(newEntry(data, null, priority), -1L, TimeUnit.MILLISECONDS);
         }
         catch (InterruptedException ie) {
             Thread.currentThread().interrupt();
@@ -113,26 +345,739 @@ public abstract class AbstractPublisher<T>  extends AbstractAmqpRunnable
         return messageQueue.isEmpty();
     }
 
+    /**
+     * Number of messages that were refused because the queue was full (DROP_NEWEST, BLOCK after the timeout, CALLER_RUNS while not connected).
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    /**
+     * Number of queued messages that were evicted to make room for newer ones (DROP_OLDEST).
+     */
+    public long getEvictedCount()
+    {
+        return evictedCount.get();
+    }
+
+    /**
+     * Number of messages that were published on the calling thread because the queue was full (CALLER_RUNS).
+     */
+    public long getCallerRunsCount()
+    {
+        return callerRunsCount.get();
+    }
+
+    /**
+     * Number of messages that were written to the spill journal.
+     */
+    public long getSpilledCount()
+    {
+        return spilledCount.get();
+    }
+
+    /**
+     * Creates the queue entry for a message. Unless the publisher thread encodes the messages, encoding starts right away.
+     */
+    private PublisherEntry<T> newEntry(final T data, @Nullable final SettableFuture<Boolean> future, final int priority)
+    {
+        final int lane = laneQueue == null ? 0 : Math.max(0, Math.min(laneQueue.getLaneCount() - 1, priority));
+        return new PublisherEntry<T>(data, future, encoder == null ? null : encoder.submit(data), lane);
+    }
+
+    /**
+     * Encodes the message of an entry from the batch. An entry without a message is completed and one that can not be
+     * encoded is failed, so it does not hold up the rest of the batch; null is returned for both.
+     */
+    @Nullable
+    private PublisherData encodeOrSettle(final PublisherEntry<T> entry) throws InterruptedException
+    {
+        try {
+            final PublisherData publisherData = encode(entry);
+            if (publisherData == null) {
+                entry.complete(false);
+            }
+            return publisherData;
+        }
+        catch (IOException ioe) {
+            LOG.warnDebug(ioe, "Could not encode message for '%s'", getName());
+            entry.fail(ioe);
+        }
+        catch (RuntimeException re) {
+            LOG.warnDebug(re, "Could not encode message for '%s'", getName());
+            entry.fail(re);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the encoded message for an entry, encoding it now if that did not happen before it was queued.
+     */
+    @Nullable
+    private PublisherData encode(final PublisherEntry<T> entry) throws IOException, InterruptedException
+    {
+        final ListenableFuture<PublisherData> encoded = entry.getEncoded();
+        final PublisherData publisherData;
+
+        if (encoded == null) {
+            publisherData = publisherCallback.publish(entry.getData());
+        }
+        else {
+            try {
+                publisherData = encoded.get();
+            }
+            catch (ExecutionException ee) {
+                Throwables.propagateIfInstanceOf(ee.getCause(), IOException.class);
+                throw Throwables.propagate(ee.getCause());
+            }
+        }
+
+        return publisherData;
+    }
+
+    /**
+     * Returns the properties to send a message with. With priority lanes, the AMQP priority of a message is set to
+     * the lane of its entry. The properties with the priority are cached per lane, so as long as the callback keeps
+     * returning the same properties, they are built only once.
+     */
+    @Nullable
+    private BasicProperties properties(final PublisherEntry<T> entry, final PublisherData publisherData) throws IOException
+    {
+        final BasicProperties properties = publisherData.getProperties();
+        final int lane = entry.getPriority();
+        if (laneQueue == null || (properties != null && properties.getPriority() != null && properties.getPriority() == lane)) {
+            return properties;
+        }
+
+        LaneProperties cached = laneProperties.get(lane);
+        if (cached == null || cached.original != properties) {
+            final BasicProperties.Builder builder = properties == null ? new BasicProperties.Builder() : properties.builder();
+            cached = new LaneProperties(properties, builder.priority(lane).build());
+            laneProperties.set(lane, cached);
+        }
+        return cached.prioritized;
+    }
+
+    /**
+     * Parses the configured lane weights, lowest lane first. Without a configuration, the weight doubles from lane to lane.
+     */
+    private static int [] laneWeights(@Nullable final String config, final int lanes)
+    {
+        final int [] weights = new int[lanes];
+
+        if (config == null) {
+            for (int i = 0; i < lanes; i++) {
+                weights[i] = 1 << Math.min(i, 30);
+            }
+            return weights;
+        }
+
+        int i = 0;
+        for (String weight : Splitter.on(',').trimResults().omitEmptyStrings().split(config)) {
+            Preconditions.checkArgument(i < lanes, "more lane weights than lanes in '%s'!", config);
+            weights[i++] = Integer.parseInt(weight);
+        }
+        Preconditions.checkArgument(i == lanes, "need %s lane weights, got '%s'!", lanes, config);
+        return weights;
+    }
+
+    /**
+     * Number of times the publisher paused to stay within its rate limits.
+     */
+    public long getThrottledCount()
+    {
+        return throttledCount.get();
+    }
+
+    /**
+     * Total time in milliseconds that the publisher paused to stay within its rate limits.
+     */
+    public long getThrottledMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+    }
+
+    /**
+     * Number of transactions that a publisher in transaction mode committed.
+     */
+    public long getCommitCount()
+    {
+        return commitCount.get();
+    }
+
+    /**
+     * Average time in microseconds that a commit took.
+     */
+    public long getAverageCommitMicros()
+    {
+        final long count = commitCount.get();
+        return count == 0L ? 0L : TimeUnit.NANOSECONDS.toMicros(commitNanos.get() / count);
+    }
+
+    /**
+     * Longest time in microseconds that a commit took.
+     */
+    public long getMaxCommitMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(maxCommitNanos);
+    }
+
+    private boolean enqueue(final PublisherEntry<T> entry)
+    {
+        if (queueOrSpill(entry)) {
+            return true;
+        }
+
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                // Other producers may grab the freed slot, so evict until the message fits or the queue is drained.
+                PublisherEntry<T> evicted;
+                while ((evicted = laneQueue != null ? laneQueue.evict(entry) : messageQueue.poll()) != null) {
+                    evictedCount.incrementAndGet();
+                    evicted.fail(new IllegalStateException("message was evicted from the full publisher queue"));
+                    if (messageQueue.offer(entry)) {
+                        return true;
+                    }
+                }
+                if (messageQueue.offer(entry)) {
+                    return true;
+                }
+                break;
+
+            case BLOCK:
+                try {
+                    if (messageQueue.offer(entry, transmitTimeout.getPeriod(), transmitTimeout.getUnit())) {
+                        return true;
+                    }
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                break;
+
+            case CALLER_RUNS:
+                if (callerRuns(entry)) {
+                    callerRunsCount.incrementAndGet();
+                    return true;
+                }
+                break;
+
+            default:
+                break;
+        }
+
+        droppedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Queues a message, waiting up to the timeout for room in the queue. A negative timeout waits until there is room.
+     */
+    private boolean enqueue(final PublisherEntry<T> entry, final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        if (queueOrSpill(entry)) {
+            return true;
+        }
+
+        if (timeout < 0L) {
+            messageQueue.put(entry);
+            return true;
+        }
+        else if (messageQueue.offer(entry, timeout, unit)) {
+            return true;
+        }
+
+        droppedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Puts a message into the queue or the spill journal without waiting.
+     */
+    private boolean queueOrSpill(final PublisherEntry<T> entry)
+    {
+        // Messages with a future are never spilled, the future could not survive a restart.
+        final boolean spillable = spillJournal != null && entry.getFuture() == null;
+
+        // As long as there are spilled messages, new messages go to the journal too, so they do not overtake them.
+        if (spillable && (isBackingOff() || !spillJournal.isEmpty())) {
+            return spill(entry);
+        }
+        return messageQueue.offer(entry) || (spillable && spill(entry));
+    }
+
+    /**
+     * Publishes a message on the calling thread. Only done while the publisher is connected, the calling
+     * thread never opens a channel itself.
+     */
+    private boolean callerRuns(final PublisherEntry<T> entry)
+    {
+        if (!isConnected()) {
+            return false;
+        }
+
+        try {
+            final PublisherData publisherData = encode(entry);
+
+            if (publisherData == null) {
+                entry.complete(false);
+                return true;
+            }
+
+            synchronized (publishLock) {
+                if (!isConnected()) {
+                    return false;
+                }
+                publishEntry(entry, publisherData, properties(entry, publisherData));
+                commit();
+            }
+            return true;
+        }
+        catch (IOException ioe) {
+            LOG.warnDebug(ioe, "Could not publish message on the calling thread");
+            return false;
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Encodes a message, unless that already happened, and appends it to the spill journal.
+     */
+    private boolean spill(final PublisherEntry<T> entry)
+    {
+        try {
+            final PublisherData publisherData = encode(entry);
+
+            if (publisherData == null) {
+                // Nothing to send, the message is done without taking room in the journal.
+                return true;
+            }
+            if (spillJournal.append(properties(entry, publisherData), publisherData.getData())) {
+                spilledCount.incrementAndGet();
+                return true;
+            }
+        }
+        catch (IOException ioe) {
+            LOG.warnDebug(ioe, "Could not spill message for '%s'", getName());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
     @Override
     protected boolean process() throws IOException, InterruptedException
     {
         // Only connect the transmitter if lazy-connect is false.
         if (!getConfig().isLazyTransmitterConnect()) {
-            channelConnect();
+            synchronized (publishLock) {
+                channelConnect();
+            }
+        }
+
+        // Leftovers from a batch that failed halfway are published before
+        // anything new is taken off the queue.
+        if (batch.isEmpty()) {
+            // The queue only holds messages older than the spilled ones, so replay once it is empty.
+            if (spillJournal != null && messageQueue.isEmpty() && !spillJournal.isEmpty()) {
+                return replaySpilled();
+            }
+            fillBatch();
         }
 
-        final T data = messageQueue.poll(tickTimeout.getPeriod(), tickTimeout.getUnit());
-        if (data != null) {
-            final PublisherData publisherData = publisherCallback.publish(data);
+        if (envelope != null) {
+            return publishEnveloped();
+        }
+
+        boolean published = false;
+        boolean healthy = true;
+
+        PublisherEntry<T> entry;
+        while ((entry = batch.peek()) != null) {
+            final PublisherData publisherData = encodeOrSettle(entry);
+            batch.poll();
 
             if (publisherData != null) {
-                publish(publisherData);
-                return getChannel().isOpen() && publisherData.isHealthy();
+                final BasicProperties properties = properties(entry, publisherData);
+                synchronized (publishLock) {
+                    publishEntry(entry, publisherData, properties);
+                }
+                published = true;
+                healthy &= publisherData.isHealthy();
+            }
+        }
+
+        if (published) {
+            synchronized (publishLock) {
+                commit();
+            }
+            return getChannel().isOpen() && healthy;
+        }
+
+        return true;
+    }
+
+    /**
+     * Packs the batch into envelopes and publishes them. An entry is taken off the batch only once it is
+     * in an envelope, so entries left over after a failed publish are sent again.
+     */
+    private boolean publishEnveloped() throws IOException, InterruptedException
+    {
+        boolean published = false;
+        boolean healthy = true;
+
+        envelope.clear();
+        envelopeEntries.clear();
+
+        PublisherEntry<T> entry;
+        while ((entry = batch.peek()) != null) {
+            final PublisherData publisherData = encodeOrSettle(entry);
+
+            if (publisherData == null) {
+                batch.poll();
+                continue;
+            }
+
+            final BasicProperties properties = properties(entry, publisherData);
+            if (!envelope.add(properties, publisherData)) {
+                healthy &= flushEnvelope();
+                published = true;
+                envelope.add(properties, publisherData);
+            }
+            envelopeEntries.add(batch.poll());
+        }
+
+        if (!envelope.isEmpty()) {
+            healthy &= flushEnvelope();
+            published = true;
+        }
+
+        if (published) {
+            synchronized (publishLock) {
+                commit();
             }
+            return getChannel().isOpen() && healthy;
         }
 
         return true;
     }
 
+    private boolean flushEnvelope() throws IOException, InterruptedException
+    {
+        try {
+            final PublisherData publisherData = envelope.build();
+            final ConfirmTracker.Confirmable confirmable = envelopeEntries.size() == 1
+                ? envelopeEntries.get(0)
+                : new EnvelopeConfirmable(ImmutableList.<ConfirmTracker.Confirmable>copyOf(envelopeEntries));
+
+            synchronized (publishLock) {
+                publishEntry(confirmable, publisherData, publisherData.getProperties());
+            }
+            return publisherData.isHealthy();
+        }
+        finally {
+            envelope.clear();
+            envelopeEntries.clear();
+        }
+    }
+
+    /**
+     * Publishes the next chunk of spilled messages. A message is removed from the journal only after it was published.
+     */
+    private boolean replaySpilled() throws IOException, InterruptedException
+    {
+        for (int i = 0; i < REPLAY_CHUNK; i++) {
+            final PublisherData publisherData = spillJournal.peek();
+            if (publisherData == null) {
+                break;
+            }
+
+            synchronized (publishLock) {
+                publishEntry(SPILLED, publisherData, publisherData.getProperties());
+                // In a transaction, a message is only sent once it was committed.
+                commit();
+            }
+            spillJournal.remove();
+        }
+
+        final Channel channel = getChannel();
+        return channel == null || channel.isOpen();
+    }
+
+    /**
+     * Waits up to a tick for the first message, then drains everything that is already
+     * queued (up to the batch size). If a linger time is configured, keep waiting for more
+     * messages until either the batch is full or the linger time is up.
+     */
+    private void fillBatch() throws InterruptedException
+    {
+        final PublisherEntry<T> first = messageQueue.poll(tickTimeout.getPeriod(), tickTimeout.getUnit());
+        if (first == null) {
+            return;
+        }
+
+        batch.add(first);
+
+        if (batchSize > 1) {
+            messageQueue.drainTo(batch, batchSize - 1);
+
+            if (batchLingerNanos > 0L) {
+                final long deadline = System.nanoTime() + batchLingerNanos;
+                long remaining;
+
+                while (batch.size() < batchSize && (remaining = deadline - System.nanoTime()) > 0L) {
+                    final PublisherEntry<T> next = messageQueue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    messageQueue.drainTo(batch, batchSize - batch.size());
+                }
+            }
+        }
+    }
+
+    private void publishEntry(final ConfirmTracker.Confirmable entry,
+                              final PublisherData message,
+                              @Nullable final BasicProperties properties) throws IOException, InterruptedException
+    {
+        try {
+            final PublisherData publisherData = throttle(message);
+
+            if (confirms) {
+                final Channel channel = channelConnect();
+                final ConfirmTracker tracker = confirmTracker;
+
+                // Wait for room in the confirm window. If the channel dies meanwhile, no more
+                // confirms will arrive, so give up and let the runnable reconnect.
+                while (!tracker.acquire(tickTimeout.getPeriod(), tickTimeout.getUnit())) {
+                    if (!channel.isOpen()) {
+                        throw new IOException("Channel closed while waiting for publisher confirms");
+                    }
+                }
+
+                tracker.register(channel.getNextPublishSeqNo(), entry);
+                publish(publisherData, properties);
+            }
+            else if (transactions) {
+                publish(publisherData, properties);
+                uncommitted.add(entry);
+            }
+            else {
+                publish(publisherData, properties);
+                entry.complete(true);
+            }
+        }
+        catch (IOException ioe) {
+            entry.fail(ioe);
+            throw ioe;
+        }
+        catch (InterruptedException ie) {
+            entry.fail(ie);
+            throw ie;
+        }
+    }
+
+    /**
+     * Takes the tokens for a message from the rate limits and waits if the publisher got too far ahead.
+     * Small debts are carried over to the next message, so the publisher does not sleep for every message.
+     */
+    private PublisherData throttle(final PublisherData publisherData) throws IOException, InterruptedException
+    {
+        if (messageBucket == null && byteBucket == null) {
+            return publisherData;
+        }
+
+        long waitNanos = 0L;
+        PublisherData result = publisherData;
+
+        if (messageBucket != null) {
+            waitNanos = messageBucket.take(1L);
+        }
+
+        if (byteBucket != null) {
+            final byte [] body = publisherData.getData();
+            if (!(publisherData instanceof EncodedPublisherData)) {
+                // Keep the body, the message would be serialized a second time otherwise.
+                result = new EncodedPublisherData(publisherData.getProperties(), body, publisherData.isHealthy());
+            }
+            waitNanos = Math.max(waitNanos, byteBucket.take(body.length));
+        }
+
+        if (waitNanos >= MIN_THROTTLE_NANOS) {
+            throttledCount.incrementAndGet();
+            throttledNanos.addAndGet(waitNanos);
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+
+        return result;
+    }
+
+    /**
+     * Commits the current transaction and completes the messages in it. Must be called with the publish lock held.
+     */
+    private void commit() throws IOException
+    {
+        if (!transactions || uncommitted.isEmpty()) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+        try {
+            getChannel().txCommit();
+        }
+        catch (IOException ioe) {
+            failUncommitted(ioe);
+            throw ioe;
+        }
+
+        final long elapsed = System.nanoTime() - start;
+        commitCount.incrementAndGet();
+        commitNanos.addAndGet(elapsed);
+        if (elapsed > maxCommitNanos) {
+            maxCommitNanos = elapsed;
+        }
+
+        for (ConfirmTracker.Confirmable entry : uncommitted) {
+            entry.complete(true);
+        }
+        uncommitted.clear();
+    }
+
+    private void failUncommitted(final Throwable t)
+    {
+        for (ConfirmTracker.Confirmable entry : uncommitted) {
+            entry.fail(t);
+        }
+        uncommitted.clear();
+    }
+
+    @Override
+    protected void connectCallback(@Nonnull final Channel channel) throws IOException
+    {
+        if (transactions) {
+            channel.txSelect();
+        }
+
+        if (confirms) {
+            final ConfirmTracker tracker = new ConfirmTracker(getConfig().getPublisherConfirmWindow());
+            channel.confirmSelect();
+            channel.addConfirmListener(tracker);
+            confirmTracker = tracker;
+        }
+    }
+
+    @Override
+    protected void disconnectCallback(@Nullable final Channel channel)
+    {
+        final ConfirmTracker tracker = confirmTracker;
+        if (tracker != null) {
+            confirmTracker = null;
+            tracker.failAll(new IOException("Channel closed before the broker confirmed the message"));
+        }
+
+        if (transactions) {
+            synchronized (publishLock) {
+                failUncommitted(new IOException("Channel closed before the transaction was committed"));
+            }
+        }
+    }
+
+    @Override
+    protected void stopCallback()
+    {
+        final IllegalStateException shutdown = new IllegalStateException("publisher was shut down");
+        PublisherEntry<T> entry;
+        while ((entry = batch.poll()) != null) {
+            entry.fail(shutdown);
+        }
+        failQueued();
+
+        if (encoder != null) {
+            encoder.close();
+        }
+
+        if (spillJournal != null) {
+            try {
+                spillJournal.close();
+            }
+            catch (IOException ioe) {
+                LOG.warnDebug(ioe, "While closing spill journal for '%s'", getName());
+            }
+        }
+    }
+
+    /**
+     * Fails all messages that are still queued, used once the publisher thread is gone.
+     */
+    private void failQueued()
+    {
+        final IllegalStateException shutdown = new IllegalStateException("publisher was shut down");
+        PublisherEntry<T> entry;
+        while ((entry = messageQueue.poll()) != null) {
+            entry.fail(shutdown);
+        }
+    }
+
     protected abstract void publish(PublisherData publisherData) throws IOException;
+
+    /**
+     * Publishes a message with the given properties instead of its own, e.g. with the priority of its lane. Publishers
+     * that hand properties and body to the channel separately override this, so the message is not copied.
+     */
+    protected void publish(@Nonnull final PublisherData publisherData, @Nullable final BasicProperties properties) throws IOException
+    {
+        if (properties == publisherData.getProperties()) {
+            publish(publisherData);
+        }
+        else {
+            publish(new EncodedPublisherData(properties, publisherData.getData(), publisherData.isHealthy()));
+        }
+    }
+
+    /**
+     * Confirms all messages of an envelope at once.
+     */
+    private static final class EnvelopeConfirmable implements ConfirmTracker.Confirmable
+    {
+        private final List<ConfirmTracker.Confirmable> entries;
+
+        EnvelopeConfirmable(final List<ConfirmTracker.Confirmable> entries)
+        {
+            this.entries = entries;
+        }
+
+        @Override
+        public void complete(final boolean acked)
+        {
+            for (ConfirmTracker.Confirmable entry : entries) {
+                entry.complete(acked);
+            }
+        }
+
+        @Override
+        public void fail(final Throwable t)
+        {
+            for (ConfirmTracker.Confirmable entry : entries) {
+                entry.fail(t);
+            }
+        }
+    }
+
+    private static final class LaneProperties
+    {
+        private final BasicProperties original;
+        private final BasicProperties prioritized;
+
+        LaneProperties(final BasicProperties original, final BasicProperties prioritized)
+        {
+            this.original = original;
+            this.prioritized = prioritized;
+        }
+    }
 }
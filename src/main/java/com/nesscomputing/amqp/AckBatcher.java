@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Collects the delivery tags of processed messages and acknowledges them with a single multiple ack once
+ * enough messages were processed or the oldest pending ack has waited long enough.
+ *
+ * Not thread safe. Deliveries must be acknowledged in the order in which they were received, because a multiple
+ * ack covers every delivery up to its tag; see {@link DeliveryTracker} for deliveries that complete out of order.
+ */
+final class AckBatcher
+{
+    private final int batchSize;
+    private final long lingerNanos;
+
+    private int pending = 0;
+    private long lastTag = 0L;
+    private long deadline = 0L;
+    private long ackCount = 0L;
+
+    AckBatcher(final int batchSize, final long lingerNanos)
+    {
+        Preconditions.checkArgument(lingerNanos >= 0L, "the linger time can not be negative!");
+
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerNanos = lingerNanos;
+    }
+
+    /**
+     * Acknowledges a delivery, either right away or together with the next ones.
+     */
+    void ack(@Nonnull final Channel channel, final long deliveryTag) throws IOException
+    {
+        ack(channel, deliveryTag, 1);
+    }
+
+    /**
+     * Acknowledges a number of deliveries up to and including the given delivery tag.
+     */
+    void ack(@Nonnull final Channel channel, final long deliveryTag, final int count) throws IOException
+    {
+        if (pending == 0) {
+            deadline = System.nanoTime() + lingerNanos;
+        }
+        pending += count;
+        lastTag = deliveryTag;
+
+        // Without a linger time, the consumer sends the acks as soon as no more deliveries are waiting.
+        if (pending >= batchSize || (lingerNanos > 0L && System.nanoTime() - deadline >= 0L)) {
+            flush(channel);
+        }
+    }
+
+    /**
+     * Sends the pending acks if the linger time is up. Called when no delivery arrived in time.
+     */
+    void flushIfDue(@Nonnull final Channel channel) throws IOException
+    {
+        if (pending > 0 && System.nanoTime() - deadline >= 0L) {
+            flush(channel);
+        }
+    }
+
+    /**
+     * Sends all pending acks.
+     */
+    void flush(@Nonnull final Channel channel) throws IOException
+    {
+        if (pending > 0) {
+            channel.basicAck(lastTag, pending > 1);
+            ackCount++;
+            pending = 0;
+        }
+    }
+
+    /**
+     * Forgets the pending acks. Delivery tags are only valid on the channel that they were received on, so the broker
+     * redelivers those messages after a reconnect.
+     */
+    void reset()
+    {
+        pending = 0;
+    }
+
+    /**
+     * How long to wait for the next delivery, so that the pending acks are sent in time.
+     */
+    long getWaitMillis(final long tickMillis)
+    {
+        if (pending == 0) {
+            return tickMillis;
+        }
+        final long remaining = deadline - System.nanoTime();
+        return remaining <= 0L ? 0L : Math.min(tickMillis, TimeUnit.NANOSECONDS.toMillis(remaining) + 1L);
+    }
+
+    long getLingerMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(lingerNanos);
+    }
+
+    int getPendingCount()
+    {
+        return pending;
+    }
+
+    /**
+     * Number of ack frames sent to the broker.
+     */
+    long getAckCount()
+    {
+        return ackCount;
+    }
+}
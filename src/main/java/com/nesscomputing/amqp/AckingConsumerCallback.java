@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Acknowledges every message that a {@link ConsumerCallback} processed without an exception.
+ */
+final class AckingConsumerCallback implements DeliveryHandleCallback
+{
+    private final ConsumerCallback consumerCallback;
+
+    AckingConsumerCallback(@Nonnull final ConsumerCallback consumerCallback)
+    {
+        Preconditions.checkNotNull(consumerCallback, "the callback can not be null!");
+        this.consumerCallback = consumerCallback;
+    }
+
+    @Override
+    public boolean withDelivery(@Nonnull final DeliveryHandle handle) throws IOException
+    {
+        final boolean result = consumerCallback.withDelivery(handle.getDelivery());
+        handle.ack();
+        return result;
+    }
+}
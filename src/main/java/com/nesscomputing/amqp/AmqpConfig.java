@@ -15,6 +15,7 @@
  */
 package com.nesscomputing.amqp;
 
+import java.io.File;
 import java.net.URI;
 
 import org.skife.config.Config;
@@ -71,6 +72,31 @@ public abstract class AmqpConfig
         return "default";
     }
 
+    /**
+     * Number of broker connections that all runnables created by the same factory share. Every
+     * runnable opens its own channel on one of them. 0 opens a separate connection per runnable.
+     * On a shared connection, a connection failure or a flow control block hits all of its runnables.
+     */
+    @Config({"ness.amqp.${name}.connection-pool-size", "ness.amqp.connection-pool-size"})
+    @Default("0")
+    public int getConnectionPoolSize()
+    {
+        return 0;
+    }
+
+    /**
+     * Whether the runnables that the factory starts, the shards of sharded publishers, the consumers of consumer groups and
+     * the workers of consumers run on virtual threads. Needs a Java runtime with virtual threads, otherwise platform threads
+     * are used. With virtual threads, every delivery gets its own worker thread, so up to consumer-worker-backlog deliveries
+     * are processed at the same time; consumer-worker-threads only turns the workers on.
+     */
+    @Config({"ness.amqp.${name}.virtual-threads", "ness.amqp.virtual-threads"})
+    @Default("false")
+    public boolean isVirtualThreads()
+    {
+        return false;
+    }
+
     /**
      * If the broker is connected, the message callback will be called after this many millis, no matter whether a message was
      * received or not.
@@ -112,10 +138,454 @@ public abstract class AmqpConfig
         return 20;
     }
 
+    /**
+     * Queue implementation that hands messages from the producers to the publisher thread.
+     */
+    @Config({"ness.amqp.${name}.publisher-queue-type", "ness.amqp.publisher-queue-type"})
+    @Default("ARRAY")
+    public PublisherQueueType getPublisherQueueType()
+    {
+        return PublisherQueueType.ARRAY;
+    }
+
+    /**
+     * How threads wait on a full or empty publisher queue if the queue type is RING.
+     */
+    @Config({"ness.amqp.${name}.publisher-queue-wait-strategy", "ness.amqp.publisher-queue-wait-strategy"})
+    @Default("PARK")
+    public WaitStrategy getPublisherQueueWaitStrategy()
+    {
+        return WaitStrategy.PARK;
+    }
+
+    /**
+     * Maximum number of messages that the publisher thread drains from its internal
+     * queue and publishes back to back in a single pass. 1 publishes every message
+     * on its own.
+     */
+    @Config({"ness.amqp.${name}.publisher-batch-size", "ness.amqp.publisher-batch-size"})
+    @Default("1")
+    public int getPublisherBatchSize()
+    {
+        return 1;
+    }
+
+    /**
+     * Maximum amount of time that the publisher thread waits for a batch to fill up
+     * after the first message of the batch was received. 0 publishes whatever
+     * is queued right away.
+     */
+    @Config({"ness.amqp.${name}.publisher-batch-linger", "ness.amqp.publisher-batch-linger"})
+    @Default("0ms")
+    public TimeSpan getPublisherBatchLinger()
+    {
+        return new TimeSpan("0ms");
+    }
+
+    /**
+     * Number of priority lanes of a publisher. Every lane is a queue of its own with the configured
+     * queue length, and messages in a lane are sent with the lane number (0 is the lowest) as their
+     * AMQP priority. 1 uses a single queue and leaves the message priority alone.
+     */
+    @Config({"ness.amqp.${name}.publisher-priority-lanes", "ness.amqp.publisher-priority-lanes"})
+    @Default("1")
+    public int getPublisherPriorityLanes()
+    {
+        return 1;
+    }
+
+    /**
+     * How a publisher with more than one priority lane picks the next message.
+     */
+    @Config({"ness.amqp.${name}.publisher-lane-policy", "ness.amqp.publisher-lane-policy"})
+    @Default("STRICT")
+    public LanePolicy getPublisherLanePolicy()
+    {
+        return LanePolicy.STRICT;
+    }
+
+    /**
+     * Comma separated weights of the priority lanes for the WEIGHTED lane policy, from the lowest
+     * to the highest lane. If unset, every lane gets twice the weight of the lane below it.
+     */
+    @Config({"ness.amqp.${name}.publisher-lane-weights", "ness.amqp.publisher-lane-weights"})
+    @DefaultNull
+    public String getPublisherLaneWeights()
+    {
+        return null;
+    }
+
+    /**
+     * If larger than 0, the publisher packs the messages of a batch (see publisher-batch-size
+     * and publisher-batch-linger) into envelopes of up to this many bytes and sends every
+     * envelope as a single AMQP message. Consumers unpack envelopes transparently.
+     */
+    @Config({"ness.amqp.${name}.publisher-envelope-max-bytes", "ness.amqp.publisher-envelope-max-bytes"})
+    @Default("0")
+    public int getPublisherEnvelopeMaxBytes()
+    {
+        return 0;
+    }
+
+    /**
+     * Which thread encodes the messages of a publisher. With CALLER or POOL, the publisher thread
+     * only writes messages that are already encoded.
+     */
+    @Config({"ness.amqp.${name}.publisher-encoding", "ness.amqp.publisher-encoding"})
+    @Default("PUBLISHER")
+    public PublisherEncoding getPublisherEncoding()
+    {
+        return PublisherEncoding.PUBLISHER;
+    }
+
+    /**
+     * Number of encoder threads of a publisher if the encoding is POOL. 0 uses one thread per processor.
+     */
+    @Config({"ness.amqp.${name}.publisher-encoder-threads", "ness.amqp.publisher-encoder-threads"})
+    @Default("0")
+    public int getPublisherEncoderThreads()
+    {
+        return 0;
+    }
+
+    /**
+     * Put the publisher channel into confirm mode. The broker then acks or nacks every
+     * message that it has taken responsibility for.
+     */
+    @Config({"ness.amqp.${name}.publisher-confirms", "ness.amqp.publisher-confirms"})
+    @Default("false")
+    public boolean isPublisherConfirms()
+    {
+        return false;
+    }
+
+    /**
+     * Maximum number of messages that a publisher in confirm mode may have sent without
+     * getting an ack or nack from the broker. When the window is full, the publisher thread
+     * waits for outstanding confirms before sending more.
+     */
+    @Config({"ness.amqp.${name}.publisher-confirm-window", "ness.amqp.publisher-confirm-window"})
+    @Default("1000")
+    public int getPublisherConfirmWindow()
+    {
+        return 1000;
+    }
+
+    /**
+     * Put the publisher channel into transaction mode. The publisher commits once after every
+     * batch (see publisher-batch-size and publisher-batch-linger), and a message counts as sent
+     * only after its transaction was committed. Can not be combined with publisher-confirms or
+     * the CALLER_RUNS publisher-overflow-policy.
+     */
+    @Config({"ness.amqp.${name}.publisher-transactions", "ness.amqp.publisher-transactions"})
+    @Default("false")
+    public boolean isPublisherTransactions()
+    {
+        return false;
+    }
+
+    /**
+     * What the publisher does with a message offered while its queue is full.
+     */
+    @Config({"ness.amqp.${name}.publisher-overflow-policy", "ness.amqp.publisher-overflow-policy"})
+    @Default("DROP_NEWEST")
+    public OverflowPolicy getPublisherOverflowPolicy()
+    {
+        return OverflowPolicy.DROP_NEWEST;
+    }
+
+    /**
+     * Directory for the spill journals of the publishers. If set, a publisher writes messages to a journal on local disk
+     * while its queue is full or it can not reach the broker, and replays them once it is connected again.
+     */
+    @Config({"ness.amqp.${name}.publisher-spill-directory", "ness.amqp.publisher-spill-directory"})
+    @DefaultNull
+    public File getPublisherSpillDirectory()
+    {
+        return null;
+    }
+
+    /**
+     * Size in bytes of a spill journal segment file. A message must fit into a single segment to be spilled.
+     */
+    @Config({"ness.amqp.${name}.publisher-spill-segment-size", "ness.amqp.publisher-spill-segment-size"})
+    @Default("16777216")
+    public int getPublisherSpillSegmentSize()
+    {
+        return 16777216;
+    }
+
+    /**
+     * Maximum number of messages per second that a publisher sends. 0 does not limit the message rate.
+     */
+    @Config({"ness.amqp.${name}.publisher-rate-messages", "ness.amqp.publisher-rate-messages"})
+    @Default("0")
+    public int getPublisherRateMessages()
+    {
+        return 0;
+    }
+
+    /**
+     * Maximum number of body bytes per second that a publisher sends. 0 does not limit the byte rate.
+     */
+    @Config({"ness.amqp.${name}.publisher-rate-bytes", "ness.amqp.publisher-rate-bytes"})
+    @Default("0")
+    public long getPublisherRateBytes()
+    {
+        return 0L;
+    }
+
+    /**
+     * How far a rate limited publisher may run ahead of its rates, e.g. after it was idle. The
+     * publisher may send this much worth of messages and bytes back to back.
+     */
+    @Config({"ness.amqp.${name}.publisher-rate-burst", "ness.amqp.publisher-rate-burst"})
+    @Default("100ms")
+    public TimeSpan getPublisherRateBurst()
+    {
+        return new TimeSpan("100ms");
+    }
+
+    /**
+     * Maximum number of unacknowledged messages that the broker sends to a consumer. 0 does not limit
+     * the number of messages.
+     */
+    @Config({"ness.amqp.${name}.consumer-prefetch-count", "ness.amqp.consumer-prefetch-count"})
+    @Default("0")
+    public int getConsumerPrefetchCount()
+    {
+        return 0;
+    }
+
+    /**
+     * Maximum number of bytes of unacknowledged messages that the broker sends to a consumer. 0 does
+     * not limit the size.
+     */
+    @Config({"ness.amqp.${name}.consumer-prefetch-size", "ness.amqp.consumer-prefetch-size"})
+    @Default("0")
+    public int getConsumerPrefetchSize()
+    {
+        return 0;
+    }
+
+    /**
+     * Number of messages that a consumer acknowledges with a single ack. 1 acknowledges every message
+     * on its own. Should not be larger than the prefetch count, otherwise the batch only gets acknowledged
+     * when the ack linger time is up.
+     */
+    @Config({"ness.amqp.${name}.consumer-ack-batch-size", "ness.amqp.consumer-ack-batch-size"})
+    @Default("1")
+    public int getConsumerAckBatchSize()
+    {
+        return 1;
+    }
+
+    /**
+     * Maximum amount of time that a consumer holds back the ack for a message that it has processed
+     * while it waits for the ack batch to fill up. 0 sends the pending acks as soon as no more
+     * messages are waiting.
+     */
+    @Config({"ness.amqp.${name}.consumer-ack-linger", "ness.amqp.consumer-ack-linger"})
+    @Default("100ms")
+    public TimeSpan getConsumerAckLinger()
+    {
+        return new TimeSpan("100ms");
+    }
+
+    /**
+     * Maximum number of messages that a consumer with a batch callback hands over at once.
+     */
+    @Config({"ness.amqp.${name}.consumer-batch-size", "ness.amqp.consumer-batch-size"})
+    @Default("100")
+    public int getConsumerBatchSize()
+    {
+        return 100;
+    }
+
+    /**
+     * Maximum amount of time that a consumer with a batch callback waits for a batch to fill up after the
+     * first message of the batch was received.
+     */
+    @Config({"ness.amqp.${name}.consumer-batch-wait", "ness.amqp.consumer-batch-wait"})
+    @Default("100ms")
+    public TimeSpan getConsumerBatchWait()
+    {
+        return new TimeSpan("100ms");
+    }
+
+    /**
+     * Whether messages that a consumer callback failed to process (it threw an exception) are requeued. By default
+     * the broker drops them, or dead-letters them if the queue has a dead letter exchange. A requeued message that
+     * keeps failing comes back over and over. Queue consumers with consumer-retry-delays send failed messages to their
+     * retry queues instead.
+     */
+    @Config({"ness.amqp.${name}.consumer-failure-requeue", "ness.amqp.consumer-failure-requeue"})
+    @Default("false")
+    public boolean isConsumerFailureRequeue()
+    {
+        return false;
+    }
+
+    /**
+     * Comma separated delays (e.g. "1s,30s,5m") after which a queue consumer retries messages that its callback failed to process.
+     * For every delay, the consumer declares a retry queue with that message TTL, which dead-letters the messages back to the
+     * consumed queue. The n-th retry of a message uses the n-th delay, or the last one. Not set turns retries off. Exchange
+     * consumers do not retry, because their queues do not outlive the connection.
+     */
+    @Config({"ness.amqp.${name}.consumer-retry-delays", "ness.amqp.consumer-retry-delays"})
+    @DefaultNull
+    public String getConsumerRetryDelays()
+    {
+        return null;
+    }
+
+    /**
+     * Number of times that a queue consumer with consumer-retry-delays retries a failed message. A message that still fails
+     * is moved to the parking queue, named after the consumed queue with ".parking" appended.
+     */
+    @Config({"ness.amqp.${name}.consumer-retry-max-attempts", "ness.amqp.consumer-retry-max-attempts"})
+    @Default("3")
+    public int getConsumerRetryMaxAttempts()
+    {
+        return 3;
+    }
+
+    /**
+     * How a consumer receives its deliveries. PUSH saves a queue and a thread hand-off for every delivery,
+     * but runs the callback on a thread of the connection, which is shared with the other consumers on it. Slow
+     * callbacks should use worker threads.
+     */
+    @Config({"ness.amqp.${name}.consumer-dispatch", "ness.amqp.consumer-dispatch"})
+    @Default("POLL")
+    public ConsumerDispatch getConsumerDispatch()
+    {
+        return ConsumerDispatch.POLL;
+    }
+
+    /**
+     * Number of worker threads that process the deliveries of a consumer. 0 processes every delivery
+     * on the consumer thread.
+     */
+    @Config({"ness.amqp.${name}.consumer-worker-threads", "ness.amqp.consumer-worker-threads"})
+    @Default("0")
+    public int getConsumerWorkerThreads()
+    {
+        return 0;
+    }
+
+    /**
+     * Maximum number of deliveries that a consumer with worker threads has in flight. The consumer
+     * stops taking deliveries while this many are processed or waiting for a worker.
+     */
+    @Config({"ness.amqp.${name}.consumer-worker-backlog", "ness.amqp.consumer-worker-backlog"})
+    @Default("1000")
+    public int getConsumerWorkerBacklog()
+    {
+        return 1000;
+    }
+
+    /**
+     * Which deliveries a consumer with worker threads processes in order: "routing-key" orders the deliveries
+     * with the same routing key, "header:&lt;name&gt;" the ones with the same value of a message header.
+     * Deliveries without a key are processed in any order. Ignored if the consumer was given a key function.
+     */
+    @Config({"ness.amqp.${name}.consumer-worker-order-key", "ness.amqp.consumer-worker-order-key"})
+    @DefaultNull
+    public String getConsumerWorkerOrderKey()
+    {
+        return null;
+    }
+
+    /**
+     * Number of serial stripes that the keys of ordered deliveries are spread over. Deliveries whose keys share
+     * a stripe are processed in order as well, so more stripes allow more deliveries to be processed at the same time.
+     */
+    @Config({"ness.amqp.${name}.consumer-worker-stripes", "ness.amqp.consumer-worker-stripes"})
+    @Default("64")
+    public int getConsumerWorkerStripes()
+    {
+        return 64;
+    }
+
+    /**
+     * Smallest number of consumers that an autoscaling consumer group keeps running.
+     */
+    @Config({"ness.amqp.${name}.consumer-scaling-min", "ness.amqp.consumer-scaling-min"})
+    @Default("1")
+    public int getConsumerScalingMin()
+    {
+        return 1;
+    }
+
+    /**
+     * Largest number of consumers that an autoscaling consumer group starts.
+     */
+    @Config({"ness.amqp.${name}.consumer-scaling-max", "ness.amqp.consumer-scaling-max"})
+    @Default("4")
+    public int getConsumerScalingMax()
+    {
+        return 4;
+    }
+
+    /**
+     * How often an autoscaling consumer group checks the depth of its queue.
+     */
+    @Config({"ness.amqp.${name}.consumer-scaling-interval", "ness.amqp.consumer-scaling-interval"})
+    @Default("5s")
+    public TimeSpan getConsumerScalingInterval()
+    {
+        return new TimeSpan("5s");
+    }
+
+    /**
+     * Number of waiting messages per consumer on the queue above which an autoscaling consumer group adds a consumer.
+     */
+    @Config({"ness.amqp.${name}.consumer-scaling-grow-backlog", "ness.amqp.consumer-scaling-grow-backlog"})
+    @Default("1000")
+    public int getConsumerScalingGrowBacklog()
+    {
+        return 1000;
+    }
+
+    /**
+     * Number of waiting messages per consumer on the queue below which an autoscaling consumer group stops a consumer.
+     * Must be lower than the grow backlog, the gap between them keeps the group from flapping.
+     */
+    @Config({"ness.amqp.${name}.consumer-scaling-shrink-backlog", "ness.amqp.consumer-scaling-shrink-backlog"})
+    @Default("10")
+    public int getConsumerScalingShrinkBacklog()
+    {
+        return 10;
+    }
+
+    /**
+     * Number of checks in a row that must see the backlog above the grow (or below the shrink) backlog before
+     * an autoscaling consumer group changes its size.
+     */
+    @Config({"ness.amqp.${name}.consumer-scaling-samples", "ness.amqp.consumer-scaling-samples"})
+    @Default("3")
+    public int getConsumerScalingSamples()
+    {
+        return 3;
+    }
+
+    /**
+     * Prefetch count of the consumers in an autoscaling consumer group if consumer-prefetch-count is 0. The group
+     * only sees the messages that wait on the broker. Without a prefetch limit, the broker hands the whole backlog
+     * to the running consumers and the group never grows.
+     */
+    @Config({"ness.amqp.${name}.consumer-scaling-prefetch-count", "ness.amqp.consumer-scaling-prefetch-count"})
+    @Default("100")
+    public int getConsumerScalingPrefetchCount()
+    {
+        return 100;
+    }
+
     /**
      * Maximum amount of time that the transmitter tries to
      * enqueue an event onto the exchange or queue before it
-     * gives up and drops the event.
+     * gives up and drops the event. Also used by the BLOCK
+     * overflow policy.
      */
     @Config({"ness.amqp.${name}.transmit-timeout", "ness.amqp.transmit-timeout"})
     @Default("10ms")
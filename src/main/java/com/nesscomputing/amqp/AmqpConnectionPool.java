@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.nesscomputing.logging.Log;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Hands out broker connections to the AMQP runnables. Every runnable opens its own channel on
+ * the connection it gets.
+ *
+ * A pool with a size of 0 opens a new connection for every runnable and closes it when the runnable
+ * lets go of it. Otherwise the pool keeps up to size connections open and spreads the runnables over them
+ * round robin. If a shared connection is lost, its slot gets cleared, so all the runnables that had
+ * channels on it reconnect through a single new connection. Shared connections are counted per runnable that
+ * holds them and closed once the last one lets go, so they do not outlive the runnables.
+ */
+final class AmqpConnectionPool
+{
+    private static final Log LOG = Log.findLog();
+
+    private final ConnectionFactory connectionFactory;
+
+    // Guarded by connections.
+    private final Connection [] connections;
+    private final Map<Connection, Integer> users = new IdentityHashMap<Connection, Integer>();
+
+    private final AtomicInteger nextSlot = new AtomicInteger(0);
+
+    AmqpConnectionPool(@Nonnull final ConnectionFactory connectionFactory, final int size)
+    {
+        Preconditions.checkNotNull(connectionFactory, "the connection factory can not be null!");
+        Preconditions.checkArgument(size >= 0, "the pool size can not be negative!");
+
+        this.connectionFactory = connectionFactory;
+        this.connections = new Connection[size];
+    }
+
+    boolean isShared()
+    {
+        return connections.length > 0;
+    }
+
+    /**
+     * Returns an open connection to the broker. Must be given back with {@link #release(Connection)}.
+     */
+    Connection acquire() throws IOException
+    {
+        if (!isShared()) {
+            return connectionFactory.newConnection();
+        }
+
+        final int slot = (nextSlot.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+
+        synchronized (connections) {
+            Connection connection = connections[slot];
+            if (connection == null || !connection.isOpen()) {
+                connection = connectionFactory.newConnection();
+                connection.addShutdownListener(new SlotShutdownListener(slot, connection));
+                connections[slot] = connection;
+                LOG.debug("Opened shared connection %d", slot);
+            }
+
+            final Integer count = users.get(connection);
+            users.put(connection, count == null ? 1 : count + 1);
+            return connection;
+        }
+    }
+
+    /**
+     * Gives back a connection. Unshared connections are closed, shared connections stay open until the last
+     * runnable that acquired them gave them back.
+     */
+    void release(@Nullable final Connection connection)
+    {
+        if (!isShared()) {
+            AmqpUtils.closeQuietly(connection);
+            return;
+        }
+        if (connection == null) {
+            return;
+        }
+
+        synchronized (connections) {
+            final Integer count = users.get(connection);
+            if (count != null && count > 1) {
+                users.put(connection, count - 1);
+                return;
+            }
+
+            users.remove(connection);
+            for (int i = 0; i < connections.length; i++) {
+                if (connections[i] == connection) {
+                    connections[i] = null;
+                }
+            }
+        }
+
+        AmqpUtils.closeQuietly(connection);
+    }
+
+    /**
+     * Number of runnables that hold a shared connection.
+     */
+    int getUserCount()
+    {
+        synchronized (connections) {
+            int count = 0;
+            for (Integer userCount : users.values()) {
+                count += userCount;
+            }
+            return count;
+        }
+    }
+
+    private class SlotShutdownListener implements ShutdownListener
+    {
+        private final int slot;
+        private final Connection connection;
+
+        SlotShutdownListener(final int slot, final Connection connection)
+        {
+            this.slot = slot;
+            this.connection = connection;
+        }
+
+        @Override
+        public void shutdownCompleted(final ShutdownSignalException cause)
+        {
+            synchronized (connections) {
+                if (connections[slot] == connection) {
+                    connections[slot] = null;
+                }
+            }
+
+            if (!cause.isInitiatedByApplication()) {
+                LOG.warnDebug(cause, "Lost shared connection %d, all channels on it will reconnect", slot);
+            }
+        }
+    }
+}
@@ -59,6 +59,7 @@ public class AmqpModule extends AbstractModule
 
         bind(new TypeLiteral<PublisherCallback<Object>>() {}).annotatedWith(JsonMapper.class).to(JsonPublisherCallback.class).in(Scopes.SINGLETON);
         bind(new TypeLiteral<PublisherCallback<String>>() {}).to(StringPublisherCallback.class).in(Scopes.SINGLETON);
+        bind(JsonReaderCache.class).in(Scopes.SINGLETON);
 
         amqpConfig = config.getBean(AmqpConfig.class, ImmutableMap.of("name", connectionName));
         bind(AmqpConfig.class).annotatedWith(connectionNamed).toInstance(amqpConfig);
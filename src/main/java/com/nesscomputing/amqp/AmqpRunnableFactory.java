@@ -16,10 +16,16 @@
 package com.nesscomputing.amqp;
 
 import java.lang.annotation.Annotation;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
 
 import javax.annotation.Nullable;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.inject.Key;
@@ -27,6 +33,7 @@ import com.google.inject.Singleton;
 import com.nesscomputing.jackson.JsonMapper;
 
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
 
 /**
  * Factory to create new Runnables to access exchanges and queues.
@@ -37,9 +44,12 @@ public class AmqpRunnableFactory
     private final Annotation annotation;
 
     private ConnectionFactory connectionFactory;
+    private AmqpConnectionPool connectionPool;
     private AmqpConfig amqpConfig;
     private PublisherCallback<Object> jsonPublisherCallback;
     private PublisherCallback<String> stringPublisherCallback;
+    private JsonReaderCache jsonReaderCache;
+    private ThreadFactory threadFactory;
 
     AmqpRunnableFactory(@Nullable final Annotation annotation)
     {
@@ -49,7 +59,8 @@ public class AmqpRunnableFactory
     @Inject
     void inject(final Injector injector,
                 @JsonMapper final PublisherCallback<Object> jsonPublisherCallback,
-                final PublisherCallback<String> stringPublisherCallback)
+                final PublisherCallback<String> stringPublisherCallback,
+                final JsonReaderCache jsonReaderCache)
     {
         if (annotation == null) {
             this.connectionFactory = injector.getInstance(Key.get(ConnectionFactory.class));
@@ -60,8 +71,27 @@ public class AmqpRunnableFactory
             this.amqpConfig = injector.getInstance(Key.get(AmqpConfig.class, annotation));
         }
 
+        this.connectionPool = new AmqpConnectionPool(connectionFactory, amqpConfig.getConnectionPoolSize());
+        this.threadFactory = AmqpThreads.newThreadFactory(amqpConfig.isVirtualThreads(), "amqp-runnable-", false);
+
         this.jsonPublisherCallback = jsonPublisherCallback;
         this.stringPublisherCallback = stringPublisherCallback;
+        this.jsonReaderCache = jsonReaderCache;
+    }
+
+    /**
+     * Starts a runnable created by this factory on a new thread and returns the thread. Uses a virtual thread if virtual-threads
+     * is set and the Java runtime supports them, otherwise a platform thread. Virtual threads do not keep the VM alive, so the caller
+     * should hold on to the thread and join it.
+     */
+    public Thread start(final Runnable runnable)
+    {
+        Preconditions.checkState(threadFactory != null, "thread factory was never created, the factory was never injected!");
+        Preconditions.checkNotNull(runnable, "the runnable can not be null!");
+
+        final Thread thread = threadFactory.newThread(runnable);
+        thread.start();
+        return thread;
     }
 
     /**
@@ -71,7 +101,7 @@ public class AmqpRunnableFactory
     public <T> ExchangePublisher<T> createExchangePublisher(final String name, final PublisherCallback<T> messageCallback)
     {
         Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
-        return new ExchangePublisher<T>(connectionFactory, amqpConfig, name, messageCallback);
+        return new ExchangePublisher<T>(connectionPool, amqpConfig, name, messageCallback);
     }
 
     /**
@@ -81,7 +111,7 @@ public class AmqpRunnableFactory
     public <T> QueuePublisher<T> createQueuePublisher(final String name, final PublisherCallback<T> messageCallback)
     {
         Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
-        return new QueuePublisher<T>(connectionFactory, amqpConfig, name, messageCallback);
+        return new QueuePublisher<T>(connectionPool, amqpConfig, name, messageCallback);
     }
 
     /**
@@ -91,7 +121,7 @@ public class AmqpRunnableFactory
     public <T> ExchangePublisher<T> createExchangeJsonPublisher(final String name)
     {
         Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
-        return new ExchangePublisher<T>(connectionFactory, amqpConfig, name, jsonPublisherCallback);
+        return new ExchangePublisher<T>(connectionPool, amqpConfig, name, jsonPublisherCallback);
     }
 
     /**
@@ -101,7 +131,7 @@ public class AmqpRunnableFactory
     public <T> QueuePublisher<T> createQueueJsonPublisher(final String name)
     {
         Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
-        return new QueuePublisher<T>(connectionFactory, amqpConfig, name, jsonPublisherCallback);
+        return new QueuePublisher<T>(connectionPool, amqpConfig, name, jsonPublisherCallback);
     }
 
     /**
@@ -110,7 +140,7 @@ public class AmqpRunnableFactory
     public ExchangePublisher<String> createExchangeTextPublisher(final String name)
     {
         Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
-        return new ExchangePublisher<String>(connectionFactory, amqpConfig, name, stringPublisherCallback);
+        return new ExchangePublisher<String>(connectionPool, amqpConfig, name, stringPublisherCallback);
     }
 
     /**
@@ -119,7 +149,61 @@ public class AmqpRunnableFactory
     public QueuePublisher<String> createQueueTextPublisher(final String name)
     {
         Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
-        return new QueuePublisher<String>(connectionFactory, amqpConfig, name, stringPublisherCallback);
+        return new QueuePublisher<String>(connectionPool, amqpConfig, name, stringPublisherCallback);
+    }
+
+    /**
+     * Creates a new coalescing {@link ExchangePublisher}. Of all queued messages with the same key, as returned by the key function, only
+     * the latest one is sent. The queue length limits the number of distinct keys.
+     */
+    public <T> ExchangePublisher<T> createCoalescingExchangePublisher(final String name, final PublisherCallback<T> messageCallback, final Function<? super T, ?> keyFunction)
+    {
+        Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
+        Preconditions.checkNotNull(keyFunction, "the key function can not be null!");
+        return new ExchangePublisher<T>(connectionPool, amqpConfig, name, messageCallback, keyFunction);
+    }
+
+    /**
+     * Creates a new coalescing {@link QueuePublisher}. Of all queued messages with the same key, as returned by the key function, only
+     * the latest one is sent. The queue length limits the number of distinct keys.
+     */
+    public <T> QueuePublisher<T> createCoalescingQueuePublisher(final String name, final PublisherCallback<T> messageCallback, final Function<? super T, ?> keyFunction)
+    {
+        Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
+        Preconditions.checkNotNull(keyFunction, "the key function can not be null!");
+        return new QueuePublisher<T>(connectionPool, amqpConfig, name, messageCallback, keyFunction);
+    }
+
+    /**
+     * Creates a new {@link ShardedPublisher} that spreads the messages for an exchange over a number of {@link ExchangePublisher}s.
+     * Messages with the same key, as returned by the key function, are always sent by the same publisher.
+     */
+    public <T> ShardedPublisher<T> createShardedExchangePublisher(final String name, final int shards, final PublisherCallback<T> messageCallback, final Function<? super T, ?> keyFunction)
+    {
+        Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
+        Preconditions.checkArgument(shards > 0, "at least one shard is needed!");
+
+        final List<ExchangePublisher<T>> publishers = Lists.newArrayListWithCapacity(shards);
+        for (int i = 0; i < shards; i++) {
+            publishers.add(new ExchangePublisher<T>(connectionPool, amqpConfig, name, messageCallback));
+        }
+        return new ShardedPublisher<T>(name, publishers, keyFunction, AmqpThreads.newThreadFactory(amqpConfig.isVirtualThreads(), "amqp-shard-" + name + "-", false));
+    }
+
+    /**
+     * Creates a new {@link ShardedPublisher} that spreads the messages for a queue over a number of {@link QueuePublisher}s.
+     * Messages with the same key, as returned by the key function, are always sent by the same publisher.
+     */
+    public <T> ShardedPublisher<T> createShardedQueuePublisher(final String name, final int shards, final PublisherCallback<T> messageCallback, final Function<? super T, ?> keyFunction)
+    {
+        Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
+        Preconditions.checkArgument(shards > 0, "at least one shard is needed!");
+
+        final List<QueuePublisher<T>> publishers = Lists.newArrayListWithCapacity(shards);
+        for (int i = 0; i < shards; i++) {
+            publishers.add(new QueuePublisher<T>(connectionPool, amqpConfig, name, messageCallback));
+        }
+        return new ShardedPublisher<T>(name, publishers, keyFunction, AmqpThreads.newThreadFactory(amqpConfig.isVirtualThreads(), "amqp-shard-" + name + "-", false));
     }
 
     /**
@@ -129,7 +213,7 @@ public class AmqpRunnableFactory
     public ExchangeConsumer createExchangeListener(final String name, final ConsumerCallback messageCallback)
     {
         Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
-        return new ExchangeConsumer(connectionFactory, amqpConfig, name, messageCallback);
+        return new ExchangeConsumer(connectionPool, amqpConfig, name, messageCallback);
     }
 
     /**
@@ -139,6 +223,130 @@ public class AmqpRunnableFactory
     public QueueConsumer createQueueListener(final String name, final ConsumerCallback messageCallback)
     {
         Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
-        return new QueueConsumer(connectionFactory, amqpConfig, name, messageCallback);
+        return new QueueConsumer(connectionPool, amqpConfig, name, messageCallback);
+    }
+
+    /**
+     * Creates a new {@link ExchangeConsumer} that processes the messages on the given executor, or on its own worker threads
+     * if the executor is null. Messages with the same key, as returned by the key function, are processed in the order in which
+     * they were received. Without a key function, the consumer-worker-order-key setting is used.
+     */
+    public ExchangeConsumer createExchangeListener(final String name, final ConsumerCallback messageCallback, @Nullable final Executor executor, @Nullable final Function<? super Delivery, ?> keyFunction)
+    {
+        Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
+        return new ExchangeConsumer(connectionPool, amqpConfig, name, new AckingConsumerCallback(messageCallback), executor, keyFunction);
+    }
+
+    /**
+     * Creates a new {@link QueueConsumer} that processes the messages on the given executor, or on its own worker threads
+     * if the executor is null. Messages with the same key, as returned by the key function, are processed in the order in which
+     * they were received. Without a key function, the consumer-worker-order-key setting is used.
+     */
+    public QueueConsumer createQueueListener(final String name, final ConsumerCallback messageCallback, @Nullable final Executor executor, @Nullable final Function<? super Delivery, ?> keyFunction)
+    {
+        Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
+        return new QueueConsumer(connectionPool, amqpConfig, name, new AckingConsumerCallback(messageCallback), executor, keyFunction);
+    }
+
+    /**
+     * Creates a new {@link QueueConsumerGroup} that runs between consumer-scaling-min and consumer-scaling-max {@link QueueConsumer}s
+     * for the queue, depending on the number of messages waiting on it. All consumers share the callback.
+     */
+    public QueueConsumerGroup createQueueListenerGroup(final String name, final ConsumerCallback messageCallback)
+    {
+        Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
+        return new QueueConsumerGroup(connectionPool, amqpConfig, name, messageCallback);
+    }
+
+    /**
+     * Creates a new {@link ExchangeConsumer} that hands the messages received to the callback in batches, see consumer-batch-size and
+     * consumer-batch-wait. Every batch is acknowledged with a single ack.
+     */
+    public ExchangeConsumer createExchangeBatchListener(final String name, final BatchConsumerCallback batchCallback)
+    {
+        Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
+        return new ExchangeConsumer(connectionPool, amqpConfig, name, batchCallback);
+    }
+
+    /**
+     * Creates a new {@link QueueConsumer} that hands the messages received to the callback in batches, see consumer-batch-size and
+     * consumer-batch-wait. Every batch is acknowledged with a single ack.
+     */
+    public QueueConsumer createQueueBatchListener(final String name, final BatchConsumerCallback batchCallback)
+    {
+        Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
+        return new QueueConsumer(connectionPool, amqpConfig, name, batchCallback);
+    }
+
+    /**
+     * Creates a new {@link ExchangeConsumer} with a callback that acknowledges or rejects the messages itself, see {@link DeliveryHandle}.
+     */
+    public ExchangeConsumer createExchangeHandleListener(final String name, final DeliveryHandleCallback handleCallback)
+    {
+        return createExchangeHandleListener(name, handleCallback, null, null);
+    }
+
+    /**
+     * Creates a new {@link ExchangeConsumer} with a callback that acknowledges or rejects the messages itself, see {@link DeliveryHandle}.
+     * The executor and key function work as for {@link #createExchangeListener(String, ConsumerCallback, Executor, Function)}.
+     */
+    public ExchangeConsumer createExchangeHandleListener(final String name, final DeliveryHandleCallback handleCallback, @Nullable final Executor executor, @Nullable final Function<? super Delivery, ?> keyFunction)
+    {
+        Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
+        return new ExchangeConsumer(connectionPool, amqpConfig, name, handleCallback, executor, keyFunction);
+    }
+
+    /**
+     * Creates a new {@link QueueConsumer} with a callback that acknowledges or rejects the messages itself, see {@link DeliveryHandle}.
+     */
+    public QueueConsumer createQueueHandleListener(final String name, final DeliveryHandleCallback handleCallback)
+    {
+        return createQueueHandleListener(name, handleCallback, null, null);
+    }
+
+    /**
+     * Creates a new {@link QueueConsumer} with a callback that acknowledges or rejects the messages itself, see {@link DeliveryHandle}.
+     * The executor and key function work as for {@link #createQueueListener(String, ConsumerCallback, Executor, Function)}.
+     */
+    public QueueConsumer createQueueHandleListener(final String name, final DeliveryHandleCallback handleCallback, @Nullable final Executor executor, @Nullable final Function<? super Delivery, ?> keyFunction)
+    {
+        Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
+        return new QueueConsumer(connectionPool, amqpConfig, name, handleCallback, executor, keyFunction);
+    }
+
+    /**
+     * Creates a new {@link ExchangeConsumer} that decodes the JSON messages received into objects of the given type, using the Jackson object mapper.
+     */
+    public <T> ExchangeConsumer createExchangeJsonListener(final String name, final Class<T> type, final TypedConsumerCallback<? super T> messageCallback)
+    {
+        return createExchangeJsonListener(name, type, messageCallback, null);
+    }
+
+    /**
+     * Creates a new {@link ExchangeConsumer} that decodes the JSON messages received into objects of the given type, using the Jackson object mapper.
+     * Messages that the prefilter rejects are acknowledged without being decoded.
+     */
+    public <T> ExchangeConsumer createExchangeJsonListener(final String name, final Class<T> type, final TypedConsumerCallback<? super T> messageCallback, @Nullable final Predicate<? super Delivery> prefilter)
+    {
+        Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
+        return createExchangeListener(name, new JsonConsumerCallback<T>(jsonReaderCache.getReader(type), messageCallback, prefilter));
+    }
+
+    /**
+     * Creates a new {@link QueueConsumer} that decodes the JSON messages received into objects of the given type, using the Jackson object mapper.
+     */
+    public <T> QueueConsumer createQueueJsonListener(final String name, final Class<T> type, final TypedConsumerCallback<? super T> messageCallback)
+    {
+        return createQueueJsonListener(name, type, messageCallback, null);
+    }
+
+    /**
+     * Creates a new {@link QueueConsumer} that decodes the JSON messages received into objects of the given type, using the Jackson object mapper.
+     * Messages that the prefilter rejects are acknowledged without being decoded.
+     */
+    public <T> QueueConsumer createQueueJsonListener(final String name, final Class<T> type, final TypedConsumerCallback<? super T> messageCallback, @Nullable final Predicate<? super Delivery> prefilter)
+    {
+        Preconditions.checkState(connectionFactory != null, "connection factory was never injected!");
+        return createQueueListener(name, new JsonConsumerCallback<T>(jsonReaderCache.getReader(type), messageCallback, prefilter));
     }
 }
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Creates the threads for runnables and consumer workers. Uses virtual threads if they were asked for and the
+ * Java runtime has them, otherwise platform threads.
+ *
+ * Virtual threads are looked up by reflection, so that the code still runs on older runtimes.
+ */
+final class AmqpThreads
+{
+    private static final Log LOG = Log.findLog();
+
+    // All null if the runtime has no virtual threads.
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    private static final AtomicBoolean WARNED = new AtomicBoolean(false);
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        Method newThreadPerTaskExecutor = null;
+
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builderClass.getMethod("name", String.class, long.class);
+            builderFactory = builderClass.getMethod("factory");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+
+            // Throws if virtual threads are a preview feature that was not enabled.
+            ofVirtual.invoke(null);
+        }
+        catch (Exception e) {
+            ofVirtual = null;
+            builderName = null;
+            builderFactory = null;
+            newThreadPerTaskExecutor = null;
+        }
+
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private AmqpThreads()
+    {
+    }
+
+    static boolean isVirtualSupported()
+    {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Returns a factory for threads named prefix followed by a counter. Virtual threads are always daemon threads.
+     */
+    static ThreadFactory newThreadFactory(final boolean virtual, @Nonnull final String prefix, final boolean daemon)
+    {
+        if (useVirtual(virtual)) {
+            try {
+                final Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+                return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            }
+            catch (Exception e) {
+                throw Throwables.propagate(e);
+            }
+        }
+        return new ThreadFactoryBuilder().setDaemon(daemon).setNameFormat(prefix + "%d").build();
+    }
+
+    /**
+     * Returns an executor for the workers of a consumer. With virtual threads, every task gets a new thread, otherwise
+     * the tasks share a fixed pool of daemon threads.
+     */
+    static ExecutorService newWorkerExecutor(final boolean virtual, final int threads, @Nonnull final String prefix)
+    {
+        if (useVirtual(virtual)) {
+            try {
+                return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, newThreadFactory(true, prefix, true));
+            }
+            catch (Exception e) {
+                throw Throwables.propagate(e);
+            }
+        }
+        return Executors.newFixedThreadPool(threads, newThreadFactory(false, prefix, true));
+    }
+
+    private static boolean useVirtual(final boolean virtual)
+    {
+        if (virtual && !isVirtualSupported()) {
+            if (WARNED.compareAndSet(false, true)) {
+                LOG.warn("Virtual threads are not supported by this Java runtime, using platform threads!");
+            }
+            return false;
+        }
+        return virtual;
+    }
+}
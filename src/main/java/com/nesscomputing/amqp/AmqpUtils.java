@@ -66,4 +66,18 @@ final class AmqpUtils
             }
         }
     }
+
+    /**
+     * Mixes the bits of a hash code, so that keys with similar hash codes end up in different shards or stripes.
+     */
+    static int spread(final int hashCode)
+    {
+        int h = hashCode;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
 }
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+/**
+ * Callback for consumers that process their messages in batches, e.g. to write them to a database
+ * with a single bulk write.
+ */
+public interface BatchConsumerCallback
+{
+    /**
+     * Called with the messages that were received within the batch wait time, up to the batch size. The messages are
+     * acknowledged once the callback returned. If the callback throws an exception, they are rejected and either
+     * requeued or dropped (or dead-lettered), depending on the consumer-failure-requeue setting, or retried later if
+     * consumer-retry-delays is set.
+     *
+     * @return false if the caller should disconnect from the exchange, otherwise true.
+     */
+    boolean withDeliveries(@Nonnull List<Delivery> deliveries) throws IOException;
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.nesscomputing.amqp.PublisherCallback.PublisherData;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Packs many small messages into a single AMQP message. The envelope has its own content type, so that
+ * consumers can recognize it and hand out the messages inside one by one.
+ *
+ * An envelope consists of a version byte and the number of messages, followed by the messages, each one
+ * a length and a {@link MessageCodec} record with its properties and body.
+ */
+final class BatchEnvelope
+{
+    static final String CONTENT_TYPE = "application/x-ness-amqp-batch";
+
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 5;
+
+    private final int maxBytes;
+
+    private final List<PublisherData> messages = new ArrayList<PublisherData>();
+    private final List<byte []> records = new ArrayList<byte []>();
+    private int size = HEADER_SIZE;
+    private boolean healthy = true;
+
+    BatchEnvelope(final int maxBytes)
+    {
+        Preconditions.checkArgument(maxBytes > 0, "the envelope size must be at least 1!");
+        this.maxBytes = maxBytes;
+    }
+
+    static boolean isEnvelope(@Nullable final BasicProperties properties)
+    {
+        return properties != null && CONTENT_TYPE.equals(properties.getContentType());
+    }
+
+    /**
+     * Adds a message to the envelope. The first message is always taken, even if it is larger than the maximum size.
+     *
+     * @return false if the message does not fit anymore.
+     */
+    boolean add(@Nonnull final PublisherData publisherData) throws IOException
+    {
+        return add(publisherData.getProperties(), publisherData);
+    }
+
+    /**
+     * Adds a message that is sent with the given properties instead of its own.
+     *
+     * @return false if the message does not fit anymore.
+     */
+    boolean add(@Nullable final BasicProperties properties, @Nonnull final PublisherData publisherData) throws IOException
+    {
+        final byte [] record = MessageCodec.encode(properties, publisherData.getData());
+        if (!messages.isEmpty() && size + 4 + record.length > maxBytes) {
+            return false;
+        }
+
+        messages.add(properties == publisherData.getProperties()
+            ? publisherData
+            : new EncodedPublisherData(properties, publisherData.getData(), publisherData.isHealthy()));
+        records.add(record);
+        size += 4 + record.length;
+        healthy &= publisherData.isHealthy();
+        return true;
+    }
+
+    boolean isEmpty()
+    {
+        return messages.isEmpty();
+    }
+
+    /**
+     * Returns the message to publish. A single message is sent as it is, without an envelope around it.
+     */
+    PublisherData build()
+    {
+        Preconditions.checkState(!messages.isEmpty(), "can not build an empty envelope!");
+
+        if (messages.size() == 1) {
+            return messages.get(0);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(VERSION);
+        buffer.putInt(records.size());
+        for (byte [] record : records) {
+            buffer.putInt(record.length);
+            buffer.put(record);
+        }
+
+        return new EncodedPublisherData(properties(), buffer.array(), healthy);
+    }
+
+    void clear()
+    {
+        messages.clear();
+        records.clear();
+        size = HEADER_SIZE;
+        healthy = true;
+    }
+
+    /**
+     * The envelope is persistent if any message in it is, and gets the highest priority of its messages.
+     */
+    private BasicProperties properties()
+    {
+        int deliveryMode = 1;
+        Integer priority = null;
+
+        for (PublisherData message : messages) {
+            final BasicProperties props = message.getProperties();
+            if (props != null) {
+                if (props.getDeliveryMode() != null) {
+                    deliveryMode = Math.max(deliveryMode, props.getDeliveryMode());
+                }
+                if (props.getPriority() != null) {
+                    priority = priority == null ? props.getPriority() : Math.max(priority, props.getPriority());
+                }
+            }
+        }
+
+        return new BasicProperties.Builder()
+        .contentType(CONTENT_TYPE)
+        .deliveryMode(deliveryMode)
+        .priority(priority)
+        .build();
+    }
+
+    /**
+     * Returns the messages of an envelope.
+     */
+    static List<PublisherData> unpack(@Nonnull final byte [] body) throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.wrap(body);
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new IOException("batch envelope is truncated");
+        }
+
+        final byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IOException("unknown batch envelope version " + version);
+        }
+
+        final int count = buffer.getInt();
+        if (count < 0) {
+            throw new IOException("corrupt batch envelope, negative message count");
+        }
+
+        final List<PublisherData> result = new ArrayList<PublisherData>(Math.min(count, body.length / 4));
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < 4) {
+                throw new IOException("batch envelope is truncated");
+            }
+            final int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                throw new IOException("batch envelope is truncated");
+            }
+            result.add(MessageCodec.decode(body, buffer.position(), length));
+            buffer.position(buffer.position() + length);
+        }
+        return result;
+    }
+}
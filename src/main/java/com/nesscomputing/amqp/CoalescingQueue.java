@@ -0,0 +1,286 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+
+/**
+ * Publisher queue that keeps only the latest message for every key. A message for a key that is already
+ * queued replaces the queued message in place, so it keeps the position of the first message for the key.
+ * The capacity limits the number of distinct keys, not the number of offered messages.
+ *
+ * The pending messages are kept in a concurrent map, the order of the keys in a separate queue. A key is only
+ * put into the key queue after its message is in the map, and only the taker that got the key out of the key queue
+ * (or a caller that removed the key from the key queue) removes the message from the map, so there is always exactly
+ * one queued key for every pending message.
+ */
+final class CoalescingQueue<T> extends AbstractQueue<PublisherEntry<T>> implements BlockingQueue<PublisherEntry<T>>
+{
+    private final Function<? super T, ?> keyFunction;
+
+    private final ConcurrentMap<Object, PublisherEntry<T>> pending = new ConcurrentHashMap<Object, PublisherEntry<T>>();
+    private final Queue<Object> keys = new ConcurrentLinkedQueue<Object>();
+
+    // Free room for new keys and number of keys ready to take.
+    private final Semaphore free;
+    private final Semaphore available = new Semaphore(0);
+
+    CoalescingQueue(@Nonnull final Function<? super T, ?> keyFunction, final int capacity)
+    {
+        Preconditions.checkNotNull(keyFunction, "the key function can not be null!");
+        Preconditions.checkArgument(capacity > 0, "the capacity must be at least 1!");
+
+        this.keyFunction = keyFunction;
+        this.free = new Semaphore(capacity);
+    }
+
+    @Override
+    public boolean offer(final PublisherEntry<T> e)
+    {
+        try {
+            return insert(e, 0L);
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public boolean offer(final PublisherEntry<T> e, final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        return insert(e, unit.toNanos(timeout));
+    }
+
+    @Override
+    public void put(final PublisherEntry<T> e) throws InterruptedException
+    {
+        insert(e, -1L);
+    }
+
+    @Override
+    public PublisherEntry<T> poll()
+    {
+        return available.tryAcquire() ? removeOldest() : null;
+    }
+
+    @Override
+    public PublisherEntry<T> poll(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        return available.tryAcquire(timeout, unit) ? removeOldest() : null;
+    }
+
+    @Override
+    public PublisherEntry<T> take() throws InterruptedException
+    {
+        available.acquire();
+        return removeOldest();
+    }
+
+    @Override
+    public PublisherEntry<T> peek()
+    {
+        final Object key = keys.peek();
+        return key == null ? null : pending.get(key);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super PublisherEntry<T>> c)
+    {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super PublisherEntry<T>> c, final int maxElements)
+    {
+        Preconditions.checkArgument(c != this, "can not drain a queue into itself!");
+
+        int count = 0;
+        while (count < maxElements && available.tryAcquire()) {
+            c.add(removeOldest());
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int size()
+    {
+        return available.availablePermits();
+    }
+
+    @Override
+    public int remainingCapacity()
+    {
+        return free.availablePermits();
+    }
+
+    @Override
+    public boolean remove(final Object o)
+    {
+        if (o == null) {
+            return false;
+        }
+
+        for (Map.Entry<Object, PublisherEntry<T>> entry : pending.entrySet()) {
+            if (entry.getValue().equals(o)) {
+                return remove(entry.getKey(), entry.getValue());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Weakly consistent iterator over the pending messages, in the order of their keys.
+     */
+    @Override
+    public Iterator<PublisherEntry<T>> iterator()
+    {
+        return new Itr();
+    }
+
+    /**
+     * Replaces the pending message for the key of a message or queues it under a new key.
+     *
+     * @param timeoutNanos How long to wait for room for a new key, negative waits forever.
+     */
+    private boolean insert(final PublisherEntry<T> e, final long timeoutNanos) throws InterruptedException
+    {
+        Preconditions.checkNotNull(e, "the element can not be null!");
+
+        // Messages without a key never replace each other.
+        final Object functionKey = keyFunction.apply(e.getData());
+        final Object key = functionKey != null ? functionKey : new Object();
+
+        for (;;) {
+            final PublisherEntry<T> replaced = pending.get(key);
+            if (replaced != null) {
+                if (pending.replace(key, replaced, e)) {
+                    // The older message will never be sent.
+                    replaced.complete(false);
+                    return true;
+                }
+                continue;
+            }
+
+            if (!reserve(timeoutNanos)) {
+                return false;
+            }
+
+            if (pending.putIfAbsent(key, e) == null) {
+                keys.add(key);
+                available.release();
+                return true;
+            }
+
+            // Another thread queued the key meanwhile, replace its message instead.
+            free.release();
+        }
+    }
+
+    private boolean reserve(final long timeoutNanos) throws InterruptedException
+    {
+        if (timeoutNanos < 0L) {
+            free.acquire();
+            return true;
+        }
+        return timeoutNanos == 0L ? free.tryAcquire() : free.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Takes the message for the oldest key. Must only be called with a permit of the available semaphore.
+     */
+    private PublisherEntry<T> removeOldest()
+    {
+        final Object key = keys.poll();
+        final PublisherEntry<T> e = pending.remove(key);
+        free.release();
+        return e;
+    }
+
+    /**
+     * Removes a message from the middle of the queue. Takes the permit of the message and the key out of the key queue
+     * first, so a taker never finds a key without a message. If a taker got the key first, it takes the message.
+     */
+    private boolean remove(final Object key, final PublisherEntry<T> e)
+    {
+        if (!available.tryAcquire()) {
+            return false;
+        }
+
+        if (keys.remove(key)) {
+            if (pending.remove(key, e)) {
+                free.release();
+                return true;
+            }
+            // The message was replaced meanwhile, queue its replacement again.
+            keys.add(key);
+        }
+        available.release();
+        return false;
+    }
+
+    private class Itr implements Iterator<PublisherEntry<T>>
+    {
+        private final Iterator<Object> keyIterator = keys.iterator();
+        private PublisherEntry<T> next = null;
+        private PublisherEntry<T> last = null;
+
+        @Override
+        public boolean hasNext()
+        {
+            while (next == null && keyIterator.hasNext()) {
+                next = pending.get(keyIterator.next());
+            }
+            return next != null;
+        }
+
+        @Override
+        public PublisherEntry<T> next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next = null;
+            return last;
+        }
+
+        @Override
+        public void remove()
+        {
+            Preconditions.checkState(last != null, "next() was not called!");
+            CoalescingQueue.this.remove(last);
+            last = null;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Compresses the messages of another publisher callback if their body is at least a given size. Compressed messages
+ * carry the content encoding of the codec. Messages that already have a content encoding, or that would not get smaller,
+ * are sent as they are.
+ */
+public class CompressingPublisherCallback<T> implements PublisherCallback<T>
+{
+    private final PublisherCallback<T> delegate;
+    private final CompressionCodec codec;
+    private final int threshold;
+
+    // Most callbacks use the same properties for every message, so remember the last translation.
+    private volatile PropertiesPair lastProperties = null;
+
+    public CompressingPublisherCallback(@Nonnull final PublisherCallback<T> delegate,
+                                        @Nonnull final CompressionCodec codec,
+                                        final int threshold)
+    {
+        Preconditions.checkNotNull(delegate, "the publisher callback can not be null!");
+        Preconditions.checkNotNull(codec, "the compression codec can not be null!");
+        Preconditions.checkArgument(threshold >= 0, "the threshold can not be negative!");
+
+        this.delegate = delegate;
+        this.codec = codec;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public PublisherData publish(@Nonnull final T data) throws IOException
+    {
+        final PublisherData publisherData = delegate.publish(data);
+        if (publisherData == null) {
+            return null;
+        }
+
+        final BasicProperties properties = publisherData.getProperties();
+        final byte [] body = publisherData.getData();
+
+        if (body.length < threshold || (properties != null && properties.getContentEncoding() != null)) {
+            return new EncodedPublisherData(properties, body, publisherData.isHealthy());
+        }
+
+        final byte [] compressed = codec.compress(body);
+        if (compressed.length >= body.length) {
+            return new EncodedPublisherData(properties, body, publisherData.isHealthy());
+        }
+
+        return new EncodedPublisherData(compressedProperties(properties), compressed, publisherData.isHealthy());
+    }
+
+    private BasicProperties compressedProperties(final BasicProperties properties)
+    {
+        final PropertiesPair pair = lastProperties;
+        if (pair != null && pair.original == properties) {
+            return pair.compressed;
+        }
+
+        final BasicProperties.Builder builder = properties == null ? new BasicProperties.Builder() : properties.builder();
+        final BasicProperties compressed = builder.contentEncoding(codec.getContentEncoding()).build();
+        lastProperties = new PropertiesPair(properties, compressed);
+        return compressed;
+    }
+
+    private static final class PropertiesPair
+    {
+        private final BasicProperties original;
+        private final BasicProperties compressed;
+
+        PropertiesPair(final BasicProperties original, final BasicProperties compressed)
+        {
+            this.original = original;
+            this.compressed = compressed;
+        }
+    }
+}
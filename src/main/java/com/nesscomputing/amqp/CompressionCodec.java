@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Compresses and decompresses message bodies. The content encoding is set on compressed messages, so that
+ * consumers can pick the matching codec.
+ *
+ * @see CompressionCodecs
+ */
+public interface CompressionCodec
+{
+    /**
+     * The value of the content-encoding property for messages compressed by this codec, e.g. "gzip".
+     */
+    @Nonnull
+    String getContentEncoding();
+
+    @Nonnull
+    byte [] compress(@Nonnull byte [] data) throws IOException;
+
+    @Nonnull
+    byte [] decompress(@Nonnull byte [] data) throws IOException;
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.zip.Deflater;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The compression codecs that come with the JDK.
+ */
+public final class CompressionCodecs
+{
+    /** gzip (RFC 1952) with the default compression level. */
+    public static final CompressionCodec GZIP = gzip(Deflater.DEFAULT_COMPRESSION);
+
+    /** zlib wrapped deflate (RFC 1950), which is what HTTP calls "deflate", with the default compression level. */
+    public static final CompressionCodec DEFLATE = deflate(Deflater.DEFAULT_COMPRESSION);
+
+    private CompressionCodecs()
+    {
+    }
+
+    /**
+     * gzip with a given compression level (0-9, see {@link Deflater}).
+     */
+    @Nonnull
+    public static CompressionCodec gzip(final int level)
+    {
+        return new ZipCompressionCodec("gzip", true, level);
+    }
+
+    /**
+     * deflate with a given compression level (0-9, see {@link Deflater}).
+     */
+    @Nonnull
+    public static CompressionCodec deflate(final int level)
+    {
+        return new ZipCompressionCodec("deflate", false, level);
+    }
+}
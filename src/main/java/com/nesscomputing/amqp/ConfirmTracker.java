@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.rabbitmq.client.ConfirmListener;
+
+/**
+ * Keeps track of the messages that a publisher has sent on a channel in confirm mode until
+ * the broker acks or nacks them.
+ *
+ * Publish sequence numbers on a channel are consecutive, and a message is only admitted while its sequence number is
+ * less than window size away from the lowest outstanding one, so the outstanding messages are kept in a ring indexed by
+ * sequence number. The broker may confirm single messages out of order; those free no room until the lowest outstanding
+ * message is confirmed as well. A multiple ack or nack walks the ring from the lowest outstanding sequence number up to
+ * the confirmed one.
+ */
+final class ConfirmTracker implements ConfirmListener
+{
+    /**
+     * A message that waits for a confirm.
+     */
+    interface Confirmable
+    {
+        /**
+         * Called once the broker acked (true) or nacked (false) the message.
+         */
+        void complete(boolean acked);
+
+        /**
+         * Called if the message will never be confirmed, e.g. because the channel was lost.
+         */
+        void fail(@Nonnull Throwable t);
+    }
+
+    private final Confirmable [] ring;
+
+    // Guarded by this.
+    private long lowest = 1L;
+    private long next = 1L;
+    private int outstanding = 0;
+    private int reserved = 0;
+
+    ConfirmTracker(final int windowSize)
+    {
+        Preconditions.checkArgument(windowSize > 0, "the confirm window must be at least 1!");
+
+        this.ring = new Confirmable[windowSize];
+    }
+
+    /**
+     * Reserve a slot in the confirm window. Must be called before the message is published.
+     */
+    synchronized boolean acquire(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!hasRoom()) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0L) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        reserved++;
+        return true;
+    }
+
+    /**
+     * Give back a slot that was reserved but never used for a message.
+     */
+    synchronized void release()
+    {
+        if (reserved > 0) {
+            reserved--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Register a message with its publish sequence number. A slot must have been reserved
+     * with {@link #acquire(long, TimeUnit)} before.
+     */
+    synchronized void register(final long seqNo, @Nonnull final Confirmable confirmable)
+    {
+        Preconditions.checkArgument(seqNo >= next, "sequence number %s was already registered!", seqNo);
+
+        if (outstanding == 0) {
+            lowest = seqNo;
+        }
+
+        Preconditions.checkState(seqNo - lowest < ring.length, "confirm window overflow for sequence number %s!", seqNo);
+
+        ring[index(seqNo)] = confirmable;
+        next = seqNo + 1;
+        outstanding++;
+        if (reserved > 0) {
+            reserved--;
+        }
+    }
+
+    @Override
+    public void handleAck(final long deliveryTag, final boolean multiple)
+    {
+        resolve(deliveryTag, multiple, true);
+    }
+
+    @Override
+    public void handleNack(final long deliveryTag, final boolean multiple)
+    {
+        resolve(deliveryTag, multiple, false);
+    }
+
+    /**
+     * Fails all outstanding messages. Used when the channel is gone and no more confirms will arrive.
+     */
+    synchronized void failAll(@Nonnull final Throwable t)
+    {
+        for (long seqNo = lowest; seqNo < next; seqNo++) {
+            final Confirmable confirmable = take(seqNo);
+            if (confirmable != null) {
+                confirmable.fail(t);
+            }
+        }
+        lowest = next;
+        notifyAll();
+    }
+
+    synchronized int getOutstanding()
+    {
+        return outstanding;
+    }
+
+    private synchronized void resolve(final long deliveryTag, final boolean multiple, final boolean acked)
+    {
+        if (multiple) {
+            final long last = Math.min(deliveryTag, next - 1);
+            for (long seqNo = lowest; seqNo <= last; seqNo++) {
+                final Confirmable confirmable = take(seqNo);
+                if (confirmable != null) {
+                    confirmable.complete(acked);
+                }
+            }
+            lowest = Math.max(lowest, last + 1);
+        }
+        else if (deliveryTag >= lowest && deliveryTag < next) {
+            final Confirmable confirmable = take(deliveryTag);
+            if (confirmable != null) {
+                confirmable.complete(acked);
+            }
+        }
+
+        // Skip over everything that was already confirmed one by one.
+        while (lowest < next && ring[index(lowest)] == null) {
+            lowest++;
+        }
+        notifyAll();
+    }
+
+    /**
+     * True if the next sequence number, and all the ones reserved before it, still fit into the ring.
+     */
+    private boolean hasRoom()
+    {
+        if (outstanding == 0) {
+            return reserved < ring.length;
+        }
+        return next - lowest + reserved < ring.length;
+    }
+
+    private Confirmable take(final long seqNo)
+    {
+        final int index = index(seqNo);
+        final Confirmable confirmable = ring[index];
+        if (confirmable != null) {
+            ring[index] = null;
+            outstanding--;
+        }
+        return confirmable;
+    }
+
+    private int index(final long seqNo)
+    {
+        return (int) (seqNo % ring.length);
+    }
+}
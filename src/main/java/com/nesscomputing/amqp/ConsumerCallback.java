@@ -27,6 +27,9 @@ public interface ConsumerCallback
      * Callback for every received message. If the exchange is connected, it will be
      * called in regular intervals even if nothing was received (body is null).
      *
+     * The message is acknowledged when the callback returns. If it throws an exception, the message
+     * is rejected, and requeued if consumer-failure-requeue is set, or retried later if consumer-retry-delays is set.
+     *
      * @return false if the caller should disconnect from the exchange, otherwise true.
      */
     boolean withDelivery(@Nonnull Delivery delivery) throws IOException;
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decides how many consumers an autoscaling consumer group should run, based on the number of messages
+ * waiting on its queue per consumer.
+ *
+ * Growing and shrinking use two different thresholds, and the backlog has to stay beyond a threshold for a
+ * number of samples in a row before the group changes its size, one consumer at a time. Only used by the
+ * thread of the group, so it is not thread safe.
+ */
+final class ConsumerScaler
+{
+    private final int min;
+    private final int max;
+    private final long growBacklog;
+    private final long shrinkBacklog;
+    private final int samples;
+
+    private int growSamples = 0;
+    private int shrinkSamples = 0;
+
+    ConsumerScaler(@Nonnull final AmqpConfig amqpConfig)
+    {
+        this(amqpConfig.getConsumerScalingMin(),
+             amqpConfig.getConsumerScalingMax(),
+             amqpConfig.getConsumerScalingGrowBacklog(),
+             amqpConfig.getConsumerScalingShrinkBacklog(),
+             amqpConfig.getConsumerScalingSamples());
+    }
+
+    ConsumerScaler(final int min, final int max, final long growBacklog, final long shrinkBacklog, final int samples)
+    {
+        Preconditions.checkArgument(min > 0, "at least one consumer is needed!");
+        Preconditions.checkArgument(max >= min, "the maximum of %s consumers is lower than the minimum of %s!", max, min);
+        Preconditions.checkArgument(shrinkBacklog < growBacklog, "the shrink backlog must be lower than the grow backlog!");
+        Preconditions.checkArgument(samples > 0, "at least one sample is needed!");
+
+        this.min = min;
+        this.max = max;
+        this.growBacklog = growBacklog;
+        this.shrinkBacklog = shrinkBacklog;
+        this.samples = samples;
+    }
+
+    int getMin()
+    {
+        return min;
+    }
+
+    int getMax()
+    {
+        return max;
+    }
+
+    /**
+     * Takes a sample of the queue and returns the number of consumers that the group should run.
+     *
+     * @param size Number of consumers that the group runs now.
+     * @param depth Number of messages waiting on the queue.
+     * @param brokerConsumers Number of consumers on the queue as counted by the broker, including the ones of other processes.
+     */
+    int sample(final int size, final long depth, final int brokerConsumers)
+    {
+        final long backlog = depth / Math.max(1, Math.max(size, brokerConsumers));
+
+        if (backlog > growBacklog && size < max) {
+            shrinkSamples = 0;
+            if (++growSamples >= samples) {
+                growSamples = 0;
+                return size + 1;
+            }
+        }
+        else if (backlog < shrinkBacklog && size > min) {
+            growSamples = 0;
+            if (++shrinkSamples >= samples) {
+                shrinkSamples = 0;
+                return size - 1;
+            }
+        }
+        else {
+            growSamples = 0;
+            shrinkSamples = 0;
+        }
+
+        return Math.max(min, Math.min(max, size));
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+/**
+ * Decompresses messages whose content encoding matches one of the codecs before handing them to another consumer
+ * callback. The content encoding is removed from the properties of a decompressed message. All other messages are
+ * passed on as they are.
+ */
+public class DecompressingConsumerCallback implements ConsumerCallback
+{
+    private final ConsumerCallback delegate;
+    private final Map<String, CompressionCodec> codecs;
+
+    /**
+     * Decompresses gzip and deflate encoded messages.
+     */
+    public DecompressingConsumerCallback(@Nonnull final ConsumerCallback delegate)
+    {
+        this(delegate, CompressionCodecs.GZIP, CompressionCodecs.DEFLATE);
+    }
+
+    public DecompressingConsumerCallback(@Nonnull final ConsumerCallback delegate, @Nonnull final CompressionCodec ... codecs)
+    {
+        Preconditions.checkNotNull(delegate, "the consumer callback can not be null!");
+
+        this.delegate = delegate;
+
+        final ImmutableMap.Builder<String, CompressionCodec> builder = ImmutableMap.builder();
+        for (CompressionCodec codec : codecs) {
+            builder.put(codec.getContentEncoding(), codec);
+        }
+        this.codecs = builder.build();
+    }
+
+    @Override
+    public boolean withDelivery(@Nonnull final Delivery delivery) throws IOException
+    {
+        final BasicProperties properties = delivery.getProperties();
+        final String contentEncoding = properties == null ? null : properties.getContentEncoding();
+        final CompressionCodec codec = contentEncoding == null ? null : codecs.get(contentEncoding);
+
+        if (codec == null || delivery.getBody() == null) {
+            return delegate.withDelivery(delivery);
+        }
+
+        final byte [] body = codec.decompress(delivery.getBody());
+        final BasicProperties decompressedProperties = properties.builder().contentEncoding(null).build();
+        return delegate.withDelivery(new Delivery(delivery.getEnvelope(), decompressedProperties, body));
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+/**
+ * A received message that the consumer callback acknowledges or rejects itself. The message can be settled
+ * from any thread, also after the callback returned. Only the first ack or nack counts.
+ *
+ * A message that is never settled holds up the acks of all messages received after it, and is redelivered
+ * when the consumer reconnects.
+ */
+public interface DeliveryHandle
+{
+    @Nonnull
+    Delivery getDelivery();
+
+    /**
+     * Acknowledges the message.
+     *
+     * @return false if the message was already settled or its channel was closed in the meantime.
+     */
+    boolean ack() throws IOException;
+
+    /**
+     * Rejects the message. The broker either requeues it or drops it (or dead-letters it, if the queue has a dead letter exchange).
+     *
+     * @return false if the message was already settled or its channel was closed in the meantime.
+     */
+    boolean nack(boolean requeue) throws IOException;
+
+    boolean isSettled();
+}
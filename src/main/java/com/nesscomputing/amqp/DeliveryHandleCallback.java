@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Consumer callback that acknowledges or rejects the messages itself, see {@link DeliveryHandle}. A message that the
+ * callback did not settle when it throws an exception is rejected, and requeued if consumer-failure-requeue is set,
+ * or retried later if consumer-retry-delays is set.
+ */
+public interface DeliveryHandleCallback
+{
+    /**
+     * Callback for every received message.
+     *
+     * @return false if the caller should disconnect from the exchange, otherwise true.
+     */
+    boolean withDelivery(@Nonnull DeliveryHandle handle) throws IOException;
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+/**
+ * Key functions for consumers that process deliveries on worker threads. Deliveries with the same key are
+ * processed one after the other, in the order in which they were received.
+ */
+public final class DeliveryKeys
+{
+    private static final String HEADER_PREFIX = "header:";
+
+    /** The routing key of the delivery. */
+    public static final Function<Delivery, Object> ROUTING_KEY = new Function<Delivery, Object>() {
+        @Override
+        public Object apply(final Delivery delivery)
+        {
+            return delivery.getEnvelope().getRoutingKey();
+        }
+    };
+
+    private DeliveryKeys()
+    {
+    }
+
+    /**
+     * The value of a message header, as a string. Deliveries without the header have no key and are not ordered.
+     */
+    @Nonnull
+    public static Function<Delivery, Object> header(@Nonnull final String name)
+    {
+        Preconditions.checkNotNull(name, "the header name can not be null!");
+
+        return new Function<Delivery, Object>() {
+            @Override
+            public Object apply(final Delivery delivery)
+            {
+                final Map<String, Object> headers = delivery.getProperties().getHeaders();
+                final Object value = headers == null ? null : headers.get(name);
+                // Header strings arrive as LongStrings, which do not compare by value.
+                return value == null ? null : value.toString();
+            }
+        };
+    }
+
+    /**
+     * Parses the consumer-worker-order-key setting, either "routing-key" or "header:<name>".
+     */
+    @CheckForNull
+    static Function<Delivery, Object> fromConfig(@Nullable final String orderKey)
+    {
+        if (orderKey == null) {
+            return null;
+        }
+        else if ("routing-key".equals(orderKey)) {
+            return ROUTING_KEY;
+        }
+        else if (orderKey.startsWith(HEADER_PREFIX) && orderKey.length() > HEADER_PREFIX.length()) {
+            return header(orderKey.substring(HEADER_PREFIX.length()));
+        }
+        throw new IllegalArgumentException("Unknown order key '" + orderKey + "', must be 'routing-key' or 'header:<name>'!");
+    }
+}
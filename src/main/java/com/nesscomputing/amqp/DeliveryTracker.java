@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Keeps track of the deliveries that a consumer has received but not yet acknowledged, and acknowledges them
+ * once they are complete.
+ *
+ * Deliveries may complete in any order. A multiple ack covers every delivery up to its tag, so only the deliveries
+ * up to the oldest one that is still being processed (the watermark) are handed to the {@link AckBatcher}. All
+ * methods are thread safe.
+ */
+final class DeliveryTracker
+{
+    private final AckBatcher ackBatcher;
+
+    // All guarded by this.
+    private final Deque<Long> outstanding = new ArrayDeque<Long>();
+    private final Set<Long> completed = new HashSet<Long>();
+    private Channel channel = null;
+
+    DeliveryTracker(@Nonnull final AckBatcher ackBatcher)
+    {
+        this.ackBatcher = ackBatcher;
+    }
+
+    /**
+     * Starts over on a new channel (or none). Deliveries from the old channel are forgotten, the broker redelivers them.
+     */
+    synchronized void reset(@Nullable final Channel channel)
+    {
+        this.channel = channel;
+        outstanding.clear();
+        completed.clear();
+        ackBatcher.reset();
+    }
+
+    /**
+     * Registers a delivery before it is processed. Must be called in the order in which the deliveries were received.
+     */
+    synchronized void register(final long deliveryTag)
+    {
+        outstanding.addLast(deliveryTag);
+    }
+
+    /**
+     * Marks a delivery as processed and acknowledges all deliveries up to the watermark. Deliveries that were received
+     * on another channel than the current one are ignored.
+     *
+     * @return false if the delivery was received on another channel.
+     */
+    synchronized boolean complete(@Nonnull final Channel deliveryChannel, final long deliveryTag) throws IOException
+    {
+        if (deliveryChannel != channel) {
+            return false;
+        }
+
+        completed.add(deliveryTag);
+        advance();
+        return true;
+    }
+
+    /**
+     * Rejects a single delivery right away. It no longer holds up the watermark.
+     *
+     * @return false if the delivery was received on another channel.
+     */
+    synchronized boolean reject(@Nonnull final Channel deliveryChannel, final long deliveryTag, final boolean requeue) throws IOException
+    {
+        if (deliveryChannel != channel || !outstanding.remove(deliveryTag)) {
+            return false;
+        }
+
+        channel.basicNack(deliveryTag, false, requeue);
+        advance();
+        return true;
+    }
+
+    /**
+     * Marks all outstanding deliveries as processed and acknowledges them together.
+     */
+    synchronized void completeAll(@Nonnull final Channel deliveryChannel) throws IOException
+    {
+        if (deliveryChannel != channel || outstanding.isEmpty()) {
+            return;
+        }
+
+        final long watermark = outstanding.peekLast();
+        final int count = outstanding.size();
+        outstanding.clear();
+        completed.clear();
+        ackBatcher.ack(channel, watermark, count);
+    }
+
+    /**
+     * Rejects all outstanding deliveries with a single nack.
+     */
+    synchronized void rejectAll(@Nonnull final Channel deliveryChannel, final boolean requeue) throws IOException
+    {
+        if (deliveryChannel != channel || outstanding.isEmpty()) {
+            return;
+        }
+
+        // The nack covers every delivery up to its tag, so acks that are still pending must go out first.
+        ackBatcher.flush(channel);
+        channel.basicNack(outstanding.peekLast(), true, requeue);
+        outstanding.clear();
+        completed.clear();
+    }
+
+    /**
+     * Sends the pending acks if they are due and no delivery is being processed any more. Called by worker threads,
+     * while the consumer thread waits for the next delivery.
+     */
+    synchronized void flushIfIdle() throws IOException
+    {
+        if (channel != null && outstanding.isEmpty() && ackBatcher.getWaitMillis(Long.MAX_VALUE) == 0L) {
+            ackBatcher.flush(channel);
+        }
+    }
+
+    /**
+     * Hands all completed deliveries up to the watermark to the ack batcher.
+     */
+    private void advance() throws IOException
+    {
+        int count = 0;
+        long watermark = 0L;
+        while (!outstanding.isEmpty() && completed.remove(outstanding.peekFirst())) {
+            watermark = outstanding.removeFirst();
+            count++;
+        }
+
+        if (count > 0) {
+            ackBatcher.ack(channel, watermark, count);
+        }
+    }
+
+    /**
+     * Sends the pending acks if the linger time is up.
+     */
+    synchronized void flushIfDue() throws IOException
+    {
+        if (channel != null) {
+            ackBatcher.flushIfDue(channel);
+        }
+    }
+
+    /**
+     * Sends all pending acks.
+     */
+    synchronized void flush() throws IOException
+    {
+        if (channel != null) {
+            ackBatcher.flush(channel);
+        }
+    }
+
+    /**
+     * How long to wait for the next delivery, so that the pending acks are sent in time.
+     */
+    synchronized long getWaitMillis(final long tickMillis)
+    {
+        if (outstanding.isEmpty() || ackBatcher.getLingerMillis() == 0L) {
+            return ackBatcher.getWaitMillis(tickMillis);
+        }
+        // Deliveries that are still processed may complete while the consumer thread waits.
+        return ackBatcher.getWaitMillis(Math.min(tickMillis, ackBatcher.getLingerMillis()));
+    }
+
+    /**
+     * Number of deliveries that were registered but not yet acknowledged or handed to the ack batcher.
+     */
+    synchronized int getOutstandingCount()
+    {
+        return outstanding.size();
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import javax.annotation.Nonnull;
+
+import com.nesscomputing.amqp.PublisherCallback.PublisherData;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * A message that was already encoded into its final bytes.
+ */
+final class EncodedPublisherData extends PublisherData
+{
+    private final BasicProperties properties;
+    private final byte [] data;
+    private final boolean healthy;
+
+    EncodedPublisherData(@Nonnull final BasicProperties properties, @Nonnull final byte [] data)
+    {
+        this(properties, data, true);
+    }
+
+    EncodedPublisherData(@Nonnull final BasicProperties properties, @Nonnull final byte [] data, final boolean healthy)
+    {
+        this.properties = properties;
+        this.data = data;
+        this.healthy = healthy;
+    }
+
+    @Override
+    public BasicProperties getProperties()
+    {
+        return properties;
+    }
+
+    @Override
+    public byte [] getData()
+    {
+        return data;
+    }
+
+    @Override
+    public boolean isHealthy()
+    {
+        return healthy;
+    }
+}
@@ -16,11 +16,15 @@
 package com.nesscomputing.amqp;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
+import com.google.common.base.Function;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
 
 /**
  * A general runnable that will keep the connection to an exchange alive and dispatch messages
@@ -35,7 +39,51 @@ public final class ExchangeConsumer extends AbstractConsumer
                             @Nonnull final String name,
                             @Nonnull final ConsumerCallback consumerCallback)
     {
-        super(connectionFactory, amqpConfig, name, consumerCallback);
+        this(new AmqpConnectionPool(connectionFactory, 0), amqpConfig, name, consumerCallback);
+    }
+
+    public ExchangeConsumer(@Nonnull final ConnectionFactory connectionFactory,
+                            @Nonnull final AmqpConfig amqpConfig,
+                            @Nonnull final String name,
+                            @Nonnull final DeliveryHandleCallback handleCallback)
+    {
+        this(new AmqpConnectionPool(connectionFactory, 0), amqpConfig, name, handleCallback, null, null);
+    }
+
+    public ExchangeConsumer(@Nonnull final ConnectionFactory connectionFactory,
+                            @Nonnull final AmqpConfig amqpConfig,
+                            @Nonnull final String name,
+                            @Nonnull final BatchConsumerCallback batchCallback)
+    {
+        this(new AmqpConnectionPool(connectionFactory, 0), amqpConfig, name, batchCallback);
+    }
+
+    ExchangeConsumer(@Nonnull final AmqpConnectionPool connectionPool,
+                     @Nonnull final AmqpConfig amqpConfig,
+                     @Nonnull final String name,
+                     @Nonnull final ConsumerCallback consumerCallback)
+    {
+        this(connectionPool, amqpConfig, name, new AckingConsumerCallback(consumerCallback), null, null);
+    }
+
+    ExchangeConsumer(@Nonnull final AmqpConnectionPool connectionPool,
+                     @Nonnull final AmqpConfig amqpConfig,
+                     @Nonnull final String name,
+                     @Nonnull final DeliveryHandleCallback handleCallback,
+                     @Nullable final Executor executor,
+                     @Nullable final Function<? super Delivery, ?> keyFunction)
+    {
+        super(connectionPool, amqpConfig, name, handleCallback, executor, keyFunction);
+
+        this.routingKey = amqpConfig.getRoutingKey();
+    }
+
+    ExchangeConsumer(@Nonnull final AmqpConnectionPool connectionPool,
+                     @Nonnull final AmqpConfig amqpConfig,
+                     @Nonnull final String name,
+                     @Nonnull final BatchConsumerCallback batchCallback)
+    {
+        super(connectionPool, amqpConfig, name, batchCallback);
 
         this.routingKey = amqpConfig.getRoutingKey();
     }
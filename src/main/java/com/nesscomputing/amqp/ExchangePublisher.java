@@ -18,8 +18,11 @@ package com.nesscomputing.amqp;
 import java.io.IOException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
+import com.google.common.base.Function;
 import com.nesscomputing.amqp.PublisherCallback.PublisherData;
+import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConnectionFactory;
 
@@ -37,7 +40,24 @@ public final class ExchangePublisher<T> extends AbstractPublisher<T>
                              @Nonnull final PublisherCallback<? super T> publisherCallback)
 
     {
-        super(connectionFactory, amqpConfig, name, publisherCallback);
+        this(new AmqpConnectionPool(connectionFactory, 0), amqpConfig, name, publisherCallback);
+    }
+
+    ExchangePublisher(@Nonnull final AmqpConnectionPool connectionPool,
+                      @Nonnull final AmqpConfig amqpConfig,
+                      @Nonnull final String name,
+                      @Nonnull final PublisherCallback<? super T> publisherCallback)
+    {
+        this(connectionPool, amqpConfig, name, publisherCallback, null);
+    }
+
+    ExchangePublisher(@Nonnull final AmqpConnectionPool connectionPool,
+                      @Nonnull final AmqpConfig amqpConfig,
+                      @Nonnull final String name,
+                      @Nonnull final PublisherCallback<? super T> publisherCallback,
+                      @Nullable final Function<? super T, ?> coalescingKey)
+    {
+        super(connectionPool, amqpConfig, name, publisherCallback, coalescingKey);
 
         this.routingKey = amqpConfig.getRoutingKey();
     }
@@ -51,6 +71,8 @@ public final class ExchangePublisher<T> extends AbstractPublisher<T>
     @Override
     protected void connectCallback(@Nonnull final Channel channel) throws IOException
     {
+        super.connectCallback(channel);
+
         if (getConfig().isDeclaring()) {
             channel.exchangeDeclare(getName(),
                                     getConfig().getExchangeType(),
@@ -61,9 +83,15 @@ public final class ExchangePublisher<T> extends AbstractPublisher<T>
 
     @Override
     protected void publish(final PublisherData publisherData) throws IOException
+    {
+        publish(publisherData, publisherData.getProperties());
+    }
+
+    @Override
+    protected void publish(final PublisherData publisherData, final BasicProperties properties) throws IOException
     {
         final Channel channel = channelConnect();
         // An exchange has its own name and the default routing key...
-        channel.basicPublish(getName(), routingKey, publisherData.getProperties(), publisherData.getData());
+        channel.basicPublish(getName(), routingKey, properties, publisherData.getData());
     }
 }
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+/**
+ * Decodes the JSON body of every message into an object and hands it to a {@link TypedConsumerCallback}.
+ *
+ * The body is read straight from the delivery with a reader that is built once for the target type. Messages that
+ * the prefilter rejects are never decoded; they are acknowledged and dropped. The prefilter only sees the envelope
+ * and properties of a delivery, so it should decide on the routing key or headers.
+ */
+public final class JsonConsumerCallback<T> implements ConsumerCallback
+{
+    private final ObjectReader reader;
+    private final TypedConsumerCallback<? super T> messageCallback;
+    private final Predicate<? super Delivery> prefilter;
+
+    /**
+     * Creates a callback outside of the runnable factory. The reader must be built for the target type, e.g. with
+     * {@code mapper.reader(type)}, and should be shared between callbacks for the same type.
+     *
+     * @param prefilter Decides on the envelope and properties whether a message is decoded at all, may be null.
+     */
+    public JsonConsumerCallback(@Nonnull final ObjectReader reader,
+                         @Nonnull final TypedConsumerCallback<? super T> messageCallback,
+                         @Nullable final Predicate<? super Delivery> prefilter)
+    {
+        Preconditions.checkNotNull(reader, "the reader can not be null!");
+        Preconditions.checkNotNull(messageCallback, "the message callback can not be null!");
+
+        this.reader = reader;
+        this.messageCallback = messageCallback;
+        if (prefilter != null) {
+            this.prefilter = prefilter;
+        }
+        else {
+            this.prefilter = Predicates.<Delivery>alwaysTrue();
+        }
+    }
+
+    @Override
+    public boolean withDelivery(@Nonnull final Delivery delivery) throws IOException
+    {
+        final byte [] body = delivery.getBody();
+        if (body == null) {
+            return messageCallback.withMessage(null, delivery);
+        }
+
+        if (!prefilter.apply(delivery)) {
+            return true;
+        }
+
+        final T message = reader.readValue(body);
+        return messageCallback.withMessage(message, delivery);
+    }
+}
@@ -16,8 +16,13 @@
 package com.nesscomputing.amqp;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.base.Preconditions;
 import com.google.inject.Inject;
 import com.rabbitmq.client.AMQP.BasicProperties;
@@ -26,13 +31,31 @@ import com.nesscomputing.jackson.JsonMapper;
 
 /**
  * Converts arbitrary objects into JSON and returns a text message containing it.
+ *
+ * The writer for every class is looked up once and then reused. Every thread serializes into its own
+ * buffer, which is kept between messages, so that the only allocation per message is the exact-length body.
  */
 public final class JsonPublisherCallback implements PublisherCallback<Object>
 {
+    /** Initial size of the per-thread buffer. */
+    static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /** Buffers that grew beyond this size for a large message are dropped after it, and the thread starts over with a small one. */
+    static final int MAX_RETAINED_BUFFER_SIZE = 65536;
+
     private ObjectMapper mapper = null;
 
     private final BasicProperties props;
 
+    private final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<Class<?>, ObjectWriter>();
+
+    private final ThreadLocal<OutputBuffer> buffers = new ThreadLocal<OutputBuffer>() {
+        @Override
+        protected OutputBuffer initialValue() {
+            return new OutputBuffer();
+        }
+    };
+
     @Inject
     JsonPublisherCallback(@JsonMapper final ObjectMapper mapper)
     {
@@ -51,20 +74,82 @@ public final class JsonPublisherCallback implements PublisherCallback<Object>
         Preconditions.checkState(mapper != null, "need object mapper configured!");
 
         if (data != null) {
-            return new PublisherData() {
-                @Override
-                public BasicProperties getProperties() {
-                    return props;
-                }
-
-                @Override
-                public byte [] getData() throws IOException {
-                    return mapper.writeValueAsBytes(data);
-                }
-            };
+            return new EncodedPublisherData(props, writeValueAsBytes(data));
         }
         else {
             return null;
         }
     }
+
+    private byte [] writeValueAsBytes(final Object data) throws IOException
+    {
+        final OutputBuffer buffer = buffers.get();
+        try {
+            getWriter(data.getClass()).writeValue(buffer, data);
+            return buffer.toByteArray();
+        }
+        finally {
+            buffer.reset();
+        }
+    }
+
+    private ObjectWriter getWriter(final Class<?> type)
+    {
+        ObjectWriter writer = writers.get(type);
+        if (writer == null) {
+            // Racing threads build the same writer, so it does not matter which one wins.
+            writer = mapper.writerWithType(type);
+            writers.putIfAbsent(type, writer);
+        }
+        return writer;
+    }
+
+    /**
+     * Unsynchronized growable byte buffer, only ever used by a single thread.
+     */
+    static final class OutputBuffer extends OutputStream
+    {
+        private byte [] buf = new byte[INITIAL_BUFFER_SIZE];
+        private int count = 0;
+
+        @Override
+        public void write(final int b)
+        {
+            ensureCapacity(count + 1);
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte [] b, final int off, final int len)
+        {
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        byte [] toByteArray()
+        {
+            return Arrays.copyOf(buf, count);
+        }
+
+        int capacity()
+        {
+            return buf.length;
+        }
+
+        void reset()
+        {
+            count = 0;
+            if (buf.length > MAX_RETAINED_BUFFER_SIZE) {
+                buf = new byte[INITIAL_BUFFER_SIZE];
+            }
+        }
+
+        private void ensureCapacity(final int size)
+        {
+            if (size > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(size, buf.length << 1));
+            }
+        }
+    }
 }
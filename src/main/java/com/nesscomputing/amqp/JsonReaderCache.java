@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+
+import com.nesscomputing.jackson.JsonMapper;
+
+/**
+ * Hands out the readers for JSON consumers. The reader for every class is looked up once and then shared
+ * by all consumers that decode into it.
+ */
+final class JsonReaderCache
+{
+    private final ObjectMapper mapper;
+
+    private final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<Class<?>, ObjectReader>();
+
+    @Inject
+    JsonReaderCache(@JsonMapper final ObjectMapper mapper)
+    {
+        this.mapper = mapper;
+    }
+
+    ObjectReader getReader(@Nonnull final Class<?> type)
+    {
+        Preconditions.checkState(mapper != null, "need object mapper configured!");
+        Preconditions.checkNotNull(type, "the type can not be null!");
+
+        ObjectReader reader = readers.get(type);
+        if (reader == null) {
+            // Racing threads build the same reader, so it does not matter which one wins.
+            reader = mapper.reader(type);
+            readers.putIfAbsent(type, reader);
+        }
+        return reader;
+    }
+}
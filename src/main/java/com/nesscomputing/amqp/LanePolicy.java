@@ -0,0 +1,28 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+/**
+ * How a publisher with more than one priority lane picks the next message.
+ */
+public enum LanePolicy
+{
+    /** Always take from the highest priority lane that has messages. Lower lanes may starve. */
+    STRICT,
+
+    /** Take up to the weight of a lane from it before moving on to the next lower lane, so that every lane gets its share. */
+    WEIGHTED;
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.nesscomputing.amqp.PublisherCallback.PublisherData;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.LongString;
+
+/**
+ * Compact binary encoding of a message with its properties. Used by the spill journal and the batch envelope.
+ *
+ * A record starts with a bit mask of the properties that are set, followed by the properties and the
+ * length-prefixed body. Header values are kept as ints, longs, booleans, byte arrays, strings or nulls, all
+ * other header types are turned into strings. Strings are written as length-prefixed UTF-8 bytes, so they are
+ * not limited to the 64KB of {@link DataOutputStream#writeUTF(String)}.
+ */
+final class MessageCodec
+{
+    private static final int CONTENT_TYPE = 1 << 0;
+    private static final int CONTENT_ENCODING = 1 << 1;
+    private static final int HEADERS = 1 << 2;
+    private static final int DELIVERY_MODE = 1 << 3;
+    private static final int PRIORITY = 1 << 4;
+    private static final int CORRELATION_ID = 1 << 5;
+    private static final int REPLY_TO = 1 << 6;
+    private static final int EXPIRATION = 1 << 7;
+    private static final int MESSAGE_ID = 1 << 8;
+    private static final int TIMESTAMP = 1 << 9;
+    private static final int TYPE = 1 << 10;
+    private static final int USER_ID = 1 << 11;
+    private static final int APP_ID = 1 << 12;
+    private static final int CLUSTER_ID = 1 << 13;
+
+    private static final byte HEADER_STRING = 0;
+    private static final byte HEADER_INT = 1;
+    private static final byte HEADER_LONG = 2;
+    private static final byte HEADER_BOOLEAN = 3;
+    private static final byte HEADER_BYTES = 4;
+    private static final byte HEADER_NULL = 5;
+
+    private static final BasicProperties EMPTY_PROPERTIES = new BasicProperties.Builder().build();
+
+    private MessageCodec()
+    {
+    }
+
+    /**
+     * Encodes the properties and the body of a message into a single record.
+     */
+    static byte [] encode(@Nullable final BasicProperties properties, @Nonnull final byte [] body) throws IOException
+    {
+        final BasicProperties props = properties != null ? properties : EMPTY_PROPERTIES;
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(body.length + 64);
+        final DataOutputStream out = new DataOutputStream(bos);
+
+        int flags = 0;
+        flags |= props.getContentType() != null ? CONTENT_TYPE : 0;
+        flags |= props.getContentEncoding() != null ? CONTENT_ENCODING : 0;
+        flags |= props.getHeaders() != null ? HEADERS : 0;
+        flags |= props.getDeliveryMode() != null ? DELIVERY_MODE : 0;
+        flags |= props.getPriority() != null ? PRIORITY : 0;
+        flags |= props.getCorrelationId() != null ? CORRELATION_ID : 0;
+        flags |= props.getReplyTo() != null ? REPLY_TO : 0;
+        flags |= props.getExpiration() != null ? EXPIRATION : 0;
+        flags |= props.getMessageId() != null ? MESSAGE_ID : 0;
+        flags |= props.getTimestamp() != null ? TIMESTAMP : 0;
+        flags |= props.getType() != null ? TYPE : 0;
+        flags |= props.getUserId() != null ? USER_ID : 0;
+        flags |= props.getAppId() != null ? APP_ID : 0;
+        flags |= props.getClusterId() != null ? CLUSTER_ID : 0;
+        out.writeInt(flags);
+
+        writeString(out, props.getContentType());
+        writeString(out, props.getContentEncoding());
+        if (props.getHeaders() != null) {
+            writeHeaders(out, props.getHeaders());
+        }
+        if (props.getDeliveryMode() != null) {
+            out.writeInt(props.getDeliveryMode());
+        }
+        if (props.getPriority() != null) {
+            out.writeInt(props.getPriority());
+        }
+        writeString(out, props.getCorrelationId());
+        writeString(out, props.getReplyTo());
+        writeString(out, props.getExpiration());
+        writeString(out, props.getMessageId());
+        if (props.getTimestamp() != null) {
+            out.writeLong(props.getTimestamp().getTime());
+        }
+        writeString(out, props.getType());
+        writeString(out, props.getUserId());
+        writeString(out, props.getAppId());
+        writeString(out, props.getClusterId());
+
+        out.writeInt(body.length);
+        out.write(body);
+        out.flush();
+
+        return bos.toByteArray();
+    }
+
+    /**
+     * Decodes a record written by {@link #encode(BasicProperties, byte[])}.
+     */
+    static PublisherData decode(@Nonnull final byte [] record) throws IOException
+    {
+        return decode(record, 0, record.length);
+    }
+
+    /**
+     * Decodes a record written by {@link #encode(BasicProperties, byte[])} that is part of a larger array.
+     */
+    static PublisherData decode(@Nonnull final byte [] data, final int offset, final int length) throws IOException
+    {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        final int flags = in.readInt();
+
+        final BasicProperties.Builder builder = new BasicProperties.Builder();
+        if ((flags & CONTENT_TYPE) != 0) {
+            builder.contentType(readString(in));
+        }
+        if ((flags & CONTENT_ENCODING) != 0) {
+            builder.contentEncoding(readString(in));
+        }
+        if ((flags & HEADERS) != 0) {
+            builder.headers(readHeaders(in));
+        }
+        if ((flags & DELIVERY_MODE) != 0) {
+            builder.deliveryMode(in.readInt());
+        }
+        if ((flags & PRIORITY) != 0) {
+            builder.priority(in.readInt());
+        }
+        if ((flags & CORRELATION_ID) != 0) {
+            builder.correlationId(readString(in));
+        }
+        if ((flags & REPLY_TO) != 0) {
+            builder.replyTo(readString(in));
+        }
+        if ((flags & EXPIRATION) != 0) {
+            builder.expiration(readString(in));
+        }
+        if ((flags & MESSAGE_ID) != 0) {
+            builder.messageId(readString(in));
+        }
+        if ((flags & TIMESTAMP) != 0) {
+            builder.timestamp(new Date(in.readLong()));
+        }
+        if ((flags & TYPE) != 0) {
+            builder.type(readString(in));
+        }
+        if ((flags & USER_ID) != 0) {
+            builder.userId(readString(in));
+        }
+        if ((flags & APP_ID) != 0) {
+            builder.appId(readString(in));
+        }
+        if ((flags & CLUSTER_ID) != 0) {
+            builder.clusterId(readString(in));
+        }
+
+        final byte [] body = new byte[in.readInt()];
+        in.readFully(body);
+
+        return new EncodedPublisherData(builder.build(), body);
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException
+    {
+        if (value != null) {
+            final byte [] bytes = value.getBytes(Charsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(final DataInputStream in) throws IOException
+    {
+        final byte [] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static void writeHeaders(final DataOutputStream out, final Map<String, Object> headers) throws IOException
+    {
+        out.writeInt(headers.size());
+        for (Map.Entry<String, Object> header : headers.entrySet()) {
+            writeString(out, header.getKey());
+            final Object value = header.getValue();
+
+            if (value == null) {
+                out.writeByte(HEADER_NULL);
+            }
+            else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                out.writeByte(HEADER_INT);
+                out.writeInt(((Number) value).intValue());
+            }
+            else if (value instanceof Long) {
+                out.writeByte(HEADER_LONG);
+                out.writeLong((Long) value);
+            }
+            else if (value instanceof Boolean) {
+                out.writeByte(HEADER_BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            }
+            else if (value instanceof byte []) {
+                out.writeByte(HEADER_BYTES);
+                out.writeInt(((byte []) value).length);
+                out.write((byte []) value);
+            }
+            else {
+                final String string = value instanceof LongString
+                    ? new String(((LongString) value).getBytes(), Charsets.UTF_8)
+                    : String.valueOf(value);
+                out.writeByte(HEADER_STRING);
+                writeString(out, string);
+            }
+        }
+    }
+
+    private static Map<String, Object> readHeaders(final DataInputStream in) throws IOException
+    {
+        final int count = in.readInt();
+        final Map<String, Object> headers = new LinkedHashMap<String, Object>(count);
+
+        for (int i = 0; i < count; i++) {
+            final String key = readString(in);
+            final byte type = in.readByte();
+
+            switch (type) {
+                case HEADER_INT:
+                    headers.put(key, in.readInt());
+                    break;
+                case HEADER_LONG:
+                    headers.put(key, in.readLong());
+                    break;
+                case HEADER_BOOLEAN:
+                    headers.put(key, in.readBoolean());
+                    break;
+                case HEADER_BYTES:
+                    final byte [] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    headers.put(key, bytes);
+                    break;
+                case HEADER_NULL:
+                    headers.put(key, null);
+                    break;
+                default:
+                    headers.put(key, readString(in));
+                    break;
+            }
+        }
+        return headers;
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+/**
+ * What {@link AbstractPublisher#offer(Object)} does when the publisher queue is full.
+ */
+public enum OverflowPolicy
+{
+    /** Refuse the new message. */
+    DROP_NEWEST,
+
+    /** Evict the oldest queued message to make room for the new one. */
+    DROP_OLDEST,
+
+    /** Wait up to the transmit timeout for room in the queue, then refuse the message. */
+    BLOCK,
+
+    /**
+     * Publish the message on the calling thread, using the channel of the publisher. Refuse it if the publisher is not connected.
+     * Can not be combined with publisher-transactions.
+     */
+    CALLER_RUNS;
+}
@@ -0,0 +1,296 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Publisher queue with a lane for every message priority. Each lane is a bounded queue of its own, so
+ * bulk traffic filling up a low priority lane never keeps urgent messages out of a higher one.
+ *
+ * A semaphore counts the queued messages over all lanes. Every element is put into its lane before the
+ * semaphore is released, and every taker acquires the semaphore before it looks at the lanes, so a taker
+ * that got a permit always finds a message.
+ */
+final class PriorityLaneQueue<E extends PublisherEntry<?>> extends AbstractQueue<E> implements BlockingQueue<E>
+{
+    private final BlockingQueue<E> [] lanes;
+    private final int [] weights;
+    private final LanePolicy policy;
+
+    private final Semaphore available = new Semaphore(0);
+
+    // Guarded by this, only used for the WEIGHTED policy.
+    private int cursor;
+    private int credit;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    PriorityLaneQueue(@Nonnull final PublisherQueueType queueType,
+                      final int capacity,
+                      @Nonnull final WaitStrategy waitStrategy,
+                      @Nonnull final LanePolicy policy,
+                      @Nonnull final int [] weights)
+    {
+        Preconditions.checkArgument(weights.length > 1, "at least two lanes are needed!");
+        Preconditions.checkNotNull(policy, "the lane policy can not be null!");
+
+        this.lanes = new BlockingQueue[weights.length];
+        for (int i = 0; i < lanes.length; i++) {
+            Preconditions.checkArgument(weights[i] > 0, "lane weights must be at least 1!");
+            lanes[i] = queueType.newQueue(capacity, waitStrategy);
+        }
+
+        this.weights = weights.clone();
+        this.policy = policy;
+        this.cursor = lanes.length - 1;
+        this.credit = weights[cursor];
+    }
+
+    int getLaneCount()
+    {
+        return lanes.length;
+    }
+
+    @Override
+    public boolean offer(final E e)
+    {
+        if (lane(e).offer(e)) {
+            available.release();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean offer(final E e, final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        if (lane(e).offer(e, timeout, unit)) {
+            available.release();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void put(final E e) throws InterruptedException
+    {
+        lane(e).put(e);
+        available.release();
+    }
+
+    @Override
+    public E poll()
+    {
+        return available.tryAcquire() ? select() : null;
+    }
+
+    @Override
+    public E poll(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        return available.tryAcquire(timeout, unit) ? select() : null;
+    }
+
+    @Override
+    public E take() throws InterruptedException
+    {
+        available.acquire();
+        return select();
+    }
+
+    /**
+     * Removes the oldest message from the lane that a message would go into, to make room for it.
+     */
+    E evict(final E e)
+    {
+        if (!available.tryAcquire()) {
+            return null;
+        }
+
+        final E evicted = lane(e).poll();
+        if (evicted == null) {
+            available.release();
+        }
+        return evicted;
+    }
+
+    @Override
+    public E peek()
+    {
+        for (int i = lanes.length - 1; i >= 0; i--) {
+            final E e = lanes[i].peek();
+            if (e != null) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> c)
+    {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> c, final int maxElements)
+    {
+        Preconditions.checkArgument(c != this, "can not drain a queue into itself!");
+
+        int count = 0;
+        while (count < maxElements && available.tryAcquire()) {
+            c.add(select());
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int size()
+    {
+        return available.availablePermits();
+    }
+
+    /**
+     * Free room in all lanes together. A single lane may be full even if this is larger than 0.
+     */
+    @Override
+    public int remainingCapacity()
+    {
+        int remaining = 0;
+        for (BlockingQueue<E> lane : lanes) {
+            remaining += lane.remainingCapacity();
+        }
+        return remaining;
+    }
+
+    @Override
+    public boolean remove(final Object o)
+    {
+        // Take the permit of the element first, so that a taker never finds its lanes empty.
+        if (o == null || !available.tryAcquire()) {
+            return false;
+        }
+
+        for (int i = lanes.length - 1; i >= 0; i--) {
+            if (lanes[i].remove(o)) {
+                return true;
+            }
+        }
+        available.release();
+        return false;
+    }
+
+    /**
+     * Weakly consistent iterator over the lanes, from the highest priority lane to the lowest. This is not
+     * necessarily the order in which the messages are taken.
+     */
+    @Override
+    public Iterator<E> iterator()
+    {
+        return new Itr();
+    }
+
+    private BlockingQueue<E> lane(final E e)
+    {
+        Preconditions.checkNotNull(e, "the element can not be null!");
+        return lanes[Math.max(0, Math.min(lanes.length - 1, e.getPriority()))];
+    }
+
+    /**
+     * Takes the next message. Must only be called with a permit, so there is always one to take.
+     */
+    private E select()
+    {
+        for (;;) {
+            final E e = policy == LanePolicy.STRICT ? selectStrict() : selectWeighted();
+            if (e != null) {
+                return e;
+            }
+        }
+    }
+
+    private E selectStrict()
+    {
+        for (int i = lanes.length - 1; i >= 0; i--) {
+            final E e = lanes[i].poll();
+            if (e != null) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private synchronized E selectWeighted()
+    {
+        // Visit every lane once, starting with the one that still has credit.
+        for (int i = 0; i <= lanes.length; i++) {
+            if (credit > 0) {
+                final E e = lanes[cursor].poll();
+                if (e != null) {
+                    credit--;
+                    return e;
+                }
+            }
+            cursor = cursor == 0 ? lanes.length - 1 : cursor - 1;
+            credit = weights[cursor];
+        }
+        return null;
+    }
+
+    private class Itr implements Iterator<E>
+    {
+        private int lane = lanes.length - 1;
+        private Iterator<E> current = lanes[lane].iterator();
+        private E last = null;
+
+        @Override
+        public boolean hasNext()
+        {
+            while (!current.hasNext() && lane > 0) {
+                current = lanes[--lane].iterator();
+            }
+            return current.hasNext();
+        }
+
+        @Override
+        public E next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = current.next();
+            return last;
+        }
+
+        @Override
+        public void remove()
+        {
+            Preconditions.checkState(last != null, "next() was not called!");
+            PriorityLaneQueue.this.remove(last);
+            last = null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nesscomputing.amqp.PublisherCallback.PublisherData;
+
+/**
+ * Encodes messages for a publisher away from the publisher thread, either on the thread that offers
+ * the message or on a pool of encoder threads. The result is a future for the final bytes of the message,
+ * which travels through the publisher queue with the message, so the publisher thread only has to write it.
+ */
+final class PublisherEncoder<T>
+{
+    private final PublisherCallback<? super T> publisherCallback;
+
+    // Only set for the POOL encoding.
+    private final ThreadPoolExecutor executor;
+
+    PublisherEncoder(@Nonnull final PublisherCallback<? super T> publisherCallback,
+                     @Nonnull final PublisherEncoding encoding,
+                     final int threads,
+                     final int backlog,
+                     @Nonnull final String name)
+    {
+        Preconditions.checkNotNull(publisherCallback, "the publisher callback can not be null!");
+        Preconditions.checkArgument(encoding != PublisherEncoding.PUBLISHER, "the publisher thread does not need an encoder!");
+
+        this.publisherCallback = publisherCallback;
+
+        if (encoding == PublisherEncoding.POOL) {
+            final int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+
+            // If the encoders fall behind, the offering thread encodes the message itself. This also
+            // keeps messages from getting stuck if they are offered after the pool was shut down.
+            this.executor = new ThreadPoolExecutor(poolSize, poolSize,
+                                                   0L, TimeUnit.MILLISECONDS,
+                                                   new LinkedBlockingQueue<Runnable>(Math.max(1, backlog)),
+                                                   new ThreadFactoryBuilder().setDaemon(true).setNameFormat("amqp-encoder-" + name + "-%d").build(),
+                                                   new RejectedExecutionHandler() {
+                                                       @Override
+                                                       public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+                                                           r.run();
+                                                       }
+                                                   });
+        }
+        else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Starts encoding a message. The future returns null if the callback did not want to send the message.
+     */
+    ListenableFuture<PublisherData> submit(@Nonnull final T data)
+    {
+        if (executor == null) {
+            try {
+                return Futures.immediateFuture(encode(data));
+            }
+            catch (IOException ioe) {
+                return Futures.immediateFailedFuture(ioe);
+            }
+        }
+
+        final ListenableFutureTask<PublisherData> task = ListenableFutureTask.create(new Callable<PublisherData>() {
+            @Override
+            public PublisherData call() throws IOException {
+                return encode(data);
+            }
+        });
+        executor.execute(task);
+        return task;
+    }
+
+    void close()
+    {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Runs the publisher callback and forces the message body into bytes, most callbacks only serialize
+     * the object when the body is requested.
+     */
+    @CheckForNull
+    private PublisherData encode(final T data) throws IOException
+    {
+        final PublisherData publisherData = publisherCallback.publish(data);
+        if (publisherData == null || publisherData instanceof EncodedPublisherData) {
+            return publisherData;
+        }
+        return new EncodedPublisherData(publisherData.getProperties(), publisherData.getData(), publisherData.isHealthy());
+    }
+}
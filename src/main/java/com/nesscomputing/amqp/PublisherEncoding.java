@@ -0,0 +1,31 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+/**
+ * Which thread turns the messages of a publisher into bytes.
+ */
+public enum PublisherEncoding
+{
+    /** The publisher thread encodes every message right before it writes it to the channel. */
+    PUBLISHER,
+
+    /** The thread that offers a message encodes it before it is queued. */
+    CALLER,
+
+    /** A pool of encoder threads encodes the messages after they were offered. The publisher thread writes them in the order they were offered. */
+    POOL;
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.nesscomputing.amqp.PublisherCallback.PublisherData;
+
+/**
+ * A message on the internal queue of a publisher. Carries the future for the caller if one was requested
+ * and the encoded message if it was encoded before it was queued. The priority picks the lane of the message
+ * in a publisher with priority lanes.
+ */
+final class PublisherEntry<T> implements ConfirmTracker.Confirmable
+{
+    private final T data;
+    private final SettableFuture<Boolean> future;
+    private final ListenableFuture<PublisherData> encoded;
+    private final int priority;
+
+    PublisherEntry(@Nonnull final T data, @Nullable final SettableFuture<Boolean> future)
+    {
+        this(data, future, null, 0);
+    }
+
+    PublisherEntry(@Nonnull final T data,
+                   @Nullable final SettableFuture<Boolean> future,
+                   @Nullable final ListenableFuture<PublisherData> encoded,
+                   final int priority)
+    {
+        this.data = data;
+        this.future = future;
+        this.encoded = encoded;
+        this.priority = priority;
+    }
+
+    T getData()
+    {
+        return data;
+    }
+
+    @CheckForNull
+    SettableFuture<Boolean> getFuture()
+    {
+        return future;
+    }
+
+    @CheckForNull
+    ListenableFuture<PublisherData> getEncoded()
+    {
+        return encoded;
+    }
+
+    int getPriority()
+    {
+        return priority;
+    }
+
+    @Override
+    public void complete(final boolean acked)
+    {
+        if (future != null) {
+            future.set(acked);
+        }
+    }
+
+    @Override
+    public void fail(@Nonnull final Throwable t)
+    {
+        if (future != null) {
+            future.setException(t);
+        }
+    }
+}
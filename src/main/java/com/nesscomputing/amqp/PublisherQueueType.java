@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Queue implementation that hands messages from the producer threads to the publisher thread.
+ */
+public enum PublisherQueueType
+{
+    /** A {@link ArrayBlockingQueue}. Uses a single lock for producers and the publisher thread. */
+    ARRAY {
+        @Override
+        <E> BlockingQueue<E> newQueue(final int capacity, final WaitStrategy waitStrategy)
+        {
+            return new ArrayBlockingQueue<E>(capacity);
+        }
+    },
+
+    /** A lock-free bounded ring buffer. Waiting threads use the configured {@link WaitStrategy}. */
+    RING {
+        @Override
+        <E> BlockingQueue<E> newQueue(final int capacity, final WaitStrategy waitStrategy)
+        {
+            return new RingBufferQueue<E>(capacity, waitStrategy);
+        }
+    };
+
+    abstract <E> BlockingQueue<E> newQueue(int capacity, WaitStrategy waitStrategy);
+}
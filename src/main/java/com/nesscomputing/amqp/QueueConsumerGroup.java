@@ -0,0 +1,287 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.nesscomputing.logging.Log;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+/**
+ * Runs a varying number of consumers on one queue, each with its own thread and channel.
+ *
+ * The group regularly checks the depth of the queue with a passive declare and adds consumers while the backlog
+ * per consumer is high and stops them again when it is low, between consumer-scaling-min and consumer-scaling-max.
+ * See {@link AmqpConfig#getConsumerScalingGrowBacklog()} and {@link AmqpConfig#getConsumerScalingShrinkBacklog()}.
+ *
+ * The depth only counts the messages that are not delivered yet, so the consumers of a group that has no
+ * consumer-prefetch-count use consumer-scaling-prefetch-count instead.
+ *
+ * Running this runnable starts the consumers and keeps scaling them until the group is shut down. If one of
+ * the consumers stops on its own, because its callback returned false, the whole group stops.
+ */
+public class QueueConsumerGroup implements Runnable
+{
+    private static final Log LOG = Log.findLog();
+
+    private final AmqpConnectionPool connectionPool;
+    private final String name;
+    private final long intervalMillis;
+    private final ConsumerScaler scaler;
+    private final Supplier<? extends AbstractAmqpRunnable> consumerSupplier;
+    private final ThreadFactory threadFactory;
+
+    private final CountDownLatch stopLatch = new CountDownLatch(1);
+
+    // Only used by the group thread.
+    private final List<Member> members = Lists.newArrayList();
+    // Consumers that were stopped when the group shrank and may still be finishing their deliveries.
+    private final List<Member> retired = Lists.newArrayList();
+    private Connection probeConnection = null;
+    private Channel probeChannel = null;
+
+    private volatile int consumerCount = 0;
+    private volatile long queueDepth = -1L;
+
+    public QueueConsumerGroup(@Nonnull final ConnectionFactory connectionFactory,
+                              @Nonnull final AmqpConfig amqpConfig,
+                              @Nonnull final String name,
+                              @Nonnull final ConsumerCallback consumerCallback)
+    {
+        this(new AmqpConnectionPool(connectionFactory, 0), amqpConfig, name, consumerCallback);
+    }
+
+    QueueConsumerGroup(@Nonnull final AmqpConnectionPool connectionPool,
+                       @Nonnull final AmqpConfig amqpConfig,
+                       @Nonnull final String name,
+                       @Nonnull final ConsumerCallback consumerCallback)
+    {
+        this(connectionPool, amqpConfig, name, new Supplier<QueueConsumer>() {
+            @Override
+            public QueueConsumer get() {
+                final QueueConsumer consumer = new QueueConsumer(connectionPool, amqpConfig, name, consumerCallback);
+                consumer.limitPrefetch(amqpConfig.getConsumerScalingPrefetchCount());
+                return consumer;
+            }
+        });
+    }
+
+    QueueConsumerGroup(@Nonnull final AmqpConnectionPool connectionPool,
+                       @Nonnull final AmqpConfig amqpConfig,
+                       @Nonnull final String name,
+                       @Nonnull final Supplier<? extends AbstractAmqpRunnable> consumerSupplier)
+    {
+        Preconditions.checkNotNull(name, "the name can not be null!");
+        Preconditions.checkNotNull(consumerSupplier, "the consumer supplier can not be null!");
+
+        this.connectionPool = connectionPool;
+        this.name = name;
+        this.intervalMillis = amqpConfig.getConsumerScalingInterval().getMillis();
+        this.scaler = new ConsumerScaler(amqpConfig);
+        this.consumerSupplier = consumerSupplier;
+        this.threadFactory = AmqpThreads.newThreadFactory(amqpConfig.isVirtualThreads(), "amqp-consumer-group-" + name + "-", false);
+
+        if (amqpConfig.getConsumerPrefetchCount() <= 0) {
+            if (amqpConfig.getConsumerScalingPrefetchCount() > 0) {
+                LOG.info("No consumer-prefetch-count for '%s', the consumers of the group prefetch %d messages each", name, amqpConfig.getConsumerScalingPrefetchCount());
+            }
+            else {
+                LOG.warn("Consumers for '%s' prefetch without a limit, the group will not see its backlog and never grow!", name);
+            }
+        }
+    }
+
+    /**
+     * Number of consumers that the group runs now.
+     */
+    public int getConsumerCount()
+    {
+        return consumerCount;
+    }
+
+    /**
+     * Number of messages that were waiting on the queue at the last check, or -1 if the queue was not checked yet.
+     */
+    public long getQueueDepth()
+    {
+        return queueDepth;
+    }
+
+    public boolean isRunning()
+    {
+        return stopLatch.getCount() > 0;
+    }
+
+    public void shutdown()
+    {
+        stopLatch.countDown();
+    }
+
+    @Override
+    public void run()
+    {
+        LOG.debug("Starting consumer group for '%s'", name);
+        try {
+            resize(scaler.getMin());
+
+            while (!stopLatch.await(intervalMillis, TimeUnit.MILLISECONDS)) {
+                if (!allRunning()) {
+                    LOG.info("A consumer for '%s' stopped, stopping the group", name);
+                    break; // while
+                }
+
+                final AMQP.Queue.DeclareOk declareOk = probe();
+                if (declareOk != null) {
+                    queueDepth = declareOk.getMessageCount();
+                    resize(scaler.sample(members.size(), declareOk.getMessageCount(), declareOk.getConsumerCount()));
+                }
+            }
+        }
+        catch (InterruptedException ie) {
+            LOG.trace("Terminated by interrupt, stopping all consumers");
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            LOG.debug("Stopping consumer group for '%s'", name);
+            stopLatch.countDown();
+            closeProbe();
+            stopAll();
+        }
+    }
+
+    private void resize(final int size)
+    {
+        if (size != members.size()) {
+            LOG.info("Scaling consumers for '%s' from %d to %d (%d messages waiting)", name, members.size(), size, queueDepth);
+        }
+
+        while (members.size() < size) {
+            final AbstractAmqpRunnable consumer = consumerSupplier.get();
+            final Thread thread = threadFactory.newThread(consumer);
+            thread.start();
+            members.add(new Member(consumer, thread));
+        }
+
+        // The consumers that are stopped finish the deliveries they hold on their own, they are only waited for when the group stops.
+        while (members.size() > size) {
+            final Member member = members.remove(members.size() - 1);
+            member.consumer.shutdown();
+            retired.add(member);
+        }
+
+        for (Iterator<Member> it = retired.iterator(); it.hasNext(); ) {
+            if (!it.next().thread.isAlive()) {
+                it.remove();
+            }
+        }
+
+        consumerCount = members.size();
+    }
+
+    private boolean allRunning()
+    {
+        for (Member member : members) {
+            if (!member.thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void stopAll()
+    {
+        for (Member member : members) {
+            member.consumer.shutdown();
+        }
+        members.addAll(retired);
+        retired.clear();
+
+        boolean interrupted = Thread.interrupted();
+        for (Member member : members) {
+            if (interrupted) {
+                member.thread.interrupt();
+            }
+            try {
+                member.thread.join();
+            }
+            catch (InterruptedException ie) {
+                interrupted = true;
+                member.thread.interrupt();
+            }
+        }
+
+        members.clear();
+        consumerCount = 0;
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the message and consumer count of the queue, or null if the broker could not be asked.
+     */
+    private AMQP.Queue.DeclareOk probe()
+    {
+        try {
+            if (probeChannel == null || !probeChannel.isOpen()) {
+                closeProbe();
+                probeConnection = connectionPool.acquire();
+                probeChannel = probeConnection.createChannel();
+            }
+            return probeChannel.queueDeclarePassive(name);
+        }
+        catch (IOException ioe) {
+            // A failed passive declare closes the channel, it is opened again for the next check.
+            LOG.warnDebug(ioe, "Could not check the depth of queue '%s'", name);
+            closeProbe();
+            return null;
+        }
+    }
+
+    private void closeProbe()
+    {
+        AmqpUtils.closeQuietly(probeChannel);
+        probeChannel = null;
+        connectionPool.release(probeConnection);
+        probeConnection = null;
+    }
+
+    private static class Member
+    {
+        private final AbstractAmqpRunnable consumer;
+        private final Thread thread;
+
+        Member(final AbstractAmqpRunnable consumer, final Thread thread)
+        {
+            this.consumer = consumer;
+            this.thread = thread;
+        }
+    }
+}
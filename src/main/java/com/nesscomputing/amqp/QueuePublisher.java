@@ -18,8 +18,11 @@ package com.nesscomputing.amqp;
 import java.io.IOException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
+import com.google.common.base.Function;
 import com.nesscomputing.amqp.PublisherCallback.PublisherData;
+import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConnectionFactory;
 
@@ -35,7 +38,24 @@ public final class QueuePublisher<T> extends AbstractPublisher<T>
                           @Nonnull final PublisherCallback<? super T> publisherCallback)
 
     {
-        super(connectionFactory, amqpConfig, name, publisherCallback);
+        this(new AmqpConnectionPool(connectionFactory, 0), amqpConfig, name, publisherCallback);
+    }
+
+    QueuePublisher(@Nonnull final AmqpConnectionPool connectionPool,
+                   @Nonnull final AmqpConfig amqpConfig,
+                   @Nonnull final String name,
+                   @Nonnull final PublisherCallback<? super T> publisherCallback)
+    {
+        this(connectionPool, amqpConfig, name, publisherCallback, null);
+    }
+
+    QueuePublisher(@Nonnull final AmqpConnectionPool connectionPool,
+                   @Nonnull final AmqpConfig amqpConfig,
+                   @Nonnull final String name,
+                   @Nonnull final PublisherCallback<? super T> publisherCallback,
+                   @Nullable final Function<? super T, ?> coalescingKey)
+    {
+        super(connectionPool, amqpConfig, name, publisherCallback, coalescingKey);
     }
 
     @Override
@@ -47,6 +67,8 @@ public final class QueuePublisher<T> extends AbstractPublisher<T>
     @Override
     protected void connectCallback(@Nonnull final Channel channel) throws IOException
     {
+        super.connectCallback(channel);
+
         if (getConfig().isDeclaring()) {
             channel.queueDeclare(getName(),
                                  getConfig().isDurable(),
@@ -58,9 +80,15 @@ public final class QueuePublisher<T> extends AbstractPublisher<T>
 
     @Override
     protected void publish(final PublisherData publisherData) throws IOException
+    {
+        publish(publisherData, publisherData.getProperties());
+    }
+
+    @Override
+    protected void publish(final PublisherData publisherData, final BasicProperties properties) throws IOException
     {
         final Channel channel = channelConnect();
         // A queue is a routing key on the default exchange...
-        channel.basicPublish("", getName(), publisherData.getProperties(), publisherData.getData());
+        channel.basicPublish("", getName(), properties, publisherData.getData());
     }
 }
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.skife.config.TimeSpan;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Longs;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+
+/**
+ * Sends messages that a consumer failed to process on a delayed trip back to its queue.
+ *
+ * Every delay has its own retry queue without consumers. Its message TTL holds a message for the delay, then the broker
+ * dead-letters it through the default exchange back to the consumed queue. So waiting for a retry costs the consumer
+ * nothing. Every message carries the number of times it failed in a header. Once that is more than the maximum number of
+ * attempts, the message goes to the parking queue instead, where it stays until someone looks at it.
+ */
+final class RetryPolicy
+{
+    /** Header with the number of times that a message failed. */
+    static final String ATTEMPT_HEADER = "x-retry-attempt";
+
+    private final String queueName;
+    private final long [] delays;
+    private final int maxAttempts;
+
+    /**
+     * Returns the retry policy for a queue, or null if consumer-retry-delays is not set.
+     */
+    @CheckForNull
+    static RetryPolicy fromConfig(@Nonnull final AmqpConfig amqpConfig, @Nonnull final String queueName)
+    {
+        final String delays = amqpConfig.getConsumerRetryDelays();
+        final List<String> values = delays == null ? Collections.<String>emptyList() : Lists.newArrayList(Splitter.on(',').trimResults().omitEmptyStrings().split(delays));
+        if (values.isEmpty()) {
+            return null;
+        }
+
+        final long [] millis = new long[values.size()];
+        for (int i = 0; i < millis.length; i++) {
+            millis[i] = new TimeSpan(values.get(i)).getMillis();
+        }
+        return new RetryPolicy(queueName, millis, amqpConfig.getConsumerRetryMaxAttempts());
+    }
+
+    RetryPolicy(@Nonnull final String queueName, @Nonnull final long [] delays, final int maxAttempts)
+    {
+        Preconditions.checkNotNull(queueName, "the queue name can not be null!");
+        Preconditions.checkArgument(delays != null && delays.length > 0, "at least one retry delay is needed!");
+        Preconditions.checkArgument(Longs.min(delays) > 0L, "retry delays must be positive!");
+        Preconditions.checkArgument(maxAttempts >= 0, "the number of retry attempts can not be negative!");
+
+        this.queueName = queueName;
+        this.delays = delays.clone();
+        this.maxAttempts = maxAttempts;
+    }
+
+    String getParkingQueue()
+    {
+        return queueName + ".parking";
+    }
+
+    String getRetryQueue(final long delay)
+    {
+        return queueName + ".retry." + delay;
+    }
+
+    /**
+     * Declares the retry queues and the parking queue.
+     */
+    void declare(@Nonnull final Channel channel, final boolean durable) throws IOException
+    {
+        final Set<Long> declared = Sets.newHashSet();
+        for (long delay : delays) {
+            if (declared.add(delay)) {
+                final Map<String, Object> arguments = ImmutableMap.<String, Object>of(
+                    "x-message-ttl", delay,
+                    "x-dead-letter-exchange", "",
+                    "x-dead-letter-routing-key", queueName);
+                channel.queueDeclare(getRetryQueue(delay), durable, false, false, arguments);
+            }
+        }
+        channel.queueDeclare(getParkingQueue(), durable, false, false, null);
+    }
+
+    /**
+     * Publishes a failed message to the retry queue for its next attempt, or to the parking queue if it has no attempts left.
+     *
+     * @return the queue that the message was sent to.
+     */
+    String republish(@Nonnull final Channel channel, @Nullable final BasicProperties properties, @Nullable final byte [] body) throws IOException
+    {
+        final int attempt = getAttempt(properties) + 1;
+        final String target = attempt > maxAttempts ? getParkingQueue() : getRetryQueue(delays[Math.min(attempt, delays.length) - 1]);
+
+        final BasicProperties original = properties == null ? new BasicProperties.Builder().build() : properties;
+        final Map<String, Object> headers = original.getHeaders() == null ? new HashMap<String, Object>() : new HashMap<String, Object>(original.getHeaders());
+        headers.put(ATTEMPT_HEADER, attempt);
+
+        channel.basicPublish("", target, original.builder().headers(headers).build(), body == null ? new byte [0] : body);
+        return target;
+    }
+
+    /**
+     * Returns the number of times that a message failed before.
+     */
+    static int getAttempt(@Nullable final BasicProperties properties)
+    {
+        final Map<String, Object> headers = properties == null ? null : properties.getHeaders();
+        final Object attempt = headers == null ? null : headers.get(ATTEMPT_HEADER);
+        return attempt instanceof Number ? ((Number) attempt).intValue() : 0;
+    }
+}
@@ -0,0 +1,327 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Bounded lock-free queue for many producer threads and (usually) a single consumer, the publisher thread.
+ *
+ * Every slot carries a sequence number that tells producers and consumers whether the slot is free for the
+ * position they want to write or already filled for the position they want to read. Producers claim positions
+ * with a CAS on the tail; the consumer side uses a CAS on the head as well, so that a producer may evict the
+ * oldest message when the queue is full. Blocking operations wait using a {@link WaitStrategy} instead of locks.
+ *
+ * Iterators are weakly consistent. Removing an element through an iterator clears its slot, and the consumer skips
+ * the cleared slot when it gets there; until then, the slot still counts for the size of the queue.
+ */
+final class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E>
+{
+    private final int capacity;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences;
+    private final WaitStrategy waitStrategy;
+
+    private final AtomicLong tail = new AtomicLong(0L);
+    private final AtomicLong head = new AtomicLong(0L);
+
+    // Slots between head and tail that were cleared by an iterator.
+    private final AtomicLong removed = new AtomicLong(0L);
+
+    RingBufferQueue(final int capacity, @Nonnull final WaitStrategy waitStrategy)
+    {
+        Preconditions.checkArgument(capacity > 0, "the capacity must be at least 1!");
+        Preconditions.checkNotNull(waitStrategy, "the wait strategy can not be null!");
+
+        this.capacity = capacity;
+        this.waitStrategy = waitStrategy;
+        this.slots = new AtomicReferenceArray<E>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    @Override
+    public boolean offer(final E e)
+    {
+        Preconditions.checkNotNull(e, "the element can not be null!");
+
+        long pos = tail.get();
+        for (;;) {
+            final int index = index(pos);
+            final long delta = sequences.get(index) - pos;
+
+            if (delta == 0L) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.lazySet(index, e);
+                    // Publishes the element to the consumer.
+                    sequences.lazySet(index, pos + 1);
+                    return true;
+                }
+            }
+            else if (delta < 0L) {
+                // The slot still holds an element from the previous round.
+                return false;
+            }
+            pos = tail.get();
+        }
+    }
+
+    @Override
+    public E poll()
+    {
+        long pos = head.get();
+        for (;;) {
+            final int index = index(pos);
+            final long delta = sequences.get(index) - (pos + 1);
+
+            if (delta == 0L) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    // Atomically, so that an iterator can not remove the element at the same time.
+                    final E e = slots.getAndSet(index, null);
+                    // Hands the slot to the producer of the next round.
+                    sequences.lazySet(index, pos + capacity);
+                    if (e != null) {
+                        return e;
+                    }
+                    // The element was removed by an iterator, go on with the next one.
+                    removed.decrementAndGet();
+                }
+            }
+            else if (delta < 0L) {
+                // Nothing was written to this position yet.
+                return null;
+            }
+            pos = head.get();
+        }
+    }
+
+    @Override
+    public E peek()
+    {
+        final Itr it = new Itr();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    @Override
+    public void put(final E e) throws InterruptedException
+    {
+        for (int counter = 0; !offer(e); counter++) {
+            idle(counter);
+        }
+    }
+
+    @Override
+    public boolean offer(final E e, final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int counter = 0; !offer(e); counter++) {
+            if (System.nanoTime() - deadline >= 0L) {
+                return false;
+            }
+            idle(counter);
+        }
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException
+    {
+        E e;
+        for (int counter = 0; (e = poll()) == null; counter++) {
+            idle(counter);
+        }
+        return e;
+    }
+
+    @Override
+    public E poll(final long timeout, final TimeUnit unit) throws InterruptedException
+    {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        E e;
+        for (int counter = 0; (e = poll()) == null; counter++) {
+            if (System.nanoTime() - deadline >= 0L) {
+                return null;
+            }
+            idle(counter);
+        }
+        return e;
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> c)
+    {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(final Collection<? super E> c, final int maxElements)
+    {
+        Preconditions.checkArgument(c != this, "can not drain a queue into itself!");
+
+        int count = 0;
+        E e;
+        while (count < maxElements && (e = poll()) != null) {
+            c.add(e);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public int size()
+    {
+        // Read the head first, so that a concurrent poll can only make the result too large, never negative.
+        final long currentHead = head.get();
+        final long size = tail.get() - currentHead - removed.get();
+        return (int) Math.max(0L, Math.min(capacity, size));
+    }
+
+    @Override
+    public int remainingCapacity()
+    {
+        return capacity - size();
+    }
+
+    /**
+     * Returns a weakly consistent iterator over the elements, oldest first. It never throws a
+     * {@link java.util.ConcurrentModificationException} and sees the elements that were queued when it was
+     * created, unless they were taken meanwhile.
+     */
+    @Override
+    public Iterator<E> iterator()
+    {
+        return new Itr();
+    }
+
+    @Override
+    public boolean remove(final Object o)
+    {
+        if (o == null) {
+            return false;
+        }
+
+        final Itr it = new Itr();
+        while (it.hasNext()) {
+            if (o.equals(it.next()) && it.removeLast()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void idle(final int counter) throws InterruptedException
+    {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        waitStrategy.idle(counter);
+    }
+
+    private int index(final long pos)
+    {
+        return (int) (pos % capacity);
+    }
+
+    private final class Itr implements Iterator<E>
+    {
+        private final long end = tail.get();
+        private long pos = head.get();
+
+        private E nextElement = null;
+        private long nextPos = -1L;
+        private E lastElement = null;
+        private long lastPos = -1L;
+
+        Itr()
+        {
+            advance();
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return nextElement != null;
+        }
+
+        @Override
+        public E next()
+        {
+            if (nextElement == null) {
+                throw new NoSuchElementException();
+            }
+            lastElement = nextElement;
+            lastPos = nextPos;
+            advance();
+            return lastElement;
+        }
+
+        @Override
+        public void remove()
+        {
+            Preconditions.checkState(lastElement != null, "next() was not called or the element was already removed!");
+            removeLast();
+        }
+
+        /**
+         * Clears the slot of the element returned last, if it still holds it. Returns false if the element was taken meanwhile.
+         */
+        boolean removeLast()
+        {
+            final int index = index(lastPos);
+            final E e = lastElement;
+            lastElement = null;
+
+            if (sequences.get(index) == lastPos + 1 && slots.compareAndSet(index, e, null)) {
+                removed.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        private void advance()
+        {
+            nextElement = null;
+            while (pos < end) {
+                final long current = pos++;
+                final int index = index(current);
+                // Only slots that are filled for this round, skipping the ones that were taken or removed.
+                if (sequences.get(index) == current + 1) {
+                    final E e = slots.get(index);
+                    if (e != null) {
+                        nextElement = e;
+                        nextPos = current;
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Runs tasks one after the other, in the order in which they were submitted, on an executor that may run
+ * many tasks at the same time. Many serial executors can share one executor.
+ */
+final class SerialExecutor implements Executor
+{
+    private static final Log LOG = Log.findLog();
+
+    private final Executor executor;
+
+    // Guarded by tasks.
+    private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+    private boolean scheduled = false;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run()
+        {
+            for (;;) {
+                final Runnable task;
+                synchronized (tasks) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+
+                try {
+                    task.run();
+                }
+                catch (RuntimeException re) {
+                    LOG.warnDebug(re, "Caught an exception in a serial task");
+                }
+            }
+        }
+    };
+
+    SerialExecutor(@Nonnull final Executor executor)
+    {
+        Preconditions.checkNotNull(executor, "the executor can not be null!");
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(@Nonnull final Runnable task)
+    {
+        Preconditions.checkNotNull(task, "the task can not be null!");
+
+        synchronized (tasks) {
+            tasks.add(task);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+
+        try {
+            executor.execute(drain);
+        }
+        catch (RuntimeException re) {
+            synchronized (tasks) {
+                tasks.remove(task);
+                scheduled = false;
+            }
+            throw re;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Spreads the messages for one exchange or queue over a number of publishers, each with its own thread and channel.
+ *
+ * Every message is assigned to a shard by the hash of its key, so all messages with the same key go through the
+ * same publisher and keep their order. Messages without a key are spread round robin and have no ordering guarantee.
+ *
+ * Running this runnable starts a thread for every shard and waits until all of them are done.
+ */
+public class ShardedPublisher<T> implements Runnable
+{
+    private static final Log LOG = Log.findLog();
+
+    private final String name;
+    private final List<AbstractPublisher<T>> shards;
+    private final Function<? super T, ?> keyFunction;
+    private final ThreadFactory threadFactory;
+
+    private final AtomicInteger nextShard = new AtomicInteger(0);
+
+    /**
+     * @param name Name of the exchange or queue, used for the thread names.
+     * @param shards The publishers to spread the messages over.
+     * @param keyFunction Returns the key of a message. May return null for messages that have no key.
+     */
+    public ShardedPublisher(@Nonnull final String name,
+                            @Nonnull final List<? extends AbstractPublisher<T>> shards,
+                            @Nonnull final Function<? super T, ?> keyFunction)
+    {
+        this(name, shards, keyFunction, AmqpThreads.newThreadFactory(false, "amqp-shard-" + name + "-", false));
+    }
+
+    ShardedPublisher(@Nonnull final String name,
+                     @Nonnull final List<? extends AbstractPublisher<T>> shards,
+                     @Nonnull final Function<? super T, ?> keyFunction,
+                     @Nonnull final ThreadFactory threadFactory)
+    {
+        Preconditions.checkNotNull(name, "the name can not be null!");
+        Preconditions.checkArgument(shards != null && !shards.isEmpty(), "at least one shard is needed!");
+        Preconditions.checkNotNull(keyFunction, "the key function can not be null!");
+
+        this.name = name;
+        this.shards = ImmutableList.copyOf(shards);
+        this.keyFunction = keyFunction;
+        this.threadFactory = threadFactory;
+    }
+
+    public int getShardCount()
+    {
+        return shards.size();
+    }
+
+    /**
+     * Returns the publisher that handles all messages with the given key.
+     */
+    public AbstractPublisher<T> getShard(@Nullable final Object key)
+    {
+        final int index;
+        if (key == null) {
+            index = (nextShard.getAndIncrement() & Integer.MAX_VALUE) % shards.size();
+        }
+        else {
+            index = (AmqpUtils.spread(key.hashCode()) & Integer.MAX_VALUE) % shards.size();
+        }
+        return shards.get(index);
+    }
+
+    public boolean offer(@Nonnull final T data)
+    {
+        return shardFor(data).offer(data);
+    }
+
+    public ListenableFuture<Boolean> publishAsync(@Nonnull final T data)
+    {
+        return shardFor(data).publishAsync(data);
+    }
+
+    public boolean offerWithTimeout(@Nonnull final T data)
+    {
+        return shardFor(data).offerWithTimeout(data);
+    }
+
+    public boolean offerWithTimeout(@Nonnull final T data, final long timeout, final TimeUnit unit)
+    {
+        return shardFor(data).offerWithTimeout(data, timeout, unit);
+    }
+
+    public void put(@Nonnull final T data)
+    {
+        shardFor(data).put(data);
+    }
+
+    public boolean isEmpty()
+    {
+        for (AbstractPublisher<T> shard : shards) {
+            if (!shard.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * True if all shards are connected.
+     */
+    public boolean isConnected()
+    {
+        for (AbstractPublisher<T> shard : shards) {
+            if (!shard.isConnected()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void shutdown()
+    {
+        for (AbstractPublisher<T> shard : shards) {
+            shard.shutdown();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        final Thread [] threads = new Thread[shards.size()];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = threadFactory.newThread(shards.get(i));
+            threads[i].start();
+        }
+
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        catch (InterruptedException ie) {
+            LOG.trace("Terminated by interrupt, stopping all shards");
+            shutdown();
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                }
+                catch (InterruptedException ie2) {
+                    LOG.warn("Interrupted again while stopping shards for '%s'", name);
+                }
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private AbstractPublisher<T> shardFor(final T data)
+    {
+        Preconditions.checkNotNull(data, "the message can not be null!");
+        return getShard(keyFunction.apply(data));
+    }
+}
@@ -0,0 +1,362 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+import com.nesscomputing.amqp.PublisherCallback.PublisherData;
+import com.nesscomputing.logging.Log;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Append-only journal of messages on local disk, used by a publisher to keep messages while the broker can not take them.
+ *
+ * The journal is a sequence of memory mapped segment files. Every segment starts with the position of the next record
+ * to replay, followed by the records, each a length followed by the serialized properties and body. Records are replayed
+ * in order; a segment file is deleted as soon as all of its records were replayed. Records that were not replayed when the
+ * process stopped are picked up again by the next journal that opens the same directory.
+ *
+ * Of the message headers, only strings, numbers, booleans and byte arrays survive the journal; other values are stored as their
+ * string representation.
+ */
+final class SpillJournal
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final String SEGMENT_SUFFIX = ".spill";
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_DIRECTORIES = 64;
+
+    private final File directory;
+    private final int segmentSize;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+
+    // Guarded by this. First is the segment to replay from, last is the one to append to.
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private long nextSegment = 0L;
+    private boolean closed = false;
+
+    // Written under this lock, read without it. Publishers check it on every offer.
+    private volatile boolean empty = true;
+
+    /**
+     * Opens a journal for a publisher below the given directory. Every journal locks its own sub directory,
+     * so several publishers with the same name in one or more processes never share segment files.
+     */
+    static SpillJournal open(@Nonnull final File baseDirectory, @Nonnull final String name, final int segmentSize) throws IOException
+    {
+        final String safeName = name.replaceAll("[^A-Za-z0-9._-]", "_");
+
+        for (int i = 0; i < MAX_DIRECTORIES; i++) {
+            final File directory = new File(baseDirectory, i == 0 ? safeName : safeName + "-" + i);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create spill directory " + directory);
+            }
+
+            final RandomAccessFile lockFile = new RandomAccessFile(new File(directory, "lock"), "rw");
+            FileLock lock = null;
+            try {
+                lock = lockFile.getChannel().tryLock();
+            }
+            catch (OverlappingFileLockException ofle) {
+                // Locked by another journal in this VM.
+            }
+
+            if (lock != null) {
+                return new SpillJournal(directory, segmentSize, lockFile, lock);
+            }
+            lockFile.close();
+        }
+
+        throw new IOException("Could not lock a spill directory for " + name + " in " + baseDirectory);
+    }
+
+    private SpillJournal(final File directory, final int segmentSize, final RandomAccessFile lockFile, final FileLock lock) throws IOException
+    {
+        Preconditions.checkArgument(segmentSize > HEADER_SIZE + 4, "segment size %s is too small!", segmentSize);
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.lockFile = lockFile;
+        this.lock = lock;
+
+        final File [] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String fileName) {
+                return fileName.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        final long [] sequences = new long[files == null ? 0 : files.length];
+        for (int i = 0; i < sequences.length; i++) {
+            final String fileName = files[i].getName();
+            sequences[i] = Long.parseLong(fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(sequences);
+
+        for (long sequence : sequences) {
+            final Segment segment = new Segment(sequence);
+            segment.recover();
+            segments.addLast(segment);
+            nextSegment = sequence + 1;
+        }
+        empty = headSegment() == null;
+
+        if (!empty) {
+            LOG.info("Found spilled messages in %s, will replay them", directory);
+        }
+    }
+
+    /**
+     * Appends a message to the journal.
+     *
+     * @return false if the message is too large to fit into a segment or the journal was closed.
+     */
+    boolean append(@Nonnull final PublisherData publisherData) throws IOException
+    {
+        return append(publisherData.getProperties(), publisherData.getData());
+    }
+
+    /**
+     * Appends a message with the given properties to the journal.
+     *
+     * @return false if the message is too large to fit into a segment or the journal was closed.
+     */
+    boolean append(@Nullable final BasicProperties properties, @Nonnull final byte [] body) throws IOException
+    {
+        final byte [] record = MessageCodec.encode(properties, body);
+        if (record.length + 4 > segmentSize - HEADER_SIZE) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+
+            Segment segment = segments.peekLast();
+            if (segment == null || !segment.hasRoom(record.length)) {
+                if (segment != null) {
+                    segment.release();
+                }
+                segment = new Segment(nextSegment++);
+                segment.create();
+                segments.addLast(segment);
+            }
+            segment.append(record);
+            empty = false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the oldest message that was not replayed yet, or null if there is none. The message stays in the journal
+     * until {@link #remove()} is called.
+     */
+    @CheckForNull
+    synchronized PublisherData peek() throws IOException
+    {
+        final Segment segment = headSegment();
+        if (segment == null) {
+            return null;
+        }
+        return MessageCodec.decode(segment.read());
+    }
+
+    /**
+     * Removes the message returned by the last {@link #peek()}. Deletes segments that are completely replayed.
+     */
+    synchronized void remove() throws IOException
+    {
+        final Segment segment = headSegment();
+        if (segment != null) {
+            segment.skip();
+            empty = headSegment() == null;
+        }
+    }
+
+    boolean isEmpty()
+    {
+        return empty;
+    }
+
+    synchronized void close() throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        for (Segment segment : segments) {
+            segment.force();
+        }
+        segments.clear();
+        empty = true;
+        lock.release();
+        lockFile.close();
+    }
+
+    /**
+     * Returns the first segment that has records to replay and deletes all fully replayed segments before it.
+     * The last segment is kept even when it is empty, because new records get appended to it.
+     */
+    private Segment headSegment() throws IOException
+    {
+        Segment segment;
+        while ((segment = segments.peekFirst()) != null) {
+            if (segment.hasRecords()) {
+                return segment;
+            }
+            if (segments.size() == 1) {
+                return null;
+            }
+            segments.removeFirst();
+            segment.delete();
+        }
+        return null;
+    }
+
+    private class Segment
+    {
+        private final File file;
+        private MappedByteBuffer buffer = null;
+        private int writePosition = HEADER_SIZE;
+        private int readPosition = HEADER_SIZE;
+
+        Segment(final long sequence)
+        {
+            this.file = new File(directory, String.format("%016d%s", sequence, SEGMENT_SUFFIX));
+        }
+
+        void create() throws IOException
+        {
+            map();
+            buffer.putLong(0, HEADER_SIZE);
+        }
+
+        void recover() throws IOException
+        {
+            map();
+            readPosition = (int) buffer.getLong(0);
+            if (readPosition < HEADER_SIZE) {
+                readPosition = HEADER_SIZE;
+            }
+
+            // Records are terminated by a zero length; a record is only valid once its length was written.
+            writePosition = HEADER_SIZE;
+            while (writePosition + 4 <= segmentSize) {
+                final int length = buffer.getInt(writePosition);
+                if (length <= 0 || writePosition + 4 + length > segmentSize) {
+                    break;
+                }
+                writePosition += 4 + length;
+            }
+        }
+
+        boolean hasRoom(final int length)
+        {
+            return writePosition + 4 + length <= segmentSize;
+        }
+
+        boolean hasRecords()
+        {
+            return readPosition < writePosition;
+        }
+
+        void append(final byte [] record) throws IOException
+        {
+            map();
+            final ByteBuffer slice = buffer.duplicate();
+            slice.position(writePosition + 4);
+            slice.put(record);
+            // Write the length last, so that a half written record is never replayed.
+            buffer.putInt(writePosition, record.length);
+            writePosition += 4 + record.length;
+        }
+
+        byte [] read() throws IOException
+        {
+            map();
+            final int length = buffer.getInt(readPosition);
+            final byte [] record = new byte[length];
+            final ByteBuffer slice = buffer.duplicate();
+            slice.position(readPosition + 4);
+            slice.get(record);
+            return record;
+        }
+
+        void skip() throws IOException
+        {
+            map();
+            readPosition += 4 + buffer.getInt(readPosition);
+            buffer.putLong(0, readPosition);
+        }
+
+        void force()
+        {
+            if (buffer != null) {
+                buffer.force();
+            }
+        }
+
+        /**
+         * Flushes the segment and drops the mapping. It gets mapped again when it is replayed.
+         */
+        void release()
+        {
+            force();
+            buffer = null;
+        }
+
+        void delete()
+        {
+            buffer = null;
+            if (!file.delete()) {
+                LOG.warn("Could not delete replayed spill segment %s", file);
+            }
+        }
+
+        private void map() throws IOException
+        {
+            if (buffer == null) {
+                final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+                }
+                finally {
+                    raf.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Token bucket for pacing a publisher. Tokens flow in at a fixed rate up to the capacity of the bucket.
+ *
+ * Taking tokens never blocks; the bucket may go into debt, and the caller gets told how long it would
+ * take to pay that debt back. This lets the caller decide when waiting is worth it, instead of sleeping
+ * for every single message.
+ */
+final class TokenBucket
+{
+    private final double tokensPerNano;
+    private final double capacity;
+
+    // Guarded by this.
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(final double tokensPerSecond, final double capacity)
+    {
+        Preconditions.checkArgument(tokensPerSecond > 0.0, "the rate must be larger than 0!");
+        Preconditions.checkArgument(capacity >= 1.0, "the capacity must be at least 1!");
+
+        this.tokensPerNano = tokensPerSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes a number of tokens out of the bucket.
+     *
+     * @return 0 if the bucket had enough tokens, otherwise the number of nanoseconds until the bucket is out of debt.
+     */
+    synchronized long take(final long count)
+    {
+        final long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+
+        tokens -= count;
+        return tokens >= 0.0 ? 0L : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+}
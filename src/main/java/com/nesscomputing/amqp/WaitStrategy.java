@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits on a lock-free publisher queue that is full (producers) or empty (publisher thread).
+ */
+public enum WaitStrategy
+{
+    /** Busy spin. Lowest latency, but keeps a core busy while waiting. */
+    SPIN {
+        @Override
+        void idle(final int counter)
+        {
+        }
+    },
+
+    /** Give up the time slice to other runnable threads. */
+    YIELD {
+        @Override
+        void idle(final int counter)
+        {
+            Thread.yield();
+        }
+    },
+
+    /** Park the thread with an exponentially growing delay, from one microsecond up to about a millisecond. */
+    PARK {
+        @Override
+        void idle(final int counter)
+        {
+            LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(counter, 10)));
+        }
+    };
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+    /**
+     * Wait once. The counter is the number of times the caller already waited for the same condition.
+     */
+    abstract void idle(int counter);
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * gzip and deflate codecs on top of the JDK {@link Deflater} and {@link Inflater}.
+ *
+ * Deflaters and inflaters hold native memory and are expensive to set up, so every codec keeps a small pool of them
+ * instead of using the JDK streams, which create a new one for every message. The gzip header and trailer are written
+ * by hand around a raw deflate stream.
+ */
+final class ZipCompressionCodec implements CompressionCodec
+{
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+    private static final byte [] GZIP_HEADER = new byte [] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final int GZIP_TRAILER_LENGTH = 8;
+
+    private static final int FHCRC = 0x02;
+    private static final int FEXTRA = 0x04;
+    private static final int FNAME = 0x08;
+    private static final int FCOMMENT = 0x10;
+
+    private final String contentEncoding;
+    private final boolean gzip;
+    private final int level;
+
+    private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+    private final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+
+    ZipCompressionCodec(@Nonnull final String contentEncoding, final boolean gzip, final int level)
+    {
+        Preconditions.checkArgument(level == Deflater.DEFAULT_COMPRESSION || (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION),
+                                    "the compression level must be between 0 and 9!");
+
+        this.contentEncoding = contentEncoding;
+        this.gzip = gzip;
+        this.level = level;
+    }
+
+    @Override
+    public String getContentEncoding()
+    {
+        return contentEncoding;
+    }
+
+    @Override
+    public byte [] compress(@Nonnull final byte [] data) throws IOException
+    {
+        final Deflater deflater = borrowDeflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            final int headerLength = gzip ? GZIP_HEADER.length : 0;
+            byte [] out = new byte[headerLength + Math.max(64, data.length / 2)];
+            System.arraycopy(GZIP_HEADER, 0, out, 0, headerLength);
+
+            int pos = headerLength;
+            while (!deflater.finished()) {
+                if (pos == out.length) {
+                    out = Arrays.copyOf(out, out.length << 1);
+                }
+                pos += deflater.deflate(out, pos, out.length - pos);
+            }
+
+            if (gzip) {
+                if (out.length - pos < GZIP_TRAILER_LENGTH) {
+                    out = Arrays.copyOf(out, pos + GZIP_TRAILER_LENGTH);
+                }
+                final CRC32 crc = new CRC32();
+                crc.update(data);
+                pos = writeIntLE(out, pos, (int) crc.getValue());
+                pos = writeIntLE(out, pos, data.length);
+            }
+
+            return pos == out.length ? out : Arrays.copyOf(out, pos);
+        }
+        finally {
+            returnDeflater(deflater);
+        }
+    }
+
+    @Override
+    public byte [] decompress(@Nonnull final byte [] data) throws IOException
+    {
+        final int offset;
+        final int expectedLength;
+
+        if (gzip) {
+            offset = skipGzipHeader(data);
+            expectedLength = readIntLE(data, data.length - 4);
+        }
+        else {
+            offset = 0;
+            expectedLength = -1;
+        }
+
+        final Inflater inflater = borrowInflater();
+        try {
+            inflater.setInput(data, offset, data.length - offset);
+
+            // The gzip trailer carries the length, but it can not be trusted further than the best possible deflate ratio.
+            final int initialLength = expectedLength >= 0 && expectedLength / 1032 <= data.length ? expectedLength : data.length * 4;
+            byte [] out = new byte[Math.max(64, initialLength)];
+
+            int pos = 0;
+            while (!inflater.finished()) {
+                if (pos == out.length) {
+                    out = Arrays.copyOf(out, out.length << 1);
+                }
+                final int count = inflater.inflate(out, pos, out.length - pos);
+                if (count == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("truncated " + contentEncoding + " data");
+                }
+                pos += count;
+            }
+
+            if (gzip) {
+                if (inflater.getRemaining() < GZIP_TRAILER_LENGTH) {
+                    throw new IOException("missing gzip trailer");
+                }
+                final CRC32 crc = new CRC32();
+                crc.update(out, 0, pos);
+                final int trailer = data.length - inflater.getRemaining();
+                if (readIntLE(data, trailer) != (int) crc.getValue() || readIntLE(data, trailer + 4) != pos) {
+                    throw new IOException("corrupt gzip data, checksum or length mismatch");
+                }
+            }
+
+            return pos == out.length ? out : Arrays.copyOf(out, pos);
+        }
+        catch (DataFormatException dfe) {
+            throw new IOException("corrupt " + contentEncoding + " data", dfe);
+        }
+        finally {
+            returnInflater(inflater);
+        }
+    }
+
+    private static int skipGzipHeader(final byte [] data) throws IOException
+    {
+        if (data.length < GZIP_HEADER.length + GZIP_TRAILER_LENGTH
+            || data[0] != GZIP_HEADER[0] || data[1] != GZIP_HEADER[1] || data[2] != Deflater.DEFLATED) {
+            throw new IOException("not in gzip format");
+        }
+
+        final int flags = data[3] & 0xff;
+        int pos = GZIP_HEADER.length;
+
+        if ((flags & FEXTRA) != 0) {
+            checkHeader(data, pos + 2);
+            pos += 2 + ((data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            pos = skipZeroTerminated(data, pos);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            pos = skipZeroTerminated(data, pos);
+        }
+        if ((flags & FHCRC) != 0) {
+            pos += 2;
+        }
+
+        checkHeader(data, pos);
+        return pos;
+    }
+
+    private static int skipZeroTerminated(final byte [] data, final int start) throws IOException
+    {
+        int pos = start;
+        do {
+            checkHeader(data, pos + 1);
+        } while (data[pos++] != 0);
+        return pos;
+    }
+
+    private static void checkHeader(final byte [] data, final int pos) throws IOException
+    {
+        if (pos > data.length - GZIP_TRAILER_LENGTH) {
+            throw new IOException("corrupt gzip header");
+        }
+    }
+
+    private static int writeIntLE(final byte [] data, final int pos, final int value)
+    {
+        data[pos] = (byte) value;
+        data[pos + 1] = (byte) (value >>> 8);
+        data[pos + 2] = (byte) (value >>> 16);
+        data[pos + 3] = (byte) (value >>> 24);
+        return pos + 4;
+    }
+
+    private static int readIntLE(final byte [] data, final int pos)
+    {
+        return (data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8 | (data[pos + 2] & 0xff) << 16 | (data[pos + 3] & 0xff) << 24;
+    }
+
+    private Deflater borrowDeflater()
+    {
+        final Deflater deflater = deflaters.poll();
+        return deflater != null ? deflater : new Deflater(level, gzip);
+    }
+
+    private void returnDeflater(final Deflater deflater)
+    {
+        deflater.reset();
+        if (!deflaters.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    private Inflater borrowInflater()
+    {
+        final Inflater inflater = inflaters.poll();
+        return inflater != null ? inflater : new Inflater(gzip);
+    }
+
+    private void returnInflater(final Inflater inflater)
+    {
+        inflater.reset();
+        if (!inflaters.offer(inflater)) {
+            inflater.end();
+        }
+    }
+}
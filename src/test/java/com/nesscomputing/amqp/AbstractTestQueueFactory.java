@@ -17,6 +17,8 @@ package com.nesscomputing.amqp;
 
 import static java.lang.String.format;
 
+import java.util.Map;
+
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -36,6 +38,7 @@ import com.nesscomputing.config.Config;
 import com.nesscomputing.config.ConfigModule;
 import com.nesscomputing.jackson.NessJacksonModule;
 import com.nesscomputing.testing.lessio.AllowNetworkListen;
+import com.rabbitmq.client.ConnectionFactory;
 
 @AllowNetworkListen(ports={0})
 public abstract class AbstractTestQueueFactory
@@ -46,6 +49,12 @@ public abstract class AbstractTestQueueFactory
     @Named("test")
     public AmqpRunnableFactory queueRunnableFactory;
 
+    @Inject
+    @Named("test")
+    public ConnectionFactory connectionFactory;
+
+    private String brokerUri;
+
     protected abstract AmqpProvider getProvider();
 
     @Before
@@ -53,7 +62,7 @@ public abstract class AbstractTestQueueFactory
     {
         getProvider().startup();
 
-        final String brokerUri = getProvider().getUri();
+        brokerUri = getProvider().getUri();
 
         final Config config = Config.getFixedConfig(ImmutableMap.of("ness.amqp.test.enabled", "true",
                                                                     "ness.amqp.test.connection-url", brokerUri));
@@ -75,6 +84,16 @@ public abstract class AbstractTestQueueFactory
         Assert.assertNotNull(queueRunnableFactory);
     }
 
+    protected AmqpConfig getAmqpConfig(final Map<String, String> settings)
+    {
+        final Config config = Config.getFixedConfig(ImmutableMap.<String, String>builder()
+                                                    .put("ness.amqp.test.enabled", "true")
+                                                    .put("ness.amqp.test.connection-url", brokerUri)
+                                                    .putAll(settings)
+                                                    .build());
+        return config.getBean(AmqpConfig.class, ImmutableMap.of("name", "test"));
+    }
+
     @After
     public void tearDown() throws Exception
     {
@@ -298,7 +317,143 @@ public abstract class AbstractTestQueueFactory
         consumerThread1.join();
         consumerThread2.join();
     }
-}
 
+    @Test
+    public void testBatchedProduceConsume() throws Exception
+    {
+        final CountingMessageCallback cmc = new CountingMessageCallback();
+        final QueueConsumer queueConsumer = queueRunnableFactory.createQueueListener("test-queue", cmc);
+        final QueuePublisher<String> queuePublisher = new QueuePublisher<String>(connectionFactory,
+                                                                                 getAmqpConfig(ImmutableMap.of("ness.amqp.test.publisher-batch-size", "16")),
+                                                                                 "test-queue",
+                                                                                 new StringPublisherCallback());
+        final Thread consumerThread = new Thread(queueConsumer);
+        final Thread producerThread = new Thread(queuePublisher);
+        consumerThread.start();
+        producerThread.start();
 
+        Thread.sleep(1000L);
+
+        Assert.assertTrue(queueConsumer.isConnected());
+        Assert.assertFalse(queuePublisher.isConnected());
 
+        final int maxCount = 1000;
+        for (int i = 0; i < maxCount; i++) {
+            queuePublisher.put(format("hello, world %d", i));
+        }
+
+        Thread.sleep(DRAIN_SLEEP);
+        Assert.assertTrue(queuePublisher.isEmpty());
+        Assert.assertEquals(maxCount, cmc.getCount());
+
+        queuePublisher.shutdown();
+        queueConsumer.shutdown();
+        producerThread.interrupt();
+        consumerThread.interrupt();
+        producerThread.join();
+        consumerThread.join();
+    }
+
+    @Test
+    public void testEnvelopeProduceConsume() throws Exception
+    {
+        final CountingMessageCallback cmc = new CountingMessageCallback();
+        final QueueConsumer queueConsumer = queueRunnableFactory.createQueueListener("test-queue", cmc);
+        final QueuePublisher<String> queuePublisher = new QueuePublisher<String>(connectionFactory,
+                                                                                 getAmqpConfig(ImmutableMap.of("ness.amqp.test.publisher-batch-size", "64",
+                                                                                                               "ness.amqp.test.publisher-envelope-max-bytes", "1024")),
+                                                                                 "test-queue",
+                                                                                 new StringPublisherCallback());
+        final Thread consumerThread = new Thread(queueConsumer);
+        final Thread producerThread = new Thread(queuePublisher);
+        consumerThread.start();
+        producerThread.start();
+
+        Thread.sleep(1000L);
+
+        Assert.assertTrue(queueConsumer.isConnected());
+
+        final int maxCount = 1000;
+        for (int i = 0; i < maxCount; i++) {
+            queuePublisher.put(format("hello, world %d", i));
+        }
+
+        Thread.sleep(DRAIN_SLEEP);
+        Assert.assertTrue(queuePublisher.isEmpty());
+        Assert.assertEquals(maxCount, cmc.getCount());
+
+        queuePublisher.shutdown();
+        queueConsumer.shutdown();
+        producerThread.interrupt();
+        consumerThread.interrupt();
+        producerThread.join();
+        consumerThread.join();
+    }
+
+    @Test
+    public void testSharedConnection() throws Exception
+    {
+        final CountingMessageCallback cmc = new CountingMessageCallback();
+        final QueueConsumer queueConsumer = queueRunnableFactory.createQueueListener("test-queue", cmc);
+        final QueuePublisher<Object> queuePublisher = queueRunnableFactory.createQueueJsonPublisher("test-queue");
+        final Thread consumerThread = new Thread(queueConsumer);
+        final Thread producerThread = new Thread(queuePublisher);
+        consumerThread.start();
+        producerThread.start();
+
+        Thread.sleep(1000L);
+
+        queuePublisher.put("hello, world");
+
+        Thread.sleep(DRAIN_SLEEP);
+        Assert.assertTrue(queueConsumer.isConnected());
+        Assert.assertTrue(queuePublisher.isConnected());
+        Assert.assertEquals(1, cmc.getCount());
+
+        // Two channels on the same connection.
+        Assert.assertSame(queueConsumer.getChannel().getConnection(), queuePublisher.getChannel().getConnection());
+        Assert.assertFalse(queueConsumer.getChannel() == queuePublisher.getChannel());
+
+        queuePublisher.shutdown();
+        queueConsumer.shutdown();
+        producerThread.interrupt();
+        consumerThread.interrupt();
+        producerThread.join();
+        consumerThread.join();
+    }
+
+    @Test
+    public void testOverflowDropOldest() throws Exception
+    {
+        final QueuePublisher<String> queuePublisher = new QueuePublisher<String>(connectionFactory,
+                                                                                 getAmqpConfig(ImmutableMap.of("ness.amqp.test.publisher-queue-length", "2",
+                                                                                                               "ness.amqp.test.publisher-overflow-policy", "DROP_OLDEST")),
+                                                                                 "test-queue",
+                                                                                 new StringPublisherCallback());
+
+        // The publisher is not running, so nothing drains the queue.
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(queuePublisher.offer(format("hello, world %d", i)));
+        }
+
+        Assert.assertEquals(0, queuePublisher.remainingCapacity());
+        Assert.assertEquals(3, queuePublisher.getEvictedCount());
+        Assert.assertEquals(0, queuePublisher.getDroppedCount());
+    }
+
+    @Test
+    public void testOverflowDropNewest() throws Exception
+    {
+        final QueuePublisher<String> queuePublisher = new QueuePublisher<String>(connectionFactory,
+                                                                                 getAmqpConfig(ImmutableMap.of("ness.amqp.test.publisher-queue-length", "2")),
+                                                                                 "test-queue",
+                                                                                 new StringPublisherCallback());
+
+        Assert.assertTrue(queuePublisher.offer("hello, world 1"));
+        Assert.assertTrue(queuePublisher.offer("hello, world 2"));
+        Assert.assertFalse(queuePublisher.offer("hello, world 3"));
+
+        Assert.assertEquals(1, queuePublisher.getDroppedCount());
+        Assert.assertEquals(0, queuePublisher.getEvictedCount());
+    }
+}
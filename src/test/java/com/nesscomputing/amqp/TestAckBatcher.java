@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.rabbitmq.client.Channel;
+
+public class TestAckBatcher
+{
+    private final List<String> acks = Lists.newArrayList();
+
+    private final Channel channel = (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Channel.class }, new InvocationHandler() {
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            if ("basicAck".equals(method.getName())) {
+                acks.add(args[0] + (Boolean.TRUE.equals(args[1]) ? "+" : ""));
+            }
+            return null;
+        }
+    });
+
+    @Test
+    public void testSingleAcks() throws Exception
+    {
+        final AckBatcher batcher = new AckBatcher(1, TimeUnit.SECONDS.toNanos(10L));
+        batcher.ack(channel, 1L);
+        batcher.ack(channel, 2L);
+
+        Assert.assertEquals(Lists.newArrayList("1", "2"), acks);
+        Assert.assertEquals(0, batcher.getPendingCount());
+        Assert.assertEquals(1000L, batcher.getWaitMillis(1000L));
+    }
+
+    @Test
+    public void testBatchSize() throws Exception
+    {
+        final AckBatcher batcher = new AckBatcher(3, TimeUnit.SECONDS.toNanos(10L));
+        for (long tag = 1L; tag <= 7L; tag++) {
+            batcher.ack(channel, tag);
+        }
+
+        Assert.assertEquals(Lists.newArrayList("3+", "6+"), acks);
+        Assert.assertEquals(1, batcher.getPendingCount());
+        Assert.assertTrue(batcher.getWaitMillis(1000L) <= 1000L);
+
+        // Not due yet.
+        batcher.flushIfDue(channel);
+        Assert.assertEquals(2, acks.size());
+
+        // A single pending ack is not sent as multiple.
+        batcher.flush(channel);
+        Assert.assertEquals(Lists.newArrayList("3+", "6+", "7"), acks);
+        Assert.assertEquals(3L, batcher.getAckCount());
+
+        batcher.flush(channel);
+        Assert.assertEquals(3, acks.size());
+    }
+
+    @Test
+    public void testLinger() throws Exception
+    {
+        final AckBatcher batcher = new AckBatcher(100, TimeUnit.MILLISECONDS.toNanos(20L));
+        batcher.ack(channel, 1L);
+        batcher.ack(channel, 2L);
+        Assert.assertTrue(acks.isEmpty());
+
+        Thread.sleep(batcher.getWaitMillis(1000L));
+        Assert.assertEquals(0L, batcher.getWaitMillis(1000L));
+
+        batcher.flushIfDue(channel);
+        Assert.assertEquals(Lists.newArrayList("2+"), acks);
+    }
+
+    @Test
+    public void testReset() throws Exception
+    {
+        final AckBatcher batcher = new AckBatcher(10, 0L);
+        batcher.ack(channel, 1L);
+        Assert.assertTrue(acks.isEmpty());
+
+        // No linger, the ack is due as soon as no more messages are waiting.
+        Assert.assertEquals(0L, batcher.getWaitMillis(1000L));
+        batcher.flushIfDue(channel);
+        Assert.assertEquals(Lists.newArrayList("1"), acks);
+
+        final AckBatcher lingering = new AckBatcher(10, TimeUnit.SECONDS.toNanos(10L));
+        lingering.ack(channel, 5L);
+        lingering.reset();
+        lingering.flush(channel);
+        Assert.assertEquals(Lists.newArrayList("1"), acks);
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+public class TestAmqpConnectionPool
+{
+    private final List<Connection> opened = Lists.newArrayList();
+
+    private final ConnectionFactory connectionFactory = new ConnectionFactory() {
+        @Override
+        public Connection newConnection() {
+            final AtomicBoolean open = new AtomicBoolean(true);
+            final Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    if ("isOpen".equals(method.getName())) {
+                        return open.get();
+                    }
+                    else if ("close".equals(method.getName())) {
+                        open.set(false);
+                    }
+                    return null;
+                }
+            });
+            opened.add(connection);
+            return connection;
+        }
+    };
+
+    @Test
+    public void testSharedConnectionClosedByLastUser() throws Exception
+    {
+        final AmqpConnectionPool pool = new AmqpConnectionPool(connectionFactory, 1);
+
+        final Connection first = pool.acquire();
+        final Connection second = pool.acquire();
+        Assert.assertSame(first, second);
+        Assert.assertEquals(2, pool.getUserCount());
+
+        pool.release(first);
+        Assert.assertTrue(first.isOpen());
+
+        pool.release(second);
+        Assert.assertFalse(first.isOpen());
+        Assert.assertEquals(0, pool.getUserCount());
+
+        // The next runnable gets a new connection.
+        final Connection third = pool.acquire();
+        Assert.assertNotSame(first, third);
+        Assert.assertTrue(third.isOpen());
+        Assert.assertEquals(2, opened.size());
+    }
+
+    @Test
+    public void testUnsharedConnections() throws Exception
+    {
+        final AmqpConnectionPool pool = new AmqpConnectionPool(connectionFactory, 0);
+
+        final Connection first = pool.acquire();
+        final Connection second = pool.acquire();
+        Assert.assertNotSame(first, second);
+
+        pool.release(first);
+        Assert.assertFalse(first.isOpen());
+        Assert.assertTrue(second.isOpen());
+    }
+}
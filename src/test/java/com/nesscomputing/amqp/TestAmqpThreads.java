@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestAmqpThreads
+{
+    private static boolean isVirtual(final Thread thread) throws Exception
+    {
+        return Boolean.TRUE.equals(Thread.class.getMethod("isVirtual").invoke(thread));
+    }
+
+    @Test
+    public void testPlatformThreads() throws Exception
+    {
+        final Thread thread = AmqpThreads.newThreadFactory(false, "test-", false).newThread(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        Assert.assertEquals("test-0", thread.getName());
+        Assert.assertFalse(thread.isDaemon());
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception
+    {
+        // Falls back to platform threads on runtimes without virtual threads.
+        final Thread thread = AmqpThreads.newThreadFactory(true, "test-", false).newThread(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        Assert.assertEquals("test-0", thread.getName());
+        if (AmqpThreads.isVirtualSupported()) {
+            Assert.assertTrue(isVirtual(thread));
+        }
+    }
+
+    @Test
+    public void testWorkerExecutor() throws Exception
+    {
+        for (boolean virtual : new boolean [] {false, true}) {
+            final ExecutorService executor = AmqpThreads.newWorkerExecutor(virtual, 1, "worker-");
+            final AtomicReference<Thread> worker = new AtomicReference<Thread>();
+            final CountDownLatch done = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    worker.set(Thread.currentThread());
+                    done.countDown();
+                }
+            });
+
+            Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(worker.get().getName().startsWith("worker-"));
+            Assert.assertTrue(worker.get().isDaemon());
+
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+}
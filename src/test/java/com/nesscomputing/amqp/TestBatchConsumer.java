@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.skife.config.TimeSpan;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.nesscomputing.amqp.util.RecordingChannel;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+public class TestBatchConsumer
+{
+    private final RecordingChannel channel = new RecordingChannel();
+
+    private final AmqpConfig amqpConfig = new AmqpConfig() {
+        @Override
+        public int getConsumerBatchSize() {
+            return 3;
+        }
+
+        @Override
+        public TimeSpan getConsumerBatchWait() {
+            return new TimeSpan("200ms");
+        }
+    };
+
+    private static void deliver(final Consumer consumer, final long deliveryTag, final String body) throws IOException
+    {
+        consumer.handleDelivery("consumer-tag", new Envelope(deliveryTag, false, "", "test-queue"), new BasicProperties.Builder().build(), body.getBytes(Charsets.UTF_8));
+    }
+
+    @Test
+    public void testBatches() throws Exception
+    {
+        final BlockingQueue<List<String>> batches = new LinkedBlockingQueue<List<String>>();
+
+        final QueueConsumer queueConsumer = new QueueConsumer(channel.getConnectionFactory(), amqpConfig, "test-queue", new BatchConsumerCallback() {
+            @Override
+            public boolean withDeliveries(final List<Delivery> deliveries) throws IOException {
+                final List<String> bodies = Lists.newArrayList();
+                for (Delivery delivery : deliveries) {
+                    bodies.add(new String(delivery.getBody(), Charsets.UTF_8));
+                }
+                batches.add(bodies);
+
+                if (bodies.contains("fail")) {
+                    throw new IOException("could not write the batch");
+                }
+                return true;
+            }
+        });
+
+        final Thread thread = new Thread(queueConsumer);
+        thread.start();
+        final Consumer consumer = channel.awaitConsumer();
+
+        for (int i = 1; i <= 5; i++) {
+            deliver(consumer, i, "message " + i);
+        }
+
+        // The first batch is full, the second one is handed over after the batch wait time.
+        Assert.assertEquals(Lists.newArrayList("message 1", "message 2", "message 3"), batches.poll(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Lists.newArrayList("message 4", "message 5"), batches.poll(5, TimeUnit.SECONDS));
+
+        deliver(consumer, 6L, "fail");
+        deliver(consumer, 7L, "message 7");
+        Assert.assertEquals(Lists.newArrayList("fail", "message 7"), batches.poll(5, TimeUnit.SECONDS));
+
+        queueConsumer.shutdown();
+        thread.join();
+
+        Assert.assertEquals(Lists.newArrayList("ack 3+", "ack 5+", "nack 7+"), channel.getAcks());
+    }
+}
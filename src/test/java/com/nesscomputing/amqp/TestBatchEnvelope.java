@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.nesscomputing.amqp.PublisherCallback.PublisherData;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+public class TestBatchEnvelope
+{
+    private static PublisherData message(final String body, final int deliveryMode, final int priority)
+    {
+        final BasicProperties props = new BasicProperties.Builder()
+        .contentType("text/plain")
+        .deliveryMode(deliveryMode)
+        .priority(priority)
+        .build();
+
+        return new EncodedPublisherData(props, body.getBytes(Charsets.UTF_8));
+    }
+
+    @Test
+    public void testPackUnpack() throws Exception
+    {
+        final BatchEnvelope envelope = new BatchEnvelope(4096);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(envelope.add(message("hello, world " + i, i == 3 ? 2 : 1, i)));
+        }
+
+        final PublisherData packed = envelope.build();
+        Assert.assertTrue(BatchEnvelope.isEnvelope(packed.getProperties()));
+        Assert.assertEquals(Integer.valueOf(2), packed.getProperties().getDeliveryMode());
+        Assert.assertEquals(Integer.valueOf(9), packed.getProperties().getPriority());
+
+        final List<PublisherData> messages = BatchEnvelope.unpack(packed.getData());
+        Assert.assertEquals(10, messages.size());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals("hello, world " + i, new String(messages.get(i).getData(), Charsets.UTF_8));
+            Assert.assertEquals("text/plain", messages.get(i).getProperties().getContentType());
+            Assert.assertEquals(Integer.valueOf(i), messages.get(i).getProperties().getPriority());
+        }
+    }
+
+    @Test
+    public void testSingleMessage() throws Exception
+    {
+        final BatchEnvelope envelope = new BatchEnvelope(4096);
+        final PublisherData message = message("hello, world", 1, 0);
+        Assert.assertTrue(envelope.add(message));
+        Assert.assertSame(message, envelope.build());
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception
+    {
+        final BatchEnvelope envelope = new BatchEnvelope(128);
+
+        // The first message always fits.
+        Assert.assertTrue(envelope.add(message("this message alone is larger than the maximum size of the envelope, which is just one hundred and twenty eight bytes", 1, 0)));
+        Assert.assertFalse(envelope.add(message("hello, world", 1, 0)));
+
+        envelope.clear();
+        Assert.assertTrue(envelope.isEmpty());
+        Assert.assertTrue(envelope.add(message("hello", 1, 0)));
+        Assert.assertTrue(envelope.add(message("world", 1, 0)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws Exception
+    {
+        final BatchEnvelope envelope = new BatchEnvelope(4096);
+        envelope.add(message("hello", 1, 0));
+        envelope.add(message("world", 1, 0));
+
+        final byte [] data = envelope.build().getData();
+        final byte [] truncated = new byte[data.length - 3];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        BatchEnvelope.unpack(truncated);
+    }
+}
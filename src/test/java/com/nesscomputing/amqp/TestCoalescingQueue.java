@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class TestCoalescingQueue
+{
+    private static final Function<String, String> KEY_FUNCTION = new Function<String, String>() {
+        @Override
+        public String apply(final String data) {
+            final int index = data.indexOf(':');
+            return index < 0 ? null : data.substring(0, index);
+        }
+    };
+
+    @Test
+    public void testCoalesce() throws Exception
+    {
+        final CoalescingQueue<String> queue = new CoalescingQueue<String>(KEY_FUNCTION, 10);
+
+        final SettableFuture<Boolean> replaced = SettableFuture.create();
+        Assert.assertTrue(queue.offer(new PublisherEntry<String>("a:1", replaced)));
+        Assert.assertTrue(queue.offer(new PublisherEntry<String>("b:1", null)));
+        Assert.assertTrue(queue.offer(new PublisherEntry<String>("a:2", null)));
+        Assert.assertTrue(queue.offer(new PublisherEntry<String>("c:1", null)));
+        Assert.assertTrue(queue.offer(new PublisherEntry<String>("a:3", null)));
+
+        Assert.assertEquals(3, queue.size());
+        Assert.assertEquals(7, queue.remainingCapacity());
+        Assert.assertFalse(replaced.get());
+
+        // The latest message for a key, at the position of the first one.
+        Assert.assertEquals("a:3", queue.poll().getData());
+        Assert.assertEquals("b:1", queue.poll().getData());
+        Assert.assertEquals("c:1", queue.poll().getData());
+        Assert.assertNull(queue.poll());
+
+        // Once a message was taken, a new message for the key is queued again.
+        Assert.assertTrue(queue.offer(new PublisherEntry<String>("a:4", null)));
+        Assert.assertEquals("a:4", queue.poll().getData());
+    }
+
+    @Test
+    public void testIterator() throws Exception
+    {
+        final CoalescingQueue<String> queue = new CoalescingQueue<String>(KEY_FUNCTION, 3);
+
+        final PublisherEntry<String> a = new PublisherEntry<String>("a:1", null);
+        final PublisherEntry<String> b = new PublisherEntry<String>("b:1", null);
+        Assert.assertTrue(queue.offer(a));
+        Assert.assertTrue(queue.offer(b));
+        Assert.assertTrue(queue.offer(new PublisherEntry<String>("c:1", null)));
+        Assert.assertTrue(queue.contains(b));
+
+        Assert.assertTrue(queue.remove(a));
+        Assert.assertFalse(queue.remove(a));
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals(1, queue.remainingCapacity());
+        Assert.assertSame(b, queue.peek());
+
+        // The key of the removed message is queued again at the end.
+        Assert.assertTrue(queue.offer(new PublisherEntry<String>("a:2", null)));
+
+        final Iterator<PublisherEntry<String>> it = queue.iterator();
+        Assert.assertSame(b, it.next());
+        it.remove();
+
+        final List<String> taken = new ArrayList<String>();
+        while (!queue.isEmpty()) {
+            taken.add(queue.poll().getData());
+        }
+        Assert.assertEquals(Arrays.asList("c:1", "a:2"), taken);
+        Assert.assertNull(queue.poll());
+        Assert.assertEquals(3, queue.remainingCapacity());
+    }
+
+    @Test
+    public void testBoundedByKeys() throws Exception
+    {
+        final CoalescingQueue<String> queue = new CoalescingQueue<String>(KEY_FUNCTION, 2);
+
+        Assert.assertTrue(queue.offer(new PublisherEntry<String>("a:1", null)));
+        Assert.assertTrue(queue.offer(new PublisherEntry<String>("b:1", null)));
+        Assert.assertFalse(queue.offer(new PublisherEntry<String>("c:1", null)));
+
+        // Updates for queued keys always fit.
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(queue.offer(new PublisherEntry<String>("a:" + i, null)));
+        }
+
+        // Messages without a key are never coalesced.
+        final List<PublisherEntry<String>> drained = new ArrayList<PublisherEntry<String>>();
+        Assert.assertEquals(2, queue.drainTo(drained));
+        Assert.assertTrue(queue.offer(new PublisherEntry<String>("x", null)));
+        Assert.assertTrue(queue.offer(new PublisherEntry<String>("x", null)));
+        Assert.assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception
+    {
+        final CoalescingQueue<String> queue = new CoalescingQueue<String>(KEY_FUNCTION, 16);
+        final int updates = 20000;
+
+        final Thread [] producers = new Thread[4];
+        for (int i = 0; i < producers.length; i++) {
+            final String key = "key" + i;
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < updates; j++) {
+                            queue.put(new PublisherEntry<String>(key + ":" + j, null));
+                        }
+                    }
+                    catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            producers[i].start();
+        }
+
+        // Values per key must never go backwards, and the last one must arrive.
+        final int [] last = new int[producers.length];
+        Arrays.fill(last, -1);
+        int done = 0;
+        while (done < producers.length) {
+            final PublisherEntry<String> entry = queue.poll(5L, TimeUnit.SECONDS);
+            Assert.assertNotNull(entry);
+            final String [] parts = entry.getData().split(":");
+            final int producer = Integer.parseInt(parts[0].substring(3));
+            final int value = Integer.parseInt(parts[1]);
+            Assert.assertTrue(value > last[producer]);
+            last[producer] = value;
+            if (value == updates - 1) {
+                done++;
+            }
+        }
+
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        Assert.assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.nesscomputing.amqp.PublisherCallback.PublisherData;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+public class TestCompression
+{
+    private static final byte [] LARGE = Strings.repeat("hello, world ", 1000).getBytes(Charsets.UTF_8);
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        for (CompressionCodec codec : new CompressionCodec [] { CompressionCodecs.GZIP, CompressionCodecs.DEFLATE, CompressionCodecs.gzip(1) }) {
+            final byte [] compressed = codec.compress(LARGE);
+            Assert.assertTrue(compressed.length < LARGE.length);
+            Assert.assertArrayEquals(LARGE, codec.decompress(compressed));
+
+            Assert.assertArrayEquals(new byte [0], codec.decompress(codec.compress(new byte [0])));
+        }
+    }
+
+    @Test
+    public void testGzipCompatible() throws Exception
+    {
+        final byte [] compressed = CompressionCodecs.GZIP.compress(LARGE);
+        Assert.assertArrayEquals(LARGE, ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final GZIPOutputStream gos = new GZIPOutputStream(bos);
+        gos.write(LARGE);
+        gos.close();
+        Assert.assertArrayEquals(LARGE, CompressionCodecs.GZIP.decompress(bos.toByteArray()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorrupt() throws Exception
+    {
+        final byte [] compressed = CompressionCodecs.GZIP.compress(LARGE);
+        compressed[compressed.length - 5]++;
+        CompressionCodecs.GZIP.decompress(compressed);
+    }
+
+    @Test
+    public void testCallbacks() throws Exception
+    {
+        final PublisherCallback<String> callback = new CompressingPublisherCallback<String>(new StringPublisherCallback(), CompressionCodecs.GZIP, 100);
+
+        final PublisherData small = callback.publish("hello, world");
+        Assert.assertNull(small.getProperties().getContentEncoding());
+        Assert.assertEquals("hello, world", new String(small.getData(), Charsets.UTF_8));
+
+        final String text = new String(LARGE, Charsets.UTF_8);
+        final PublisherData large = callback.publish(text);
+        Assert.assertEquals("gzip", large.getProperties().getContentEncoding());
+        Assert.assertEquals("text/plain", large.getProperties().getContentType());
+        Assert.assertTrue(large.getData().length < LARGE.length);
+
+        final StringBuilder received = new StringBuilder();
+        final ConsumerCallback consumerCallback = new DecompressingConsumerCallback(new ConsumerCallback() {
+            @Override
+            public boolean withDelivery(final Delivery delivery) {
+                Assert.assertNull(delivery.getProperties().getContentEncoding());
+                received.append(new String(delivery.getBody(), Charsets.UTF_8));
+                return true;
+            }
+        });
+
+        final Envelope envelope = new Envelope(1L, false, "", "test");
+        Assert.assertTrue(consumerCallback.withDelivery(new Delivery(envelope, large.getProperties(), large.getData())));
+        Assert.assertEquals(text, received.toString());
+
+        received.setLength(0);
+        Assert.assertTrue(consumerCallback.withDelivery(new Delivery(envelope, small.getProperties(), small.getData())));
+        Assert.assertEquals("hello, world", received.toString());
+    }
+}
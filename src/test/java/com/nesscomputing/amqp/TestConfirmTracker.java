@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class TestConfirmTracker
+{
+    private PublisherEntry<String> register(final ConfirmTracker tracker, final long seqNo) throws Exception
+    {
+        Assert.assertTrue(tracker.acquire(0L, TimeUnit.MILLISECONDS));
+        final PublisherEntry<String> entry = new PublisherEntry<String>("message " + seqNo, SettableFuture.<Boolean>create());
+        tracker.register(seqNo, entry);
+        return entry;
+    }
+
+    @Test
+    public void testSingleAck() throws Exception
+    {
+        final ConfirmTracker tracker = new ConfirmTracker(4);
+        final PublisherEntry<String> e1 = register(tracker, 1L);
+        final PublisherEntry<String> e2 = register(tracker, 2L);
+
+        tracker.handleAck(2L, false);
+        Assert.assertFalse(e1.getFuture().isDone());
+        Assert.assertTrue(e2.getFuture().get());
+        Assert.assertEquals(1, tracker.getOutstanding());
+
+        tracker.handleNack(1L, false);
+        Assert.assertFalse(e1.getFuture().get());
+        Assert.assertEquals(0, tracker.getOutstanding());
+    }
+
+    @Test
+    public void testMultipleAck() throws Exception
+    {
+        final ConfirmTracker tracker = new ConfirmTracker(4);
+        final PublisherEntry<String> e1 = register(tracker, 1L);
+        final PublisherEntry<String> e2 = register(tracker, 2L);
+        final PublisherEntry<String> e3 = register(tracker, 3L);
+        final PublisherEntry<String> e4 = register(tracker, 4L);
+
+        // The window is full now.
+        Assert.assertFalse(tracker.acquire(0L, TimeUnit.MILLISECONDS));
+
+        tracker.handleAck(3L, true);
+        Assert.assertTrue(e1.getFuture().get());
+        Assert.assertTrue(e2.getFuture().get());
+        Assert.assertTrue(e3.getFuture().get());
+        Assert.assertFalse(e4.getFuture().isDone());
+
+        // Sequence numbers wrap around the ring.
+        final PublisherEntry<String> e5 = register(tracker, 5L);
+        final PublisherEntry<String> e6 = register(tracker, 6L);
+        tracker.handleNack(6L, true);
+        Assert.assertFalse(e4.getFuture().get());
+        Assert.assertFalse(e5.getFuture().get());
+        Assert.assertFalse(e6.getFuture().get());
+        Assert.assertEquals(0, tracker.getOutstanding());
+    }
+
+    @Test
+    public void testOutOfOrderAck() throws Exception
+    {
+        final ConfirmTracker tracker = new ConfirmTracker(2);
+        final PublisherEntry<String> e1 = register(tracker, 1L);
+        final PublisherEntry<String> e2 = register(tracker, 2L);
+
+        // A newer message confirmed on its own frees no room while the oldest one is still outstanding.
+        tracker.handleAck(2L, false);
+        Assert.assertTrue(e2.getFuture().get());
+        Assert.assertFalse(tracker.acquire(10L, TimeUnit.MILLISECONDS));
+
+        tracker.handleAck(1L, false);
+        Assert.assertTrue(e1.getFuture().get());
+        final PublisherEntry<String> e3 = register(tracker, 3L);
+        final PublisherEntry<String> e4 = register(tracker, 4L);
+        Assert.assertFalse(tracker.acquire(0L, TimeUnit.MILLISECONDS));
+
+        tracker.handleAck(4L, true);
+        Assert.assertTrue(e3.getFuture().get());
+        Assert.assertTrue(e4.getFuture().get());
+        Assert.assertEquals(0, tracker.getOutstanding());
+    }
+
+    @Test
+    public void testFailAll() throws Exception
+    {
+        final ConfirmTracker tracker = new ConfirmTracker(2);
+        final PublisherEntry<String> e1 = register(tracker, 1L);
+        final PublisherEntry<String> e2 = register(tracker, 2L);
+
+        tracker.failAll(new IOException("channel lost"));
+
+        for (PublisherEntry<String> entry : ImmutableList.of(e1, e2)) {
+            try {
+                entry.getFuture().get();
+                Assert.fail();
+            }
+            catch (ExecutionException ee) {
+                Assert.assertTrue(ee.getCause() instanceof IOException);
+            }
+        }
+
+        Assert.assertTrue(tracker.acquire(0L, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(tracker.acquire(0L, TimeUnit.MILLISECONDS));
+    }
+}
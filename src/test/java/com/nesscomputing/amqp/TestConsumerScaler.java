@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.skife.config.TimeSpan;
+
+import com.google.common.base.Supplier;
+import com.nesscomputing.amqp.util.RecordingChannel;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+public class TestConsumerScaler
+{
+    @Test
+    public void testGrowAndShrink()
+    {
+        final ConsumerScaler scaler = new ConsumerScaler(1, 3, 100L, 10L, 2);
+
+        // A single sample above the grow backlog is not enough.
+        Assert.assertEquals(1, scaler.sample(1, 500L, 1));
+        Assert.assertEquals(2, scaler.sample(1, 500L, 1));
+
+        // 500 messages for two consumers is still too much, but the count starts over after a change.
+        Assert.assertEquals(2, scaler.sample(2, 500L, 2));
+        Assert.assertEquals(3, scaler.sample(2, 500L, 2));
+
+        // Never beyond the maximum.
+        Assert.assertEquals(3, scaler.sample(3, 5000L, 3));
+        Assert.assertEquals(3, scaler.sample(3, 5000L, 3));
+
+        Assert.assertEquals(3, scaler.sample(3, 0L, 3));
+        Assert.assertEquals(2, scaler.sample(3, 0L, 3));
+        Assert.assertEquals(2, scaler.sample(2, 0L, 2));
+        Assert.assertEquals(1, scaler.sample(2, 0L, 2));
+
+        // Never below the minimum.
+        Assert.assertEquals(1, scaler.sample(1, 0L, 1));
+        Assert.assertEquals(1, scaler.sample(1, 0L, 1));
+    }
+
+    @Test
+    public void testHysteresis()
+    {
+        final ConsumerScaler scaler = new ConsumerScaler(1, 4, 100L, 10L, 2);
+
+        // A backlog between both thresholds resets the count.
+        Assert.assertEquals(2, scaler.sample(2, 500L, 2));
+        Assert.assertEquals(2, scaler.sample(2, 100L, 2));
+        Assert.assertEquals(2, scaler.sample(2, 500L, 2));
+        Assert.assertEquals(2, scaler.sample(2, 10L, 2));
+        Assert.assertEquals(2, scaler.sample(2, 500L, 2));
+        Assert.assertEquals(3, scaler.sample(2, 500L, 2));
+    }
+
+    @Test
+    public void testOtherConsumers()
+    {
+        final ConsumerScaler scaler = new ConsumerScaler(1, 4, 100L, 10L, 1);
+
+        // The backlog is shared with the consumers of other processes.
+        Assert.assertEquals(1, scaler.sample(1, 500L, 10));
+        Assert.assertEquals(2, scaler.sample(1, 500L, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadThresholds()
+    {
+        new ConsumerScaler(1, 4, 10L, 10L, 1);
+    }
+
+    @Test
+    public void testGroup() throws Exception
+    {
+        final AmqpConfig amqpConfig = new AmqpConfig() {
+            @Override
+            public int getConsumerScalingMin() {
+                return 2;
+            }
+
+            @Override
+            public TimeSpan getConsumerScalingInterval() {
+                return new TimeSpan("10ms");
+            }
+        };
+
+        final RecordingChannel channel = new RecordingChannel();
+        final AmqpConnectionPool connectionPool = new AmqpConnectionPool(channel.getConnectionFactory(), 0);
+        final QueueConsumerGroup group = new QueueConsumerGroup(connectionPool, amqpConfig, "test-queue", new Supplier<AbstractAmqpRunnable>() {
+            @Override
+            public AbstractAmqpRunnable get() {
+                return new IdleRunnable(connectionPool, amqpConfig);
+            }
+        });
+
+        final Thread thread = new Thread(group);
+        thread.start();
+
+        while (channel.count("queueDeclarePassive") < 2) {
+            Thread.sleep(10L);
+        }
+        Assert.assertEquals(2, group.getConsumerCount());
+
+        group.shutdown();
+        thread.join();
+        Assert.assertEquals(0, group.getConsumerCount());
+        Assert.assertFalse(group.isRunning());
+    }
+
+    @Test
+    public void testGroupPrefetch() throws Exception
+    {
+        final RecordingChannel channel = new RecordingChannel();
+        final QueueConsumerGroup group = new QueueConsumerGroup(channel.getConnectionFactory(), new AmqpConfig() {}, "test-queue", new ConsumerCallback() {
+            @Override
+            public boolean withDelivery(final Delivery delivery) {
+                return true;
+            }
+        });
+
+        final Thread thread = new Thread(group);
+        thread.start();
+        channel.awaitConsumer();
+
+        // Without a configured prefetch count, the broker would hand the whole backlog to the first consumer.
+        final Object [] qos = channel.getArguments("basicQos").get(0);
+        Assert.assertEquals(0, qos[0]);
+        Assert.assertEquals(100, qos[1]);
+
+        group.shutdown();
+        thread.join();
+    }
+
+    private static class IdleRunnable extends AbstractAmqpRunnable
+    {
+        IdleRunnable(final AmqpConnectionPool connectionPool, final AmqpConfig amqpConfig)
+        {
+            super(connectionPool, amqpConfig, "test-queue");
+        }
+
+        @Override
+        protected String getServiceType()
+        {
+            return "idle";
+        }
+
+        @Override
+        protected void connectCallback(final Channel channel) throws IOException
+        {
+        }
+
+        @Override
+        protected boolean process() throws InterruptedException
+        {
+            Thread.sleep(10L);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.skife.config.TimeSpan;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.nesscomputing.amqp.PublisherCallback.PublisherData;
+import com.nesscomputing.amqp.util.RecordingChannel;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+public class TestDeliveryHandle
+{
+    private final RecordingChannel channel = new RecordingChannel();
+    private final List<DeliveryHandle> handles = Lists.newArrayList();
+
+    private AbstractConsumer consumer = null;
+    private Thread thread = null;
+
+    // PUSH dispatch runs the callback right in deliver(), which keeps the tests deterministic.
+    private final AmqpConfig amqpConfig = new AmqpConfig() {
+        @Override
+        public ConsumerDispatch getConsumerDispatch() {
+            return ConsumerDispatch.PUSH;
+        }
+
+        @Override
+        public TimeSpan getBackoffDelay() {
+            return new TimeSpan("10ms");
+        }
+    };
+
+    @After
+    public void tearDown() throws Exception
+    {
+        consumer.shutdown();
+        thread.join();
+    }
+
+    private Consumer start(final AbstractConsumer consumer) throws Exception
+    {
+        this.consumer = consumer;
+        this.thread = new Thread(consumer);
+        thread.start();
+        return channel.awaitConsumer();
+    }
+
+    private static void deliver(final Consumer consumer, final long deliveryTag, final BasicProperties properties, final byte [] body) throws IOException
+    {
+        consumer.handleDelivery("consumer-tag", new Envelope(deliveryTag, false, "", "test-queue"), properties, body);
+    }
+
+    private static void deliver(final Consumer consumer, final long deliveryTag, final String body) throws IOException
+    {
+        deliver(consumer, deliveryTag, new BasicProperties.Builder().build(), body.getBytes(Charsets.UTF_8));
+    }
+
+    private final DeliveryHandleCallback deferringCallback = new DeliveryHandleCallback() {
+        @Override
+        public boolean withDelivery(final DeliveryHandle handle) {
+            handles.add(handle);
+            return true;
+        }
+    };
+
+    @Test
+    public void testDeferred() throws Exception
+    {
+        final Consumer pushConsumer = start(new QueueConsumer(channel.getConnectionFactory(), amqpConfig, "test-queue", deferringCallback));
+
+        deliver(pushConsumer, 1L, "one");
+        deliver(pushConsumer, 2L, "two");
+        deliver(pushConsumer, 3L, "three");
+        Assert.assertEquals(3, handles.size());
+        Assert.assertEquals("two", new String(handles.get(1).getDelivery().getBody(), Charsets.UTF_8));
+        Assert.assertTrue(channel.getAcks().isEmpty());
+
+        // The first message holds up the ack of the second one.
+        Assert.assertTrue(handles.get(1).ack());
+        Assert.assertTrue(channel.getAcks().isEmpty());
+
+        Assert.assertTrue(handles.get(0).nack(false));
+        Assert.assertEquals(Lists.newArrayList("nack 1", "ack 2"), channel.getAcks());
+
+        // Only the first ack or nack counts.
+        Assert.assertTrue(handles.get(0).isSettled());
+        Assert.assertFalse(handles.get(0).ack());
+        Assert.assertFalse(handles.get(1).nack(true));
+
+        Assert.assertTrue(handles.get(2).ack());
+        Assert.assertEquals(Lists.newArrayList("nack 1", "ack 2", "ack 3"), channel.getAcks());
+    }
+
+    @Test
+    public void testEnvelope() throws Exception
+    {
+        final Consumer pushConsumer = start(new QueueConsumer(channel.getConnectionFactory(), amqpConfig, "test-queue", deferringCallback));
+
+        final BatchEnvelope envelope = new BatchEnvelope(4096);
+        envelope.add(new EncodedPublisherData(new BasicProperties.Builder().build(), "hello".getBytes(Charsets.UTF_8)));
+        envelope.add(new EncodedPublisherData(new BasicProperties.Builder().build(), "world".getBytes(Charsets.UTF_8)));
+        final PublisherData packed = envelope.build();
+
+        deliver(pushConsumer, 1L, packed.getProperties(), packed.getData());
+        Assert.assertEquals(2, handles.size());
+
+        // The delivery is only acknowledged once every message in it is.
+        Assert.assertTrue(handles.get(1).ack());
+        Assert.assertTrue(channel.getAcks().isEmpty());
+        Assert.assertTrue(handles.get(0).ack());
+        Assert.assertEquals(Lists.newArrayList("ack 1"), channel.getAcks());
+    }
+
+    @Test
+    public void testFailedCallback() throws Exception
+    {
+        final Consumer pushConsumer = start(new QueueConsumer(channel.getConnectionFactory(), amqpConfig, "test-queue", new ConsumerCallback() {
+            @Override
+            public boolean withDelivery(final Delivery delivery) throws IOException {
+                if ("fail".equals(new String(delivery.getBody(), Charsets.UTF_8))) {
+                    throw new IOException("could not process the message");
+                }
+                return true;
+            }
+        }));
+
+        deliver(pushConsumer, 1L, "hello");
+        deliver(pushConsumer, 2L, "fail");
+
+        // A failed message is rejected, so it does not come back over and over.
+        Assert.assertEquals(Lists.newArrayList("ack 1", "nack 2"), channel.getAcks());
+    }
+}
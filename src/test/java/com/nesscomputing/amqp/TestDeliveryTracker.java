@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.rabbitmq.client.Channel;
+
+public class TestDeliveryTracker
+{
+    private final List<String> acks = Lists.newArrayList();
+
+    private Channel newChannel()
+    {
+        return (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Channel.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if ("basicAck".equals(method.getName())) {
+                    acks.add(args[0] + (Boolean.TRUE.equals(args[1]) ? "+" : ""));
+                }
+                else if ("basicNack".equals(method.getName())) {
+                    acks.add("nack " + args[0] + (Boolean.TRUE.equals(args[1]) ? "+" : ""));
+                }
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testOutOfOrder() throws Exception
+    {
+        final Channel channel = newChannel();
+        final DeliveryTracker tracker = new DeliveryTracker(new AckBatcher(1, TimeUnit.SECONDS.toNanos(10L)));
+        tracker.reset(channel);
+
+        for (long tag = 1L; tag <= 5L; tag++) {
+            tracker.register(tag);
+        }
+
+        // Nothing can be acknowledged while the first delivery is still processed.
+        tracker.complete(channel, 3L);
+        tracker.complete(channel, 2L);
+        Assert.assertTrue(acks.isEmpty());
+        Assert.assertEquals(5, tracker.getOutstandingCount());
+
+        tracker.complete(channel, 1L);
+        Assert.assertEquals(Lists.newArrayList("3+"), acks);
+        Assert.assertEquals(2, tracker.getOutstandingCount());
+
+        tracker.complete(channel, 5L);
+        Assert.assertEquals(1, acks.size());
+
+        tracker.complete(channel, 4L);
+        Assert.assertEquals(Lists.newArrayList("3+", "5+"), acks);
+        Assert.assertEquals(0, tracker.getOutstandingCount());
+    }
+
+    @Test
+    public void testBatched() throws Exception
+    {
+        final Channel channel = newChannel();
+        final DeliveryTracker tracker = new DeliveryTracker(new AckBatcher(4, 0L));
+        tracker.reset(channel);
+
+        for (long tag = 1L; tag <= 6L; tag++) {
+            tracker.register(tag);
+        }
+        tracker.complete(channel, 2L);
+        tracker.complete(channel, 1L);
+        tracker.complete(channel, 3L);
+
+        // Deliveries are still processed, more acks may follow.
+        tracker.flushIfIdle();
+        Assert.assertTrue(acks.isEmpty());
+
+        tracker.complete(channel, 4L);
+        Assert.assertEquals(Lists.newArrayList("4+"), acks);
+
+        tracker.complete(channel, 6L);
+        tracker.complete(channel, 5L);
+        tracker.flushIfIdle();
+        Assert.assertEquals(Lists.newArrayList("4+", "6+"), acks);
+    }
+
+    @Test
+    public void testReconnect() throws Exception
+    {
+        final Channel oldChannel = newChannel();
+        final Channel newChannel = newChannel();
+        final DeliveryTracker tracker = new DeliveryTracker(new AckBatcher(1, 0L));
+        tracker.reset(oldChannel);
+
+        tracker.register(1L);
+        tracker.register(2L);
+        tracker.reset(newChannel);
+        tracker.register(1L);
+
+        // A delivery from the old channel must never ack a delivery on the new one.
+        tracker.complete(oldChannel, 1L);
+        Assert.assertTrue(acks.isEmpty());
+        Assert.assertEquals(1, tracker.getOutstandingCount());
+
+        tracker.complete(newChannel, 1L);
+        Assert.assertEquals(Lists.newArrayList("1"), acks);
+    }
+
+    @Test
+    public void testCompleteAndRejectAll() throws Exception
+    {
+        final Channel channel = newChannel();
+        final DeliveryTracker tracker = new DeliveryTracker(new AckBatcher(10, TimeUnit.SECONDS.toNanos(10L)));
+        tracker.reset(channel);
+
+        for (long tag = 1L; tag <= 3L; tag++) {
+            tracker.register(tag);
+        }
+        tracker.complete(channel, 2L);
+        tracker.complete(channel, 1L);
+        tracker.completeAll(channel);
+        Assert.assertEquals(0, tracker.getOutstandingCount());
+        Assert.assertTrue(acks.isEmpty());
+
+        tracker.register(4L);
+        tracker.register(5L);
+
+        // The pending acks go out before the nack, which would cover them otherwise.
+        tracker.rejectAll(channel, false);
+        Assert.assertEquals(Lists.newArrayList("3+", "nack 5+"), acks);
+        Assert.assertEquals(0, tracker.getOutstandingCount());
+    }
+}
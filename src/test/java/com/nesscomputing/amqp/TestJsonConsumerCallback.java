@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Lists;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+public class TestJsonConsumerCallback
+{
+    private final JsonReaderCache readers = new JsonReaderCache(new ObjectMapper());
+    private final List<Object> messages = Lists.newArrayList();
+
+    private final TypedConsumerCallback<Object> recordingCallback = new TypedConsumerCallback<Object>() {
+        @Override
+        public boolean withMessage(@Nullable final Object message, @Nonnull final Delivery delivery) {
+            messages.add(message);
+            return true;
+        }
+    };
+
+    private static Delivery delivery(final String routingKey, final String body)
+    {
+        return new Delivery(new Envelope(1L, false, "", routingKey),
+                            new BasicProperties.Builder().contentType("application/json").build(),
+                            body == null ? null : body.getBytes(Charsets.UTF_8));
+    }
+
+    @Test
+    public void testDecode() throws Exception
+    {
+        final JsonConsumerCallback<Map<?, ?>> callback = new JsonConsumerCallback<Map<?, ?>>(readers.getReader(Map.class), recordingCallback, null);
+
+        Assert.assertTrue(callback.withDelivery(delivery("test", "{\"hello\":\"world\"}")));
+        Assert.assertTrue(callback.withDelivery(delivery("test", null)));
+
+        Assert.assertEquals(2, messages.size());
+        Assert.assertEquals("world", ((Map<?, ?>) messages.get(0)).get("hello"));
+        Assert.assertNull(messages.get(1));
+    }
+
+    @Test
+    public void testPrefilter() throws Exception
+    {
+        final Predicate<Delivery> prefilter = new Predicate<Delivery>() {
+            @Override
+            public boolean apply(final Delivery delivery) {
+                return delivery.getEnvelope().getRoutingKey().startsWith("wanted");
+            }
+        };
+        final JsonConsumerCallback<Integer> callback = new JsonConsumerCallback<Integer>(readers.getReader(Integer.class), recordingCallback, prefilter);
+
+        // Filtered messages are never decoded, so even a broken body does no harm.
+        Assert.assertTrue(callback.withDelivery(delivery("unwanted", "not json at all")));
+        Assert.assertTrue(callback.withDelivery(delivery("wanted.one", "42")));
+        Assert.assertEquals(Lists.<Object>newArrayList(42), messages);
+
+        try {
+            callback.withDelivery(delivery("wanted.two", "not json at all"));
+            Assert.fail();
+        }
+        catch (IOException ioe) {
+            // The consumer rejects the message.
+        }
+    }
+
+    @Test
+    public void testReaderCache() throws Exception
+    {
+        Assert.assertSame(readers.getReader(Map.class), readers.getReader(Map.class));
+        Assert.assertNotSame(readers.getReader(Map.class), readers.getReader(List.class));
+    }
+}
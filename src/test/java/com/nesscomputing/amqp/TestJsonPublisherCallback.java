@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.nesscomputing.amqp.PublisherCallback.PublisherData;
+
+public class TestJsonPublisherCallback
+{
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void testPublish() throws Exception
+    {
+        final JsonPublisherCallback callback = new JsonPublisherCallback(mapper);
+
+        Assert.assertNull(callback.publish(null));
+
+        final PublisherData data = callback.publish(ImmutableMap.of("hello", "world"));
+        Assert.assertEquals("application/json", data.getProperties().getContentType());
+        Assert.assertEquals("{\"hello\":\"world\"}", new String(data.getData(), Charsets.UTF_8));
+
+        Assert.assertEquals("[1,2,3]", new String(callback.publish(new int [] {1, 2, 3}).getData(), Charsets.UTF_8));
+        Assert.assertEquals("\"text\"", new String(callback.publish("text").getData(), Charsets.UTF_8));
+    }
+
+    @Test
+    public void testLargeMessage() throws Exception
+    {
+        final JsonPublisherCallback callback = new JsonPublisherCallback(mapper);
+
+        final String large = Strings.repeat("x", JsonPublisherCallback.MAX_RETAINED_BUFFER_SIZE * 2);
+        final Map<?, ?> result = mapper.readValue(callback.publish(ImmutableMap.of("large", large)).getData(), Map.class);
+        Assert.assertEquals(large, result.get("large"));
+
+        // The buffer is reused, so a small message after a large one must not carry leftovers.
+        Assert.assertEquals("{\"small\":1}", new String(callback.publish(ImmutableMap.of("small", 1)).getData(), Charsets.UTF_8));
+    }
+
+    @Test
+    public void testOutputBuffer() throws Exception
+    {
+        final JsonPublisherCallback.OutputBuffer buffer = new JsonPublisherCallback.OutputBuffer();
+
+        buffer.write(new byte [JsonPublisherCallback.INITIAL_BUFFER_SIZE + 1], 0, JsonPublisherCallback.INITIAL_BUFFER_SIZE + 1);
+        Assert.assertEquals(JsonPublisherCallback.INITIAL_BUFFER_SIZE + 1, buffer.toByteArray().length);
+        buffer.reset();
+        Assert.assertEquals(JsonPublisherCallback.INITIAL_BUFFER_SIZE * 2, buffer.capacity());
+
+        buffer.write(new byte [JsonPublisherCallback.MAX_RETAINED_BUFFER_SIZE + 1], 0, JsonPublisherCallback.MAX_RETAINED_BUFFER_SIZE + 1);
+        buffer.reset();
+        Assert.assertEquals(JsonPublisherCallback.INITIAL_BUFFER_SIZE, buffer.capacity());
+        Assert.assertEquals(0, buffer.toByteArray().length);
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPriorityLaneQueue
+{
+    private static PublisherEntry<String> entry(final String data, final int priority)
+    {
+        return new PublisherEntry<String>(data, null, null, priority);
+    }
+
+    @Test
+    public void testStrict() throws Exception
+    {
+        final PriorityLaneQueue<PublisherEntry<String>> queue =
+            new PriorityLaneQueue<PublisherEntry<String>>(PublisherQueueType.ARRAY, 10, WaitStrategy.PARK, LanePolicy.STRICT, new int [] {1, 1, 1});
+
+        Assert.assertTrue(queue.offer(entry("low-1", 0)));
+        Assert.assertTrue(queue.offer(entry("high-1", 2)));
+        Assert.assertTrue(queue.offer(entry("mid-1", 1)));
+        Assert.assertTrue(queue.offer(entry("high-2", 5)));
+        Assert.assertTrue(queue.offer(entry("low-2", -1)));
+        Assert.assertEquals(5, queue.size());
+
+        Assert.assertEquals("high-1", queue.poll().getData());
+        Assert.assertEquals("high-2", queue.poll().getData());
+        Assert.assertEquals("mid-1", queue.poll().getData());
+
+        final List<PublisherEntry<String>> drained = new ArrayList<PublisherEntry<String>>();
+        Assert.assertEquals(2, queue.drainTo(drained));
+        Assert.assertEquals("low-1", drained.get(0).getData());
+        Assert.assertEquals("low-2", drained.get(1).getData());
+
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertNull(queue.poll(10L, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testIterator() throws Exception
+    {
+        final PriorityLaneQueue<PublisherEntry<String>> queue =
+            new PriorityLaneQueue<PublisherEntry<String>>(PublisherQueueType.RING, 10, WaitStrategy.PARK, LanePolicy.STRICT, new int [] {1, 1});
+
+        final PublisherEntry<String> low = entry("low", 0);
+        final PublisherEntry<String> high = entry("high", 1);
+        final PublisherEntry<String> other = entry("other", 1);
+        Assert.assertTrue(queue.offer(low));
+        Assert.assertTrue(queue.offer(high));
+        Assert.assertTrue(queue.offer(other));
+
+        final List<String> seen = new ArrayList<String>();
+        for (PublisherEntry<String> e : queue) {
+            seen.add(e.getData());
+        }
+        Assert.assertEquals("[high, other, low]", seen.toString());
+
+        Assert.assertTrue(queue.remove(high));
+        Assert.assertFalse(queue.remove(high));
+        Assert.assertEquals(2, queue.size());
+
+        final Iterator<PublisherEntry<String>> it = queue.iterator();
+        Assert.assertSame(other, it.next());
+        Assert.assertSame(low, it.next());
+        it.remove();
+        Assert.assertFalse(it.hasNext());
+        Assert.assertEquals(1, queue.size());
+
+        Assert.assertSame(other, queue.poll());
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void testWeighted() throws Exception
+    {
+        final PriorityLaneQueue<PublisherEntry<String>> queue =
+            new PriorityLaneQueue<PublisherEntry<String>>(PublisherQueueType.RING, 100, WaitStrategy.PARK, LanePolicy.WEIGHTED, new int [] {1, 3});
+
+        for (int i = 0; i < 40; i++) {
+            Assert.assertTrue(queue.offer(entry("low", 0)));
+            Assert.assertTrue(queue.offer(entry("high", 1)));
+        }
+
+        // Three high priority messages for every low priority one, as long as both lanes have messages.
+        int high = 0;
+        for (int i = 0; i < 40; i++) {
+            if ("high".equals(queue.take().getData())) {
+                high++;
+            }
+        }
+        Assert.assertEquals(30, high);
+
+        // Once the high lane is empty, the low lane gets everything.
+        int low = 0;
+        for (int i = 0; i < 40; i++) {
+            if ("low".equals(queue.take().getData())) {
+                low++;
+            }
+        }
+        Assert.assertEquals(30, low);
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testLanesAreBounded() throws Exception
+    {
+        final PriorityLaneQueue<PublisherEntry<String>> queue =
+            new PriorityLaneQueue<PublisherEntry<String>>(PublisherQueueType.ARRAY, 2, WaitStrategy.PARK, LanePolicy.STRICT, new int [] {1, 1});
+
+        Assert.assertTrue(queue.offer(entry("low-1", 0)));
+        Assert.assertTrue(queue.offer(entry("low-2", 0)));
+        Assert.assertFalse(queue.offer(entry("low-3", 0)));
+
+        // A full low lane does not keep out high priority messages.
+        Assert.assertTrue(queue.offer(entry("high-1", 1)));
+        Assert.assertEquals(1, queue.remainingCapacity());
+
+        // Eviction makes room in the lane of the new message.
+        Assert.assertEquals("low-1", queue.evict(entry("low-3", 0)).getData());
+        Assert.assertTrue(queue.offer(entry("low-3", 0)));
+        Assert.assertEquals(3, queue.size());
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.nesscomputing.amqp.PublisherCallback.PublisherData;
+import com.nesscomputing.amqp.util.RecordingChannel;
+import com.rabbitmq.client.ConnectionFactory;
+
+public class TestPublishAsync
+{
+    private static QueuePublisher<String> createPublisher(final int queueLength)
+    {
+        final AmqpConfig amqpConfig = new AmqpConfig() {
+            @Override
+            public int getPublisherQueueLength() {
+                return queueLength;
+            }
+        };
+        return new QueuePublisher<String>(new ConnectionFactory(), amqpConfig, "test-queue", new StringPublisherCallback());
+    }
+
+    private static void assertFailed(final ListenableFuture<Boolean> future, final String message) throws Exception
+    {
+        Assert.assertTrue(future.isDone());
+        try {
+            future.get();
+            Assert.fail();
+        }
+        catch (ExecutionException ee) {
+            Assert.assertTrue(ee.getCause() instanceof IllegalStateException);
+            Assert.assertEquals(message, ee.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testQueueFull() throws Exception
+    {
+        final QueuePublisher<String> publisher = createPublisher(1);
+
+        final ListenableFuture<Boolean> first = publisher.publishAsync("hello");
+        Assert.assertFalse(first.isDone());
+
+        assertFailed(publisher.publishAsync("world"), "publisher queue is full");
+        Assert.assertEquals(1L, publisher.getDroppedCount());
+    }
+
+    @Test
+    public void testShutdown() throws Exception
+    {
+        final QueuePublisher<String> publisher = createPublisher(10);
+
+        final ListenableFuture<Boolean> queued = publisher.publishAsync("hello");
+        Assert.assertFalse(queued.isDone());
+
+        // Stops right away, the queued message was never sent.
+        publisher.shutdown();
+        publisher.run();
+
+        assertFailed(queued, "publisher was shut down");
+        assertFailed(publisher.publishAsync("world"), "publisher was shut down");
+        Assert.assertTrue(publisher.isEmpty());
+    }
+
+    private static void assertUnencodable(final int envelopeMaxBytes) throws Exception
+    {
+        final AmqpConfig amqpConfig = new AmqpConfig() {
+            @Override
+            public int getPublisherEnvelopeMaxBytes() {
+                return envelopeMaxBytes;
+            }
+        };
+        final StringPublisherCallback stringCallback = new StringPublisherCallback();
+        final RecordingChannel channel = new RecordingChannel();
+        final QueuePublisher<String> publisher = new QueuePublisher<String>(channel.getConnectionFactory(), amqpConfig, "test-queue", new PublisherCallback<String>() {
+            @Override
+            public PublisherData publish(final String data) throws IOException {
+                if ("bad".equals(data)) {
+                    throw new IOException("could not encode the message");
+                }
+                return stringCallback.publish(data);
+            }
+        });
+
+        final ListenableFuture<Boolean> bad = publisher.publishAsync("bad");
+        final ListenableFuture<Boolean> good = publisher.publishAsync("good");
+
+        final Thread thread = new Thread(publisher);
+        thread.start();
+        try {
+            // The message that can not be encoded fails on its own and does not hold up the next one.
+            Assert.assertTrue(good.get(5, TimeUnit.SECONDS));
+            Assert.assertTrue(bad.isDone());
+            try {
+                bad.get();
+                Assert.fail();
+            }
+            catch (ExecutionException ee) {
+                Assert.assertTrue(ee.getCause() instanceof IOException);
+            }
+            Assert.assertEquals(1, channel.count("basicPublish"));
+        }
+        finally {
+            publisher.shutdown();
+            thread.join();
+        }
+    }
+
+    @Test
+    public void testUnencodableEnveloped() throws Exception
+    {
+        assertUnencodable(4096);
+    }
+
+    @Test
+    public void testUnencodable() throws Exception
+    {
+        assertUnencodable(0);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.nesscomputing.amqp.PublisherCallback.PublisherData;
+
+public class TestPublisherEncoder
+{
+    private static final PublisherCallback<String> FAILING_CALLBACK = new PublisherCallback<String>() {
+        @Override
+        public PublisherData publish(final String data) throws IOException {
+            throw new IOException(data);
+        }
+    };
+
+    @Test
+    public void testCaller() throws Exception
+    {
+        final PublisherEncoder<String> encoder = new PublisherEncoder<String>(new StringPublisherCallback(), PublisherEncoding.CALLER, 0, 10, "test");
+
+        final ListenableFuture<PublisherData> encoded = encoder.submit("hello, world");
+        Assert.assertTrue(encoded.isDone());
+        Assert.assertTrue(encoded.get() instanceof EncodedPublisherData);
+        Assert.assertEquals("text/plain", encoded.get().getProperties().getContentType());
+        Assert.assertEquals("hello, world", new String(encoded.get().getData(), Charsets.UTF_8));
+        encoder.close();
+    }
+
+    @Test
+    public void testPool() throws Exception
+    {
+        final PublisherEncoder<String> encoder = new PublisherEncoder<String>(new StringPublisherCallback(), PublisherEncoding.POOL, 4, 16, "test");
+
+        final int maxCount = 1000;
+        final List<ListenableFuture<PublisherData>> futures = new ArrayList<ListenableFuture<PublisherData>>(maxCount);
+        for (int i = 0; i < maxCount; i++) {
+            futures.add(encoder.submit("hello, world " + i));
+        }
+
+        for (int i = 0; i < maxCount; i++) {
+            Assert.assertEquals("hello, world " + i, new String(futures.get(i).get().getData(), Charsets.UTF_8));
+        }
+        encoder.close();
+
+        // Still encodes on the calling thread after shutdown.
+        Assert.assertEquals("late", new String(encoder.submit("late").get().getData(), Charsets.UTF_8));
+    }
+
+    @Test
+    public void testFailure() throws Exception
+    {
+        final PublisherEncoder<String> encoder = new PublisherEncoder<String>(FAILING_CALLBACK, PublisherEncoding.POOL, 1, 1, "test");
+
+        try {
+            encoder.submit("broken").get();
+            Assert.fail();
+        }
+        catch (ExecutionException ee) {
+            Assert.assertTrue(ee.getCause() instanceof IOException);
+            Assert.assertEquals("broken", ee.getCause().getMessage());
+        }
+        encoder.close();
+    }
+}
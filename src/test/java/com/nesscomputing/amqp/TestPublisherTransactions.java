@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.nesscomputing.amqp.util.RecordingChannel;
+
+public class TestPublisherTransactions
+{
+    private final RecordingChannel channel = new RecordingChannel();
+
+    @Test
+    public void testCommitPerBatch() throws Exception
+    {
+        final AmqpConfig amqpConfig = new AmqpConfig() {
+            @Override
+            public boolean isPublisherTransactions() {
+                return true;
+            }
+
+            @Override
+            public int getPublisherQueueLength() {
+                return 100;
+            }
+
+            @Override
+            public int getPublisherBatchSize() {
+                return 10;
+            }
+        };
+
+        final QueuePublisher<String> publisher = new QueuePublisher<String>(channel.getConnectionFactory(), amqpConfig, "test-queue", new StringPublisherCallback());
+
+        final List<ListenableFuture<Boolean>> futures = Lists.newArrayList();
+        for (int i = 0; i < 25; i++) {
+            futures.add(publisher.publishAsync("hello, world " + i));
+        }
+
+        final Thread thread = new Thread(publisher);
+        thread.start();
+
+        // Messages only count as sent after their transaction was committed.
+        for (ListenableFuture<Boolean> future : futures) {
+            Assert.assertTrue(future.get(5, TimeUnit.SECONDS));
+        }
+
+        publisher.shutdown();
+        thread.join();
+
+        Assert.assertEquals(1, channel.count("txSelect"));
+        Assert.assertEquals(25, channel.count("basicPublish"));
+        Assert.assertEquals(3, channel.count("txCommit"));
+        Assert.assertEquals(3L, publisher.getCommitCount());
+        Assert.assertTrue(channel.getCalls().indexOf("txCommit") > channel.getCalls().indexOf("basicPublish"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoConfirms()
+    {
+        final AmqpConfig amqpConfig = new AmqpConfig() {
+            @Override
+            public boolean isPublisherTransactions() {
+                return true;
+            }
+
+            @Override
+            public boolean isPublisherConfirms() {
+                return true;
+            }
+        };
+
+        new QueuePublisher<String>(channel.getConnectionFactory(), amqpConfig, "test-queue", new StringPublisherCallback());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoCallerRuns()
+    {
+        final AmqpConfig amqpConfig = new AmqpConfig() {
+            @Override
+            public boolean isPublisherTransactions() {
+                return true;
+            }
+
+            @Override
+            public OverflowPolicy getPublisherOverflowPolicy() {
+                return OverflowPolicy.CALLER_RUNS;
+            }
+        };
+
+        new QueuePublisher<String>(channel.getConnectionFactory(), amqpConfig, "test-queue", new StringPublisherCallback());
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.nesscomputing.amqp.util.RecordingChannel;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+public class TestPushConsumer
+{
+    private final RecordingChannel channel = new RecordingChannel();
+
+    private final AmqpConfig amqpConfig = new AmqpConfig() {
+        @Override
+        public ConsumerDispatch getConsumerDispatch() {
+            return ConsumerDispatch.PUSH;
+        }
+    };
+
+    private static void deliver(final Consumer consumer, final long deliveryTag, final String body) throws IOException
+    {
+        consumer.handleDelivery("consumer-tag", new Envelope(deliveryTag, false, "", "test-queue"), new BasicProperties.Builder().build(), body.getBytes(Charsets.UTF_8));
+    }
+
+    @Test
+    public void testPush() throws Exception
+    {
+        final List<String> received = Lists.newArrayList();
+        final List<Thread> threads = Lists.newArrayList();
+
+        final QueueConsumer queueConsumer = new QueueConsumer(channel.getConnectionFactory(), amqpConfig, "test-queue", new ConsumerCallback() {
+            @Override
+            public boolean withDelivery(final Delivery delivery) {
+                received.add(new String(delivery.getBody(), Charsets.UTF_8));
+                threads.add(Thread.currentThread());
+                return !"stop".equals(received.get(received.size() - 1));
+            }
+        });
+
+        final Thread thread = new Thread(queueConsumer);
+        thread.start();
+        final Consumer consumer = channel.awaitConsumer();
+
+        // The callback runs right on the thread that delivers.
+        deliver(consumer, 1L, "hello");
+        deliver(consumer, 2L, "world");
+        Assert.assertEquals(Lists.newArrayList("hello", "world"), received);
+        Assert.assertEquals(Lists.newArrayList(Thread.currentThread(), Thread.currentThread()), threads);
+        Assert.assertEquals(Lists.newArrayList("ack 1", "ack 2"), channel.getAcks());
+
+        // A callback that returns false stops the consumer.
+        deliver(consumer, 3L, "stop");
+        thread.join(5000L);
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertFalse(queueConsumer.isRunning());
+
+        // Deliveries after the stop are left to the broker.
+        deliver(consumer, 4L, "late");
+        Assert.assertEquals(3, received.size());
+        Assert.assertEquals(Lists.newArrayList("ack 1", "ack 2", "ack 3"), channel.getAcks());
+    }
+}
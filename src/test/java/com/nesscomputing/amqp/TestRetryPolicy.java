@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.nesscomputing.amqp.util.RecordingChannel;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+
+public class TestRetryPolicy
+{
+    private final RecordingChannel channel = new RecordingChannel();
+
+    private AbstractConsumer consumer = null;
+    private Thread thread = null;
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (consumer != null) {
+            consumer.shutdown();
+            thread.join();
+        }
+    }
+
+    private static AmqpConfig retryConfig(final String delays, final int maxAttempts)
+    {
+        return retryConfig(delays, maxAttempts, ConsumerDispatch.PUSH);
+    }
+
+    private static AmqpConfig retryConfig(final String delays, final int maxAttempts, final ConsumerDispatch dispatch)
+    {
+        return new AmqpConfig() {
+            @Override
+            public String getConsumerRetryDelays() {
+                return delays;
+            }
+
+            @Override
+            public int getConsumerRetryMaxAttempts() {
+                return maxAttempts;
+            }
+
+            @Override
+            public ConsumerDispatch getConsumerDispatch() {
+                return dispatch;
+            }
+        };
+    }
+
+    private static BasicProperties withAttempt(final int attempt)
+    {
+        return new BasicProperties.Builder().headers(ImmutableMap.<String, Object>of(RetryPolicy.ATTEMPT_HEADER, attempt, "source", "test")).build();
+    }
+
+    @Test
+    public void testFromConfig()
+    {
+        Assert.assertNull(RetryPolicy.fromConfig(new AmqpConfig() {}, "test-queue"));
+        Assert.assertNull(RetryPolicy.fromConfig(retryConfig(" , ", 3), "test-queue"));
+        Assert.assertNotNull(RetryPolicy.fromConfig(retryConfig("1s, 30s", 3), "test-queue"));
+    }
+
+    @Test
+    public void testDeclare() throws Exception
+    {
+        final RetryPolicy policy = new RetryPolicy("test-queue", new long [] {1000L, 30000L, 30000L}, 3);
+        policy.declare(channel.getChannel(), true);
+
+        final List<Object []> declares = channel.getArguments("queueDeclare");
+        Assert.assertEquals(3, declares.size());
+
+        Assert.assertEquals("test-queue.retry.1000", declares.get(0)[0]);
+        Assert.assertEquals(Boolean.TRUE, declares.get(0)[1]);
+        final Map<?, ?> arguments = (Map<?, ?>) declares.get(0)[4];
+        Assert.assertEquals(1000L, arguments.get("x-message-ttl"));
+        Assert.assertEquals("", arguments.get("x-dead-letter-exchange"));
+        Assert.assertEquals("test-queue", arguments.get("x-dead-letter-routing-key"));
+
+        Assert.assertEquals("test-queue.retry.30000", declares.get(1)[0]);
+        Assert.assertEquals("test-queue.parking", declares.get(2)[0]);
+    }
+
+    @Test
+    public void testRepublish() throws Exception
+    {
+        final RetryPolicy policy = new RetryPolicy("test-queue", new long [] {1000L, 30000L}, 3);
+
+        Assert.assertEquals("test-queue.retry.1000", policy.republish(channel.getChannel(), null, null));
+        Assert.assertEquals("test-queue.retry.30000", policy.republish(channel.getChannel(), withAttempt(1), null));
+        // The last delay is used for all later attempts.
+        Assert.assertEquals("test-queue.retry.30000", policy.republish(channel.getChannel(), withAttempt(2), null));
+        Assert.assertEquals("test-queue.parking", policy.republish(channel.getChannel(), withAttempt(3), null));
+
+        final List<Object []> publishes = channel.getArguments("basicPublish");
+        Assert.assertEquals(4, publishes.size());
+        for (int i = 0; i < publishes.size(); i++) {
+            Assert.assertEquals("", publishes.get(i)[0]);
+            Assert.assertEquals(i + 1, RetryPolicy.getAttempt((BasicProperties) publishes.get(i)[2]));
+        }
+
+        // The other headers are kept.
+        Assert.assertEquals("test", ((BasicProperties) publishes.get(1)[2]).getHeaders().get("source"));
+    }
+
+    @Test
+    public void testConsumerRetries() throws Exception
+    {
+        consumer = new QueueConsumer(channel.getConnectionFactory(), retryConfig("1s", 1), "test-queue", new ConsumerCallback() {
+            @Override
+            public boolean withDelivery(final Delivery delivery) throws IOException {
+                if ("fail".equals(new String(delivery.getBody(), Charsets.UTF_8))) {
+                    throw new IOException("could not process the message");
+                }
+                return true;
+            }
+        });
+        thread = new Thread(consumer);
+        thread.start();
+        final Consumer pushConsumer = channel.awaitConsumer();
+
+        final List<Object []> declares = channel.getArguments("queueDeclare");
+        Assert.assertEquals("test-queue.retry.1000", declares.get(declares.size() - 2)[0]);
+        Assert.assertEquals("test-queue.parking", declares.get(declares.size() - 1)[0]);
+
+        pushConsumer.handleDelivery("consumer-tag", new Envelope(1L, false, "", "test-queue"), new BasicProperties.Builder().build(), "hello".getBytes(Charsets.UTF_8));
+        pushConsumer.handleDelivery("consumer-tag", new Envelope(2L, false, "", "test-queue"), new BasicProperties.Builder().build(), "fail".getBytes(Charsets.UTF_8));
+        pushConsumer.handleDelivery("consumer-tag", new Envelope(3L, false, "", "test-queue"), withAttempt(1), "fail".getBytes(Charsets.UTF_8));
+
+        // Failed messages are acknowledged and moved instead of being requeued right away.
+        Assert.assertEquals(Lists.newArrayList("ack 1", "ack 2", "ack 3"), channel.getAcks());
+
+        final List<Object []> publishes = channel.getArguments("basicPublish");
+        Assert.assertEquals(2, publishes.size());
+        Assert.assertEquals("test-queue.retry.1000", publishes.get(0)[1]);
+        Assert.assertEquals("fail", new String((byte []) publishes.get(0)[3], Charsets.UTF_8));
+        Assert.assertEquals("test-queue.parking", publishes.get(1)[1]);
+    }
+
+    @Test
+    public void testFailureDoesNotReconnect() throws Exception
+    {
+        final BlockingQueue<String> processed = new LinkedBlockingQueue<String>();
+        consumer = new QueueConsumer(channel.getConnectionFactory(), retryConfig("1s", 3, ConsumerDispatch.POLL), "test-queue", new ConsumerCallback() {
+            @Override
+            public boolean withDelivery(final Delivery delivery) throws IOException {
+                final String body = new String(delivery.getBody(), Charsets.UTF_8);
+                processed.add(body);
+                if ("fail".equals(body)) {
+                    throw new IOException("could not process the message");
+                }
+                return true;
+            }
+        });
+        thread = new Thread(consumer);
+        thread.start();
+        final Consumer pollConsumer = channel.awaitConsumer();
+
+        pollConsumer.handleDelivery("consumer-tag", new Envelope(1L, false, "", "test-queue"), new BasicProperties.Builder().build(), "fail".getBytes(Charsets.UTF_8));
+        pollConsumer.handleDelivery("consumer-tag", new Envelope(2L, false, "", "test-queue"), new BasicProperties.Builder().build(), "hello".getBytes(Charsets.UTF_8));
+
+        // The next message is processed right away, without a backoff and on the same channel.
+        Assert.assertEquals("fail", processed.poll(1, TimeUnit.SECONDS));
+        Assert.assertEquals("hello", processed.poll(1, TimeUnit.SECONDS));
+
+        consumer.shutdown();
+        thread.join();
+        consumer = null;
+
+        Assert.assertEquals(1, channel.count("basicConsume"));
+        Assert.assertEquals(1, channel.count("basicPublish"));
+        Assert.assertEquals(Lists.newArrayList("ack 1", "ack 2"), channel.getAcks());
+    }
+}
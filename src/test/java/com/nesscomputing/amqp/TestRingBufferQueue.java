@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRingBufferQueue
+{
+    @Test
+    public void testBounded() throws Exception
+    {
+        final BlockingQueue<Integer> queue = PublisherQueueType.RING.newQueue(3, WaitStrategy.PARK);
+
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertTrue(queue.offer(1));
+        Assert.assertTrue(queue.offer(2));
+        Assert.assertTrue(queue.offer(3));
+        Assert.assertFalse(queue.offer(4));
+        Assert.assertFalse(queue.offer(4, 10L, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, queue.remainingCapacity());
+
+        Assert.assertEquals(Integer.valueOf(1), queue.poll());
+        Assert.assertTrue(queue.offer(4));
+
+        final List<Integer> drained = new ArrayList<Integer>();
+        Assert.assertEquals(2, queue.drainTo(drained, 2));
+        Assert.assertEquals(Integer.valueOf(2), drained.get(0));
+        Assert.assertEquals(Integer.valueOf(3), drained.get(1));
+        Assert.assertEquals(Integer.valueOf(4), queue.take());
+
+        Assert.assertNull(queue.poll(10L, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testIterator() throws Exception
+    {
+        final BlockingQueue<Integer> queue = PublisherQueueType.RING.newQueue(5, WaitStrategy.PARK);
+        for (int i = 1; i <= 4; i++) {
+            Assert.assertTrue(queue.offer(i));
+        }
+
+        Assert.assertTrue(queue.contains(3));
+        Assert.assertFalse(queue.contains(5));
+        Assert.assertEquals("[1, 2, 3, 4]", queue.toString());
+
+        Assert.assertTrue(queue.remove(2));
+        Assert.assertFalse(queue.remove(2));
+        Assert.assertEquals(3, queue.size());
+        Assert.assertEquals("[1, 3, 4]", queue.toString());
+
+        // The consumer skips the removed element.
+        Assert.assertEquals(Integer.valueOf(1), queue.poll());
+        Assert.assertEquals(Integer.valueOf(3), queue.poll());
+        Assert.assertEquals(1, queue.size());
+        Assert.assertArrayEquals(new Object [] {4}, queue.toArray());
+
+        final Iterator<Integer> it = queue.iterator();
+        Assert.assertEquals(Integer.valueOf(4), it.next());
+        it.remove();
+        Assert.assertFalse(it.hasNext());
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertNull(queue.poll());
+        Assert.assertNull(queue.peek());
+    }
+
+    @Test
+    public void testManyProducers() throws Exception
+    {
+        final int producerCount = 4;
+        final int messageCount = 20000;
+        final BlockingQueue<Integer> queue = PublisherQueueType.RING.newQueue(16, WaitStrategy.YIELD);
+
+        final Thread [] producers = new Thread[producerCount];
+        for (int i = 0; i < producerCount; i++) {
+            final int producer = i;
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < messageCount; j++) {
+                            queue.put(producer * messageCount + j);
+                        }
+                    }
+                    catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            producers[i].start();
+        }
+
+        // Every producer's messages must arrive complete and in order.
+        final int [] next = new int[producerCount];
+        for (int i = 0; i < producerCount * messageCount; i++) {
+            final Integer value = queue.poll(5L, TimeUnit.SECONDS);
+            Assert.assertNotNull(value);
+            final int producer = value / messageCount;
+            Assert.assertEquals(next[producer]++, value % messageCount);
+        }
+
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        Assert.assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class TestSerialExecutor
+{
+    @Test
+    public void testOrderPerStripe() throws Exception
+    {
+        final int stripeCount = 8;
+        final int taskCount = 10000;
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+        try {
+            final SerialExecutor [] stripes = new SerialExecutor[stripeCount];
+            final Map<Integer, List<Integer>> results = Maps.newHashMap();
+            for (int i = 0; i < stripeCount; i++) {
+                stripes[i] = new SerialExecutor(pool);
+                results.put(i, Lists.<Integer>newArrayList());
+            }
+
+            final CountDownLatch latch = new CountDownLatch(taskCount);
+            for (int i = 0; i < taskCount; i++) {
+                final int stripe = i % stripeCount;
+                final int value = i;
+                stripes[stripe].execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Tasks of one stripe never run at the same time, so the list needs no lock.
+                        results.get(stripe).add(value);
+                        latch.countDown();
+                    }
+                });
+            }
+
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+            for (int i = 0; i < stripeCount; i++) {
+                final List<Integer> result = results.get(i);
+                Assert.assertEquals(taskCount / stripeCount, result.size());
+                for (int j = 0; j < result.size(); j++) {
+                    Assert.assertEquals(Integer.valueOf(j * stripeCount + i), result.get(j));
+                }
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailingTask() throws Exception
+    {
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            final SerialExecutor executor = new SerialExecutor(pool);
+            final CountDownLatch latch = new CountDownLatch(1);
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    throw new IllegalStateException("broken");
+                }
+            });
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            });
+
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.rabbitmq.client.ConnectionFactory;
+
+public class TestShardedPublisher
+{
+    private static final Function<String, String> KEY_FUNCTION = new Function<String, String>() {
+        @Override
+        public String apply(final String data) {
+            final int index = data.indexOf(':');
+            return index < 0 ? null : data.substring(0, index);
+        }
+    };
+
+    private static ShardedPublisher<String> createPublisher(final int shards)
+    {
+        final AmqpConfig amqpConfig = new AmqpConfig() {
+            @Override
+            public int getPublisherQueueLength() {
+                return 1000;
+            }
+        };
+
+        final List<QueuePublisher<String>> publishers = Lists.newArrayList();
+        for (int i = 0; i < shards; i++) {
+            publishers.add(new QueuePublisher<String>(new ConnectionFactory(), amqpConfig, "test-queue", new StringPublisherCallback()));
+        }
+        return new ShardedPublisher<String>("test-queue", publishers, KEY_FUNCTION);
+    }
+
+    @Test
+    public void testSameKeySameShard()
+    {
+        final ShardedPublisher<String> publisher = createPublisher(8);
+        Assert.assertEquals(8, publisher.getShardCount());
+
+        for (int i = 0; i < 100; i++) {
+            final String key = "key-" + i;
+            Assert.assertSame(publisher.getShard(key), publisher.getShard(key));
+        }
+
+        Assert.assertTrue(publisher.isEmpty());
+        Assert.assertTrue(publisher.offer("key-1:hello"));
+        Assert.assertFalse(publisher.isEmpty());
+        Assert.assertFalse(publisher.getShard("key-1").isEmpty());
+    }
+
+    @Test
+    public void testSpread()
+    {
+        final ShardedPublisher<String> publisher = createPublisher(4);
+
+        for (int i = 0; i < 400; i++) {
+            Assert.assertTrue(publisher.offer(i + ":hello, world"));
+        }
+
+        // Every shard got a fair share of the keys.
+        for (int i = 0; i < 4; i++) {
+            final AbstractPublisher<String> shard = publisher.getShard(String.valueOf(i));
+            Assert.assertTrue(1000 - shard.remainingCapacity() > 50);
+        }
+    }
+
+    @Test
+    public void testWithoutKey()
+    {
+        final ShardedPublisher<String> publisher = createPublisher(4);
+
+        for (int i = 0; i < 8; i++) {
+            Assert.assertTrue(publisher.offer("hello, world"));
+        }
+        for (int i = 0; i < 4; i++) {
+            final AbstractPublisher<String> shard = publisher.getShard(String.valueOf(i));
+            Assert.assertEquals(998, shard.remainingCapacity());
+        }
+    }
+}
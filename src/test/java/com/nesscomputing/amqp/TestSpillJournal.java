@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.nesscomputing.amqp.PublisherCallback.PublisherData;
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+public class TestSpillJournal
+{
+    private File directory;
+
+    @Before
+    public void setUp()
+    {
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        delete(directory);
+    }
+
+    private static void delete(final File file)
+    {
+        final File [] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static PublisherData message(final String body)
+    {
+        final BasicProperties props = new BasicProperties.Builder()
+        .contentType("text/plain")
+        .deliveryMode(2)
+        .headers(ImmutableMap.<String, Object>of("count", 3, "source", "test"))
+        .build();
+
+        return new EncodedPublisherData(props, body.getBytes(Charsets.UTF_8));
+    }
+
+    @Test
+    public void testAppendAndReplay() throws Exception
+    {
+        // Small segments, so that the journal rolls over a few times.
+        final SpillJournal journal = SpillJournal.open(directory, "test/publisher", 256);
+        Assert.assertTrue(journal.isEmpty());
+
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue(journal.append(message("hello, world " + i)));
+        }
+        Assert.assertFalse(journal.isEmpty());
+
+        for (int i = 0; i < 20; i++) {
+            final PublisherData data = journal.peek();
+            Assert.assertNotNull(data);
+            Assert.assertEquals("hello, world " + i, new String(data.getData(), Charsets.UTF_8));
+            Assert.assertEquals("text/plain", data.getProperties().getContentType());
+            Assert.assertEquals(Integer.valueOf(2), data.getProperties().getDeliveryMode());
+            Assert.assertEquals(3, data.getProperties().getHeaders().get("count"));
+            Assert.assertEquals("test", data.getProperties().getHeaders().get("source"));
+            journal.remove();
+        }
+
+        Assert.assertTrue(journal.isEmpty());
+        Assert.assertNull(journal.peek());
+
+        // Only the segment that is appended to is left.
+        Assert.assertEquals(1, new File(directory, "test_publisher").list().length - 1);
+        journal.close();
+    }
+
+    @Test
+    public void testLargeAndNullHeaders() throws Exception
+    {
+        final SpillJournal journal = SpillJournal.open(directory, "test", 1024 * 1024);
+
+        final String large = Strings.repeat("x", 100000);
+        final Map<String, Object> headers = new HashMap<String, Object>();
+        headers.put("large", large);
+        headers.put("missing", null);
+
+        final BasicProperties props = new BasicProperties.Builder().messageId(large).headers(headers).build();
+        Assert.assertTrue(journal.append(new EncodedPublisherData(props, new byte[0])));
+
+        final PublisherData data = journal.peek();
+        Assert.assertEquals(large, data.getProperties().getMessageId());
+        Assert.assertEquals(large, data.getProperties().getHeaders().get("large"));
+        Assert.assertTrue(data.getProperties().getHeaders().containsKey("missing"));
+        Assert.assertNull(data.getProperties().getHeaders().get("missing"));
+        journal.close();
+    }
+
+    @Test
+    public void testRecover() throws Exception
+    {
+        final SpillJournal journal = SpillJournal.open(directory, "test", 256);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(journal.append(message("hello, world " + i)));
+        }
+        for (int i = 0; i < 4; i++) {
+            journal.remove();
+        }
+        journal.close();
+
+        final SpillJournal recovered = SpillJournal.open(directory, "test", 256);
+        for (int i = 4; i < 10; i++) {
+            final PublisherData data = recovered.peek();
+            Assert.assertEquals("hello, world " + i, new String(data.getData(), Charsets.UTF_8));
+            recovered.remove();
+        }
+        Assert.assertTrue(recovered.isEmpty());
+        recovered.close();
+    }
+
+    @Test
+    public void testTooLarge() throws Exception
+    {
+        final SpillJournal journal = SpillJournal.open(directory, "test", 64);
+        Assert.assertFalse(journal.append(message("this message is much too large for such a tiny segment file")));
+        Assert.assertTrue(journal.isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void testDirectoryLocked() throws Exception
+    {
+        final SpillJournal first = SpillJournal.open(directory, "test", 256);
+        final SpillJournal second = SpillJournal.open(directory, "test", 256);
+
+        first.append(message("first"));
+        second.append(message("second"));
+
+        Assert.assertEquals("first", new String(first.peek().getData(), Charsets.UTF_8));
+        Assert.assertEquals("second", new String(second.peek().getData(), Charsets.UTF_8));
+
+        first.close();
+        second.close();
+    }
+}
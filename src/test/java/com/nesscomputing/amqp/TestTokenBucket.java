@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestTokenBucket
+{
+    @Test
+    public void testBurst()
+    {
+        final TokenBucket bucket = new TokenBucket(1000.0, 10.0);
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(0L, bucket.take(1L));
+        }
+
+        // Ten more tokens at 1000/s take about 10 ms to come in.
+        final long waitNanos = bucket.take(10L);
+        Assert.assertTrue(waitNanos > TimeUnit.MILLISECONDS.toNanos(5L));
+        Assert.assertTrue(waitNanos <= TimeUnit.MILLISECONDS.toNanos(10L));
+    }
+
+    @Test
+    public void testRefill() throws Exception
+    {
+        final TokenBucket bucket = new TokenBucket(1000.0, 10.0);
+        Assert.assertTrue(bucket.take(20L) > 0L);
+
+        Thread.sleep(50L);
+
+        // Paid back the debt and filled up again, but not beyond the capacity.
+        Assert.assertEquals(0L, bucket.take(10L));
+        Assert.assertTrue(bucket.take(5L) > 0L);
+    }
+
+    @Test
+    public void testLargeTake()
+    {
+        final TokenBucket bucket = new TokenBucket(1000.0, 1.0);
+
+        // Taking more than the capacity is allowed and results in a matching debt.
+        final long waitNanos = bucket.take(1001L);
+        Assert.assertTrue(waitNanos > TimeUnit.MILLISECONDS.toNanos(900L));
+        Assert.assertTrue(waitNanos <= TimeUnit.SECONDS.toNanos(1L));
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.amqp.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Consumer;
+
+/**
+ * A channel without a broker behind it. Records the methods called on it, their arguments and the acks and nacks sent,
+ * and keeps the consumer that subscribed last, so a test can push deliveries to it.
+ */
+public class RecordingChannel
+{
+    private final List<String> calls = new CopyOnWriteArrayList<String>();
+    private final List<Map.Entry<String, Object []>> invocations = new CopyOnWriteArrayList<Map.Entry<String, Object []>>();
+    private final List<String> acks = new CopyOnWriteArrayList<String>();
+    private final CountDownLatch subscribed = new CountDownLatch(1);
+    private volatile Consumer consumer = null;
+
+    private final Channel channel = (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Channel.class }, new InvocationHandler() {
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            final String name = method.getName();
+            calls.add(name);
+            invocations.add(Maps.immutableEntry(name, args));
+
+            if ("basicAck".equals(name)) {
+                acks.add("ack " + args[0] + (Boolean.TRUE.equals(args[1]) ? "+" : ""));
+            }
+            else if ("basicNack".equals(name)) {
+                acks.add("nack " + args[0] + (Boolean.TRUE.equals(args[1]) ? "+" : "") + (Boolean.TRUE.equals(args[2]) ? " requeue" : ""));
+            }
+            else if ("basicConsume".equals(name)) {
+                consumer = (Consumer) args[args.length - 1];
+                subscribed.countDown();
+                return "consumer-tag";
+            }
+            return defaultValue(method.getReturnType());
+        }
+    });
+
+    private final Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            if ("createChannel".equals(method.getName())) {
+                return channel;
+            }
+            return defaultValue(method.getReturnType());
+        }
+    });
+
+    private final ConnectionFactory connectionFactory = new ConnectionFactory() {
+        @Override
+        public Connection newConnection() {
+            return connection;
+        }
+    };
+
+    private static Object defaultValue(final Class<?> type)
+    {
+        if (type == boolean.class) {
+            return Boolean.TRUE;
+        }
+        else if (type == long.class) {
+            return 0L;
+        }
+        else if (type == int.class) {
+            return 0;
+        }
+        return null;
+    }
+
+    public Channel getChannel()
+    {
+        return channel;
+    }
+
+    public ConnectionFactory getConnectionFactory()
+    {
+        return connectionFactory;
+    }
+
+    /**
+     * Waits for a consumer to subscribe and returns it.
+     */
+    public Consumer awaitConsumer() throws InterruptedException
+    {
+        if (!subscribed.await(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("No consumer subscribed");
+        }
+        return consumer;
+    }
+
+    public List<String> getCalls()
+    {
+        return calls;
+    }
+
+    /**
+     * The acks and nacks sent, e.g. "ack 3" for a single ack, "ack 3+" for a multiple ack and "nack 3+ requeue".
+     */
+    public List<String> getAcks()
+    {
+        return acks;
+    }
+
+    /**
+     * The arguments of every call of a method, in order.
+     */
+    public List<Object []> getArguments(final String methodName)
+    {
+        final List<Object []> arguments = Lists.newArrayList();
+        for (Map.Entry<String, Object []> invocation : invocations) {
+            if (methodName.equals(invocation.getKey())) {
+                arguments.add(invocation.getValue());
+            }
+        }
+        return arguments;
+    }
+
+    public int count(final String methodName)
+    {
+        int count = 0;
+        for (String call : calls) {
+            if (methodName.equals(call)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}